@@ -5,7 +5,8 @@ import java.util.ArrayList;
 
 /**
     The Animation class manages a series of images (frames) and
-    the amount of time to display each frame.
+    the amount of time to display each frame. Frames can also
+    have a CollisionMask, shared by every copy of the Animation.
 */
 public class Animation {
 
@@ -95,15 +96,119 @@ public class Animation {
     }
 
 
+    /**
+        Gets the image shown at the specified time (in
+        milliseconds) into this animation, without changing this
+        Animation's own time. Times past the end of the
+        animation wrap around. Returns null if this animation has
+        no images.
+    */
+    public synchronized Image getImageAt(long time) {
+        AnimFrame frame = getFrameAt(time);
+        return (frame == null) ? null : frame.image;
+    }
+
+
+    /**
+        Creates a CollisionMask for each frame of this animation
+        that doesn't have one. Frames with the same image share
+        a mask. Copies of this Animation, made before or after,
+        share the masks too.
+    */
+    public synchronized void createCollisionMasks() {
+        for (int i=0; i<frames.size(); i++) {
+            AnimFrame frame = getFrame(i);
+            for (int j=0; j<i && frame.mask == null; j++) {
+                if (getFrame(j).image == frame.image) {
+                    frame.mask = getFrame(j).mask;
+                }
+            }
+            if (frame.mask == null) {
+                frame.mask = new CollisionMask(frame.image);
+            }
+        }
+    }
+
+
+    /**
+        Gets the CollisionMask of this Animation's current image.
+        Returns null if this animation has no images, or if its
+        masks haven't been created.
+    */
+    public synchronized CollisionMask getCollisionMask() {
+        if (frames.size() == 0) {
+            return null;
+        }
+        else {
+            return getFrame(currFrameIndex).mask;
+        }
+    }
+
+
+    /**
+        Gets the CollisionMask of the image shown at the
+        specified time into this animation, as getImageAt() does.
+    */
+    public synchronized CollisionMask getCollisionMaskAt(long time) {
+        AnimFrame frame = getFrameAt(time);
+        return (frame == null) ? null : frame.mask;
+    }
+
+
+    /**
+        Gets the time, in milliseconds, into this animation.
+    */
+    public synchronized long getAnimTime() {
+        return animTime;
+    }
+
+
+    /**
+        Sets the time, in milliseconds, into this animation, and
+        shows the image for that time.
+    */
+    public synchronized void setAnimTime(long time) {
+        start();
+        update(time);
+    }
+
+
+    /**
+        Gets the total duration of this animation, in
+        milliseconds.
+    */
+    public synchronized long getDuration() {
+        return totalDuration;
+    }
+
+
     private AnimFrame getFrame(int i) {
         return (AnimFrame)frames.get(i);
     }
 
 
+    private AnimFrame getFrameAt(long time) {
+        int numFrames = frames.size();
+        if (numFrames == 0) {
+            return null;
+        }
+        if (numFrames > 1 && totalDuration > 0) {
+            time = time % totalDuration;
+            for (int i=0; i<numFrames-1; i++) {
+                if (time <= getFrame(i).endTime) {
+                    return getFrame(i);
+                }
+            }
+        }
+        return getFrame(numFrames-1);
+    }
+
+
     private class AnimFrame {
 
         Image image;
         long endTime;
+        CollisionMask mask;
 
         public AnimFrame(Image image, long endTime) {
             this.image = image;
@@ -0,0 +1,297 @@
+package com.brackeen.javagamebook.graphics;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+
+/**
+    The CollisionMask class holds which pixels of an image are
+    solid, one bit per pixel, and the bounds of the solid pixels
+    (the hitbox). Masks are built once, when an Animation's
+    frames are loaded (see Animation.createCollisionMasks()), and
+    never change, so they're shared by every copy of the
+    Animation.
+    <p>Transparent pixels aren't solid. Neither is an opaque
+    background: if the top-left pixel is opaque, the pixels of
+    about its color that can be reached from the image's edges
+    are background. Pixels of that color enclosed by the
+    Sprite are still solid.
+    <p>Two masks are tested by first checking if their hitboxes
+    overlap, then ANDing the rows of bits where they do, 64
+    pixels at a time.
+*/
+public class CollisionMask {
+
+    // lowest alpha of a solid pixel
+    private static final int SOLID_ALPHA = 128;
+
+    // most each color component can differ from the background
+    // color for a pixel to be background
+    private static final int BACKGROUND_TOLERANCE = 32;
+
+    private int width;
+    private int height;
+    private int wordsPerRow;
+    // one bit per pixel, set if the pixel is solid, row by row
+    private long[] bits;
+
+    // bounds of the solid pixels
+    private int hitX;
+    private int hitY;
+    private int hitWidth;
+    private int hitHeight;
+
+    /**
+        Creates a new CollisionMask for the specified image, which
+        must be loaded. Pixels that are mostly opaque, and aren't
+        part of an opaque background, are solid.
+    */
+    public CollisionMask(Image image) {
+        width = image.getWidth(null);
+        height = image.getHeight(null);
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Image isn't loaded");
+        }
+        wordsPerRow = (width + 63) >> 6;
+        bits = new long[wordsPerRow * height];
+        if (width == 0 || height == 0) {
+            return;
+        }
+
+        // draw the image to read its pixels
+        BufferedImage buffer = new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = buffer.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        int[] pixels = buffer.getRGB(0, 0, width, height, null, 0,
+            width);
+
+        boolean[] background = findBackground(pixels);
+
+        int left = width;
+        int top = height;
+        int right = 0;
+        int bottom = 0;
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                int i = y * width + x;
+                if ((pixels[i] >>> 24) >= SOLID_ALPHA &&
+                    !background[i])
+                {
+                    bits[y * wordsPerRow + (x >> 6)] |= (1L << x);
+                    left = Math.min(left, x);
+                    top = Math.min(top, y);
+                    right = Math.max(right, x + 1);
+                    bottom = Math.max(bottom, y + 1);
+                }
+            }
+        }
+        if (right > left) {
+            hitX = left;
+            hitY = top;
+            hitWidth = right - left;
+            hitHeight = bottom - top;
+        }
+    }
+
+
+    /**
+        Gets the width of this mask's image.
+    */
+    public int getWidth() {
+        return width;
+    }
+
+
+    /**
+        Gets the height of this mask's image.
+    */
+    public int getHeight() {
+        return height;
+    }
+
+
+    /**
+        Gets the x offset of the hitbox from the image's left
+        edge.
+    */
+    public int getHitX() {
+        return hitX;
+    }
+
+
+    /**
+        Gets the y offset of the hitbox from the image's top
+        edge.
+    */
+    public int getHitY() {
+        return hitY;
+    }
+
+
+    /**
+        Gets the width of the hitbox, or 0 if no pixels are
+        solid.
+    */
+    public int getHitWidth() {
+        return hitWidth;
+    }
+
+
+    /**
+        Gets the height of the hitbox, or 0 if no pixels are
+        solid.
+    */
+    public int getHitHeight() {
+        return hitHeight;
+    }
+
+
+    /**
+        Checks if the pixel at the specified location in the
+        image is solid.
+    */
+    public boolean isSolid(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return false;
+        }
+        return (bits[y * wordsPerRow + (x >> 6)] & (1L << x)) != 0;
+    }
+
+
+    /**
+        Checks if this mask, with its image's top-left corner at
+        (x, y), has a solid pixel in the same place as another
+        mask at (otherX, otherY).
+    */
+    public boolean collides(int x, int y, CollisionMask other,
+        int otherX, int otherY)
+    {
+        // reject if the hitboxes don't overlap
+        int left = Math.max(x + hitX, otherX + other.hitX);
+        int right = Math.min(x + hitX + hitWidth,
+            otherX + other.hitX + other.hitWidth);
+        if (left >= right) {
+            return false;
+        }
+        int top = Math.max(y + hitY, otherY + other.hitY);
+        int bottom = Math.min(y + hitY + hitHeight,
+            otherY + other.hitY + other.hitHeight);
+        if (top >= bottom) {
+            return false;
+        }
+
+        // AND the rows where they overlap, 64 pixels at a time
+        for (int row=top; row<bottom; row++) {
+            int base = (row - y) * wordsPerRow;
+            int otherBase = (row - otherY) * other.wordsPerRow;
+            for (int col=left; col<right; col+=64) {
+                long overlap = getBits(base, col - x) &
+                    other.getBits(otherBase, col - otherX);
+                int count = right - col;
+                if (count < 64) {
+                    overlap &= (1L << count) - 1;
+                }
+                if (overlap != 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    /**
+        Finds the opaque background of an image: the pixels of
+        about the top-left pixel's color that can be reached from
+        the edges. Finds nothing if the top-left pixel isn't
+        opaque.
+    */
+    private boolean[] findBackground(int[] pixels) {
+        boolean[] background = new boolean[pixels.length];
+        int color = pixels[0];
+        if ((color >>> 24) < SOLID_ALPHA) {
+            return background;
+        }
+
+        // flood fill from every edge pixel. Pixels are marked
+        // when they're pushed, so each is pushed at most once.
+        int[] stack = new int[pixels.length];
+        int size = 0;
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                if (x == 0 || y == 0 || x == width - 1 ||
+                    y == height - 1)
+                {
+                    size = push(y * width + x, pixels, color,
+                        background, stack, size);
+                }
+            }
+        }
+        while (size > 0) {
+            int i = stack[--size];
+            int x = i % width;
+            if (x > 0) {
+                size = push(i - 1, pixels, color, background, stack,
+                    size);
+            }
+            if (x < width - 1) {
+                size = push(i + 1, pixels, color, background, stack,
+                    size);
+            }
+            if (i >= width) {
+                size = push(i - width, pixels, color, background,
+                    stack, size);
+            }
+            if (i + width < pixels.length) {
+                size = push(i + width, pixels, color, background,
+                    stack, size);
+            }
+        }
+        return background;
+    }
+
+
+    /**
+        Marks a pixel as background and pushes it on the stack if
+        it's of about the background color and isn't marked yet.
+        Returns the new stack size.
+    */
+    private static int push(int i, int[] pixels, int color,
+        boolean[] background, int[] stack, int size)
+    {
+        if (!background[i] && isBackground(pixels[i], color)) {
+            background[i] = true;
+            stack[size++] = i;
+        }
+        return size;
+    }
+
+
+    private static boolean isBackground(int pixel, int color) {
+        for (int shift=0; shift<32; shift+=8) {
+            int diff = ((pixel >>> shift) & 0xff) -
+                ((color >>> shift) & 0xff);
+            if (Math.abs(diff) > BACKGROUND_TOLERANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+        Gets the 64 bits of a row starting at the specified
+        pixel. Bits past the end of the row are 0.
+    */
+    private long getBits(int base, int start) {
+        int word = start >> 6;
+        int shift = start & 63;
+        long value = bits[base + word] >>> shift;
+        if (shift != 0 && word + 1 < wordsPerRow) {
+            value |= bits[base + word + 1] << (64 - shift);
+        }
+        return value;
+    }
+}
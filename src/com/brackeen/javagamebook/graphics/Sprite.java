@@ -8,6 +8,9 @@ public class Sprite {
     // position (pixels)
     private float x;
     private float y;
+    // position before the last update, for drawing in between
+    private float prevX;
+    private float prevY;
     // velocity (pixels per millisecond)
     private float dx;
     private float dy;
@@ -57,6 +60,34 @@ public class Sprite {
         this.y = y;
     }
 
+    /**
+        Remembers the current position as the previous position.
+        Called before each update, or after the Sprite is moved
+        somewhere it shouldn't appear to slide from.
+    */
+    public void savePosition() {
+        prevX = x;
+        prevY = y;
+    }
+
+    /**
+        Gets the x position this Sprite should be drawn at, the
+        specified fraction (0 to 1) of the way from its previous
+        position to its current position.
+    */
+    public float getInterpolatedX(float alpha) {
+        return prevX + (x - prevX) * alpha;
+    }
+
+    /**
+        Gets the y position this Sprite should be drawn at, the
+        specified fraction (0 to 1) of the way from its previous
+        position to its current position.
+    */
+    public float getInterpolatedY(float alpha) {
+        return prevY + (y - prevY) * alpha;
+    }
+
     /**
         Gets this Sprite's width, based on the size of the
         current image.
@@ -112,6 +143,40 @@ public class Sprite {
         return anim.getImage();
     }
 
+    /**
+        Gets the CollisionMask of this Sprite's current image, or
+        null if its Animation has no masks.
+    */
+    public CollisionMask getCollisionMask() {
+        return anim.getCollisionMask();
+    }
+
+    /**
+        Gets the time, in milliseconds, into this Sprite's current
+        Animation.
+    */
+    public long getAnimTime() {
+        return anim.getAnimTime();
+    }
+
+    /**
+        Sets the time, in milliseconds, into this Sprite's current
+        Animation.
+    */
+    public void setAnimTime(long time) {
+        anim.setAnimTime(time);
+    }
+
+    /**
+        Resets this Sprite so it can be reused: stops it and
+        starts its Animation over. Does not change its position.
+    */
+    public void reset() {
+        dx = 0;
+        dy = 0;
+        anim.start();
+    }
+
     /**
         Clones this Sprite. Does not clone position or velocity
         info.
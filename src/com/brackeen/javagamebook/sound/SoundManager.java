@@ -1,6 +1,7 @@
 package com.brackeen.javagamebook.sound;
 
 import java.io.*;
+import java.util.ArrayList;
 import javax.sound.sampled.*;
 import javax.sound.midi.*;
 import com.brackeen.javagamebook.util.ThreadPool;
@@ -26,6 +27,9 @@ public class SoundManager extends ThreadPool {
     private ThreadLocal localBuffer;
     private Object pausedLock;
     private boolean paused;
+    // SoundPlayers for unfiltered, unlooped sounds, reused once
+    // their sound ends
+    private ArrayList freePlayers;
 
     /**
         Creates a new SoundManager using the maximum number of
@@ -50,6 +54,7 @@ public class SoundManager extends ThreadPool {
         localLine = new ThreadLocal();
         localBuffer = new ThreadLocal();
         pausedLock = new Object();
+        freePlayers = new ArrayList();
         // notify threads in pool it's ok to start
         synchronized (this) {
             notifyAll();
@@ -227,6 +232,10 @@ public class SoundManager extends ThreadPool {
     /**
         Plays a sound with an optional SoundFilter, and optionally
         looping. This method returns immediately.
+        <p>A sound played without a filter or looping reuses the
+        SoundPlayer and stream of a sound that has ended, so
+        playing it doesn't allocate anything. Its returned stream
+        is only valid until the sound ends.
     */
     public InputStream play(Sound sound, SoundFilter filter,
         boolean loop)
@@ -237,6 +246,12 @@ public class SoundManager extends ThreadPool {
                 is = new LoopingByteInputStream(
                     sound.getSamples());
             }
+            else if (filter == null) {
+                SoundPlayer player = acquirePlayer();
+                player.samples.setSamples(sound.getSamples());
+                runTask(player);
+                return player.samples;
+            }
             else {
                 is = new ByteArrayInputStream(sound.getSamples());
             }
@@ -247,6 +262,31 @@ public class SoundManager extends ThreadPool {
     }
 
 
+    /**
+        Gets a reusable SoundPlayer that isn't playing anything,
+        creating one if needed.
+    */
+    private SoundPlayer acquirePlayer() {
+        synchronized (freePlayers) {
+            int size = freePlayers.size();
+            if (size > 0) {
+                return (SoundPlayer)freePlayers.remove(size - 1);
+            }
+        }
+        return new SoundPlayer(new SampleInputStream());
+    }
+
+
+    /**
+        Returns a reusable SoundPlayer whose sound has ended.
+    */
+    private void releasePlayer(SoundPlayer player) {
+        synchronized (freePlayers) {
+            freePlayers.add(player);
+        }
+    }
+
+
     /**
         Plays a sound from an InputStream. This method
         returns immediately.
@@ -337,12 +377,30 @@ public class SoundManager extends ThreadPool {
     protected class SoundPlayer implements Runnable {
 
         private InputStream source;
+        // the stream of a reusable SoundPlayer, or null
+        private SampleInputStream samples;
 
         public SoundPlayer(InputStream source) {
             this.source = source;
         }
 
+        private SoundPlayer(SampleInputStream samples) {
+            this.source = samples;
+            this.samples = samples;
+        }
+
         public void run() {
+            try {
+                play();
+            }
+            finally {
+                if (samples != null) {
+                    releasePlayer(this);
+                }
+            }
+        }
+
+        private void play() {
             // get line and buffer from ThreadLocals
             SourceDataLine line = (SourceDataLine)localLine.get();
             byte[] buffer = (byte[])localBuffer.get();
@@ -381,4 +439,25 @@ public class SoundManager extends ThreadPool {
         }
     }
 
+
+    /**
+        A ByteArrayInputStream that can be pointed at new samples,
+        so a reusable SoundPlayer can play any Sound.
+    */
+    private static class SampleInputStream extends ByteArrayInputStream {
+
+        private static final byte[] NO_SAMPLES = new byte[0];
+
+        public SampleInputStream() {
+            super(NO_SAMPLES);
+        }
+
+        public synchronized void setSamples(byte[] samples) {
+            buf = samples;
+            pos = 0;
+            count = samples.length;
+            mark = 0;
+        }
+    }
+
 }
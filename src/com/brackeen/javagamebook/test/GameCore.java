@@ -4,6 +4,7 @@ import java.awt.*;
 import javax.swing.ImageIcon;
 
 import com.brackeen.javagamebook.graphics.ScreenManager;
+import com.brackeen.javagamebook.util.FramePacer;
 
 /**
     Simple abstract class used for testing. Subclasses should
@@ -13,6 +14,24 @@ public abstract class GameCore {
 
     protected static final int FONT_SIZE = 24;
 
+    /**
+        The default number of updates per second.
+    */
+    public static final int DEFAULT_TICK_RATE = 100;
+
+    /**
+        The default maximum number of updates run to catch up
+        before a frame is drawn. Time beyond this is dropped, so
+        the game slows down instead of taking huge steps.
+    */
+    public static final int DEFAULT_MAX_CATCH_UP_STEPS = 5;
+
+    /**
+        The frame rate used if no frame rate is set and the
+        display's refresh rate is unknown.
+    */
+    public static final int DEFAULT_FRAME_RATE = 60;
+
     private static final DisplayMode POSSIBLE_MODES[] = {
         new DisplayMode(800, 600, 16, 0),
         new DisplayMode(800, 600, 32, 0),
@@ -27,6 +46,12 @@ public abstract class GameCore {
 
     private boolean isRunning;
     protected ScreenManager screen;
+    private long stepNanos = 1000000000L / DEFAULT_TICK_RATE;
+    private int maxCatchUpSteps = DEFAULT_MAX_CATCH_UP_STEPS;
+    private float interpolation;
+    private float timeScale = 1;
+    private int frameRate;
+    private FramePacer framePacer;
 
 
     /**
@@ -100,19 +125,175 @@ public abstract class GameCore {
 
 
     /**
-        Runs through the game loop until stop() is called.
+        Sets the number of times per second update() is called.
+        The step is kept in nanoseconds, so updates run at exactly
+        this rate even when the step isn't a whole number of
+        milliseconds (like at 60 per second). update() is passed
+        whole milliseconds, so at 60 per second it gets 16 or 17,
+        with the leftover fraction carried into the next update
+        so game time keeps up with real time.
+        @throws IllegalArgumentException if ticksPerSecond is
+        less than 1.
+    */
+    public void setTickRate(int ticksPerSecond) {
+        if (ticksPerSecond < 1) {
+            throw new IllegalArgumentException(
+                "Tick rate must be at least 1: " + ticksPerSecond);
+        }
+        stepNanos = 1000000000L / ticksPerSecond;
+    }
+
+
+    /**
+        Sets the fixed amount of time, in milliseconds, that each
+        update advances the game.
+    */
+    public void setStepTime(long stepTime) {
+        stepNanos = Math.max(1, stepTime) * 1000000L;
+    }
+
+
+    /**
+        Gets the number of times per second update() is called.
+    */
+    public int getTickRate() {
+        return (int)Math.round(1000000000.0 / stepNanos);
+    }
+
+
+    /**
+        Gets the fixed amount of time, in milliseconds, that each
+        update advances the game: the step rounded to the nearest
+        millisecond, and at least 1. The game loop passes
+        update() whole milliseconds that average out to the exact
+        step.
+    */
+    public long getStepTime() {
+        return Math.max(1, Math.round(stepNanos / 1000000.0));
+    }
+
+
+    /**
+        Sets the maximum number of updates that are run to catch
+        up before a frame is drawn.
+    */
+    public void setMaxCatchUpSteps(int maxCatchUpSteps) {
+        this.maxCatchUpSteps = Math.max(1, maxCatchUpSteps);
+    }
+
+
+    /**
+        Sets how fast the game runs compared to real time. For
+        example, 4 runs four updates in the time one would
+        normally take. Updates still advance the game by the same
+        step time, so the game plays out the same at any speed.
+    */
+    public void setTimeScale(float timeScale) {
+        this.timeScale = Math.max(0, timeScale);
+    }
+
+
+    /**
+        Gets how fast the game runs compared to real time.
+    */
+    public float getTimeScale() {
+        return timeScale;
+    }
+
+
+    /**
+        Sets the number of frames drawn per second. If 0 (the
+        default), the display's refresh rate is used.
+    */
+    public void setFrameRate(int framesPerSecond) {
+        frameRate = framesPerSecond;
+        if (framePacer != null) {
+            framePacer.setFrameRate(getTargetFrameRate());
+        }
+    }
+
+
+    /**
+        Gets the number of frames drawn per second: the frame
+        rate set with setFrameRate(), or else the refresh rate of
+        the display, or else DEFAULT_FRAME_RATE.
+    */
+    public int getTargetFrameRate() {
+        if (frameRate > 0) {
+            return frameRate;
+        }
+        if (screen != null) {
+            DisplayMode mode = screen.getCurrentDisplayMode();
+            if (mode != null && mode.getRefreshRate() !=
+                DisplayMode.REFRESH_RATE_UNKNOWN)
+            {
+                return mode.getRefreshRate();
+            }
+        }
+        return DEFAULT_FRAME_RATE;
+    }
+
+
+    /**
+        Gets the FramePacer used by the game loop, or null if the
+        game loop hasn't started.
+    */
+    public FramePacer getFramePacer() {
+        return framePacer;
+    }
+
+
+    /**
+        Gets how far, from 0 to 1, the time of the frame being
+        drawn is between the last two updates. Sprites should be
+        drawn this far between their previous and current
+        positions.
+    */
+    public float getInterpolation() {
+        return interpolation;
+    }
+
+
+    /**
+        Runs through the game loop until stop() is called. The
+        game is updated at a fixed rate, and frames are drawn at
+        the target frame rate in between.
     */
     public void gameLoop() {
-        long startTime = System.currentTimeMillis();
-        long currTime = startTime;
+        framePacer = new FramePacer(getTargetFrameRate());
+        long currTime = System.nanoTime();
+        long accumulatedTime = 0;
+        // part of a millisecond of game time not yet passed to
+        // update()
+        long stepRemainder = 0;
 
         while (isRunning) {
-            long elapsedTime =
-                System.currentTimeMillis() - currTime;
-            currTime += elapsedTime;
+            long time = System.nanoTime();
+            accumulatedTime += (long)((time - currTime) * timeScale);
+            currTime = time;
 
-            // update
-            update(elapsedTime);
+            // update in fixed steps (more per frame when the game
+            // runs faster than real time)
+            int maxSteps = (int)Math.ceil(maxCatchUpSteps *
+                Math.max(1, timeScale));
+            int steps = 0;
+            while (accumulatedTime >= stepNanos &&
+                steps < maxSteps)
+            {
+                stepRemainder += stepNanos;
+                long elapsedTime = stepRemainder / 1000000L;
+                stepRemainder -= elapsedTime * 1000000L;
+                update(elapsedTime);
+                accumulatedTime -= stepNanos;
+                steps++;
+            }
+
+            // too far behind (say, after a GC pause) - drop the
+            // time rather than take huge steps
+            if (accumulatedTime >= stepNanos) {
+                accumulatedTime %= stepNanos;
+            }
+            interpolation = (float)accumulatedTime / stepNanos;
 
             // draw the screen
             Graphics2D g = screen.getGraphics();
@@ -120,11 +301,8 @@ public abstract class GameCore {
             g.dispose();
             screen.update();
 
-            // don't take a nap! run as fast as possible
-            /*try {
-                Thread.sleep(20);
-            }
-            catch (InterruptedException ex) { }*/
+            // take a nap until it's time for the next frame
+            framePacer.sync();
         }
     }
 
@@ -0,0 +1,297 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.PrintStream;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+
+import com.brackeen.javagamebook.test.GameCore;
+
+/**
+    The AllocationBudget class checks that the game's update and
+    render don't allocate memory once they're warmed up, so long
+    sessions don't pause for garbage collection. A headless game
+    is run (see HeadlessSimulation), and each tick is updated and
+    drawn to an offscreen image. After the warm-up ticks, the
+    bytes allocated by each tick are measured with the
+    ThreadMXBean.
+    <p>Ticks that load a new map (after dying or reaching the
+    goal) are reported, but don't count against the budget,
+    since loading a map is expected to allocate. Neither do
+    ticks where the JVM loaded a class, which happens the first
+    time a rarely used path runs, even long after warming up.
+    If more than the allowed number of other ticks allocate more
+    than the budget, the report lists them and the program exits
+    with status 1.
+    <p>Usage:<pre>
+    java com.brackeen.javagamebook.tilegame.AllocationBudget
+        [-warmup n] [-ticks n] [-budget bytes] [-allow n]
+        [-seed n] [-rewind seconds]
+    </pre>
+    The default budget is 0 bytes per tick. A few ticks are
+    allowed over budget (-allow), since the JVM itself can
+    allocate now and then: compiled code that's thrown away
+    rebuilds the objects escape analysis had removed, like the
+    Rectangles Java2D's drawImage() creates. A leak in the game
+    allocates every tick, so it's well over. The -rewind option
+    keeps rewind snapshots (see GameManager.setRewindTime()),
+    which are included in the budget.
+    <p>Sound is out of scope. A headless game has no SoundManager
+    or MIDI player, since they need an audio device, so the
+    sounds started on hits and power-ups aren't measured.
+    SoundManager.play() reuses its players for sounds without a
+    filter, but that has to be checked on a machine with sound.
+*/
+public class AllocationBudget {
+
+    private static final int DEFAULT_WARMUP = 20000;
+    private static final int DEFAULT_TICKS = 20000;
+    private static final long DEFAULT_SEED = 1;
+    private static final int DEFAULT_ALLOWED = 3;
+    private static final int DEFAULT_STEP =
+        1000 / GameCore.DEFAULT_TICK_RATE;
+
+    private static final int SCREEN_WIDTH = 800;
+    private static final int SCREEN_HEIGHT = 600;
+
+    // most over-budget ticks listed in the report
+    private static final int MAX_LISTED = 10;
+
+    public static void main(String[] args) {
+        int warmup = DEFAULT_WARMUP;
+        int ticks = DEFAULT_TICKS;
+        long budget = 0;
+        int allowed = DEFAULT_ALLOWED;
+        long seed = DEFAULT_SEED;
+        float rewindTime = 0;
+        for (int i=0; i<args.length; i++) {
+            if (args[i].equals("-warmup") && i+1 < args.length) {
+                warmup = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-ticks") && i+1 < args.length) {
+                ticks = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-budget") && i+1 < args.length) {
+                budget = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("-allow") && i+1 < args.length) {
+                allowed = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-seed") && i+1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("-rewind") && i+1 < args.length) {
+                rewindTime = Float.parseFloat(args[++i]);
+            }
+            else {
+                System.err.println("Usage: AllocationBudget " +
+                    "[-warmup n] [-ticks n] [-budget bytes] " +
+                    "[-allow n] [-seed n] [-rewind seconds]");
+                System.exit(1);
+            }
+        }
+
+        com.sun.management.ThreadMXBean threadBean =
+            getThreadBean();
+        if (threadBean == null) {
+            System.err.println(
+                "Thread allocation measurement isn't supported");
+            System.exit(1);
+        }
+
+        AllocationBudget check = new AllocationBudget(threadBean,
+            seed, budget, allowed);
+        check.getGame().setRewindTime(rewindTime);
+        check.run(warmup, ticks);
+        check.getGame().stop();
+        check.printReport(System.out);
+        if (!check.isPassed()) {
+            System.exit(1);
+        }
+    }
+
+
+    /**
+        Gets the ThreadMXBean with per-thread allocation counts,
+        enabling them if needed, or null if there's none.
+    */
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        Object bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean)bean;
+        if (!threadBean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        return threadBean;
+    }
+
+
+    private com.sun.management.ThreadMXBean threadBean;
+    private ClassLoadingMXBean classBean;
+    private long threadId;
+    private HeadlessSimulation sim;
+    private TileMapRenderer renderer;
+    private BufferedImage screen;
+    private Graphics2D g;
+    private long budget;
+    private int allowed;
+
+    // results of the measured ticks
+    private int ticksMeasured;
+    private long totalBytes;
+    private long maxBytes;
+    private int allocatingTicks;
+    private int mapLoads;
+    private long mapLoadBytes;
+    private int classLoads;
+    private long classLoadBytes;
+    private int overBudgetTicks;
+    private int[] listedTicks = new int[MAX_LISTED];
+    private long[] listedBytes = new long[MAX_LISTED];
+
+    /**
+        Creates a new AllocationBudget for a headless game with
+        the specified seed. The check passes if at most the
+        allowed number of ticks allocate more than the budget.
+    */
+    public AllocationBudget(com.sun.management.ThreadMXBean threadBean,
+        long seed, long budget, int allowed)
+    {
+        this.threadBean = threadBean;
+        classBean = ManagementFactory.getClassLoadingMXBean();
+        threadId = Thread.currentThread().getId();
+        this.budget = budget;
+        this.allowed = allowed;
+        sim = new HeadlessSimulation(seed, DEFAULT_STEP);
+        renderer = new TileMapRenderer();
+        renderer.setBackground(
+            getGame().getResourceManager().loadImage("background.png"));
+        screen = new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT,
+            BufferedImage.TYPE_INT_RGB);
+        g = screen.createGraphics();
+    }
+
+
+    /**
+        Gets the game being measured.
+    */
+    public GameManager getGame() {
+        return sim.getGame();
+    }
+
+
+    /**
+        Gets the number of measured ticks that allocated more
+        than the budget, not counting map loads.
+    */
+    public int getOverBudgetTicks() {
+        return overBudgetTicks;
+    }
+
+
+    /**
+        Checks if no more than the allowed number of ticks were
+        over budget.
+    */
+    public boolean isPassed() {
+        return overBudgetTicks <= allowed;
+    }
+
+
+    /**
+        Runs the warm-up ticks, then measures the allocation of
+        each of the specified number of ticks.
+    */
+    public void run(int warmup, int ticks) {
+        for (int i=0; i<warmup; i++) {
+            tick();
+        }
+        for (int i=0; i<ticks; i++) {
+            measureTick(warmup + i);
+        }
+    }
+
+
+    /**
+        Updates and draws one tick, measuring how much it
+        allocates. Each tick is measured in its own call, so the
+        loop calling it being compiled (which can allocate) isn't
+        counted.
+    */
+    private void measureTick(int tickNumber) {
+        TileMap map = getGame().getMap();
+        long classes = classBean.getTotalLoadedClassCount();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        tick();
+        long bytes = threadBean.getThreadAllocatedBytes(threadId) -
+            before;
+
+        ticksMeasured++;
+        if (getGame().getMap() != map) {
+            mapLoads++;
+            mapLoadBytes += bytes;
+            return;
+        }
+        if (classBean.getTotalLoadedClassCount() != classes) {
+            // the first run of a rarely used path (or of its
+            // compiled code) loaded a class
+            classLoads++;
+            classLoadBytes += bytes;
+            return;
+        }
+        totalBytes += bytes;
+        maxBytes = Math.max(maxBytes, bytes);
+        if (bytes > 0) {
+            allocatingTicks++;
+        }
+        if (bytes > budget) {
+            if (overBudgetTicks < MAX_LISTED) {
+                listedTicks[overBudgetTicks] = tickNumber;
+                listedBytes[overBudgetTicks] = bytes;
+            }
+            overBudgetTicks++;
+        }
+    }
+
+
+    /**
+        Updates and draws one tick.
+    */
+    private void tick() {
+        sim.run(1);
+        renderer.draw(g, getGame().getMap(), SCREEN_WIDTH,
+            SCREEN_HEIGHT, 1);
+    }
+
+
+    /**
+        Prints the allocation per tick, and the ticks that were
+        over budget.
+    */
+    public void printReport(PrintStream out) {
+        int steadyTicks = ticksMeasured - mapLoads;
+        out.println("ticks:       " + ticksMeasured +
+            " measured (update and draw)");
+        out.println("allocated:   " + totalBytes + " bytes (" +
+            (steadyTicks > 0 ? totalBytes / steadyTicks : 0) +
+            " bytes/tick, " + maxBytes + " max)");
+        out.println("allocating:  " + allocatingTicks + " ticks");
+        out.println("map loads:   " + mapLoads + " (" +
+            mapLoadBytes + " bytes, not counted)");
+        out.println("class loads: " + classLoads + " (" +
+            classLoadBytes + " bytes, not counted)");
+        out.println("budget:      " + budget + " bytes/tick (" +
+            allowed + " ticks allowed over)");
+        for (int i=0; i<Math.min(overBudgetTicks, MAX_LISTED); i++) {
+            out.println("  tick " + listedTicks[i] + ": " +
+                listedBytes[i] + " bytes");
+        }
+        out.println((isPassed() ? "PASS: " : "FAIL: ") +
+            overBudgetTicks + " ticks over budget");
+    }
+}
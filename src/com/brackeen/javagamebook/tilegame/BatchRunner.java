@@ -0,0 +1,301 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.GraphicsConfiguration;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import com.brackeen.javagamebook.test.GameCore;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+import com.brackeen.javagamebook.util.ThreadPool;
+
+/**
+    The BatchRunner class plays many headless games at once, on a
+    ThreadPool with a thread for each processor, to see how
+    changes to the game's balance (like SPAWN_RATE, creature
+    speeds, and point values) play out. Each game has its own
+    seed, its own InputSource, and its own ResourceManager, which
+    shares the images loaded once by the BatchRunner. A game ends
+    when the player dies or a tick limit is reached.
+    <p>When finished, the distributions of the final score, the
+    survival time, and the time each update took are reported.
+    <p>Usage:<pre>
+    java com.brackeen.javagamebook.tilegame.BatchRunner
+        [-games n] [-threads n] [-ticks n] [-seed n] [-step ms]
+    </pre>
+    Game i uses seed + i, so a batch gives the same scores and
+    survival times every time it's run.
+*/
+public class BatchRunner {
+
+    private static final int DEFAULT_GAMES = 1000;
+    private static final int DEFAULT_TICKS = 60000;
+    private static final long DEFAULT_SEED = 1;
+    private static final int DEFAULT_STEP =
+        1000 / GameCore.DEFAULT_TICK_RATE;
+
+    public static void main(String[] args) {
+        int games = DEFAULT_GAMES;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int ticks = DEFAULT_TICKS;
+        long seed = DEFAULT_SEED;
+        int step = DEFAULT_STEP;
+        for (int i=0; i<args.length; i++) {
+            if (args[i].equals("-games") && i+1 < args.length) {
+                games = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-threads") && i+1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-ticks") && i+1 < args.length) {
+                ticks = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-seed") && i+1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("-step") && i+1 < args.length) {
+                step = Integer.parseInt(args[++i]);
+            }
+            else {
+                System.err.println("Usage: BatchRunner [-games n] " +
+                    "[-threads n] [-ticks n] [-seed n] [-step ms]");
+                System.exit(1);
+            }
+        }
+
+        BatchRunner runner = new BatchRunner(step, ticks);
+        runner.run(seed, games, threads);
+        runner.printReport(System.out);
+    }
+
+
+    private ResourceManager resources;
+    private int step;
+    private int maxTicks;
+
+    // results for each game
+    private long firstSeed;
+    private int threads;
+    private long[] scores;
+    private long[] survivalTicks;
+    private boolean[] died;
+
+    // update times (in nanoseconds) for all games, counted in
+    // power-of-two buckets
+    private long[] tickCosts = new long[64];
+    private long totalTickCost;
+    private long maxTickCost;
+    private long elapsedNanos;
+
+    /**
+        Creates a new BatchRunner that updates games with the
+        specified time step (in milliseconds), for at most the
+        specified number of ticks per game.
+    */
+    public BatchRunner(int step, int maxTicks) {
+        this.step = step;
+        this.maxTicks = maxTicks;
+        resources = new ResourceManager((GraphicsConfiguration)null);
+    }
+
+
+    /**
+        Creates the InputSource that plays the game with the
+        specified seed. By default, a BotInput.
+    */
+    protected InputSource createInputSource(long seed) {
+        return new BotInput(seed);
+    }
+
+
+    /**
+        Plays the specified number of games, with seeds starting
+        at firstSeed, on the specified number of threads. Returns
+        when all games are finished.
+    */
+    public void run(long firstSeed, int games, int threads) {
+        this.firstSeed = firstSeed;
+        this.threads = threads;
+        scores = new long[games];
+        survivalTicks = new long[games];
+        died = new boolean[games];
+        Arrays.fill(tickCosts, 0);
+        totalTickCost = 0;
+        maxTickCost = 0;
+
+        long startTime = System.nanoTime();
+        ThreadPool pool = new ThreadPool(Math.max(1, threads));
+        for (int i=0; i<games; i++) {
+            pool.runTask(createTask(i));
+        }
+        pool.join();
+        elapsedNanos = System.nanoTime() - startTime;
+    }
+
+
+    private Runnable createTask(final int index) {
+        return new Runnable() {
+            public void run() {
+                playGame(index);
+            }
+        };
+    }
+
+
+    /**
+        Plays one game and records its results.
+    */
+    private void playGame(int index) {
+        long seed = firstSeed + index;
+        GameManager game = new GameManager(seed);
+        game.initHeadless(new ResourceManager(resources));
+        InputSource input = createInputSource(seed);
+
+        long[] costs = new long[tickCosts.length];
+        long totalCost = 0;
+        long maxCost = 0;
+        int ticks = 0;
+        boolean dead = false;
+        while (ticks < maxTicks && !dead) {
+            input.update(game);
+            long startTime = System.nanoTime();
+            game.update(step);
+            long cost = System.nanoTime() - startTime;
+            ticks++;
+
+            costs[63 - Long.numberOfLeadingZeros(Math.max(1, cost))]++;
+            totalCost += cost;
+            maxCost = Math.max(maxCost, cost);
+
+            Creature player = (Creature)game.getMap().getPlayer();
+            dead = (player.getState() == Creature.STATE_DEAD);
+        }
+
+        scores[index] = game.getMap().getScore();
+        survivalTicks[index] = ticks;
+        died[index] = dead;
+        synchronized (this) {
+            for (int i=0; i<costs.length; i++) {
+                tickCosts[i] += costs[i];
+            }
+            totalTickCost += totalCost;
+            maxTickCost = Math.max(maxTickCost, maxCost);
+        }
+    }
+
+
+    /**
+        Prints the distributions of score, survival time, and
+        update time.
+    */
+    public void printReport(PrintStream out) {
+        int games = scores.length;
+        long totalTicks = 0;
+        int deaths = 0;
+        for (int i=0; i<games; i++) {
+            totalTicks += survivalTicks[i];
+            if (died[i]) {
+                deaths++;
+            }
+        }
+        double seconds = elapsedNanos / 1e9;
+        out.println("games:       " + games + " (seeds " + firstSeed +
+            " to " + (firstSeed + games - 1) + ", " + threads +
+            " threads)");
+        out.println("wall time:   " + seconds + " s");
+        out.println("ticks:       " + totalTicks + " (" +
+            (seconds > 0 ? Math.round(totalTicks / seconds) : 0) +
+            " ticks/sec)");
+        out.println("deaths:      " + deaths + " (others reached " +
+            maxTicks + " ticks)");
+        out.println(label("") + pad("mean", 9) + pad("min", 9) +
+            pad("p50", 9) + pad("p90", 9) + pad("p99", 9) +
+            pad("max", 9));
+        printDistribution(out, "score", scores, 1);
+        // survival time in seconds of game time
+        printDistribution(out, "survival s", survivalTicks,
+            step / 1000.0);
+
+        // update time in microseconds
+        long count = 0;
+        for (int i=0; i<tickCosts.length; i++) {
+            count += tickCosts[i];
+        }
+        out.println(label("tick us") +
+            pad(format(count > 0 ?
+                totalTickCost / 1000.0 / count : 0), 9) +
+            pad("-", 9) +
+            pad("<" + getCostPercentile(count, 0.5) / 1000, 9) +
+            pad("<" + getCostPercentile(count, 0.9) / 1000, 9) +
+            pad("<" + getCostPercentile(count, 0.99) / 1000, 9) +
+            pad(format(maxTickCost / 1000.0), 9));
+    }
+
+
+    /**
+        Gets the upper bound (in nanoseconds) of the bucket
+        holding the specified fraction of update times.
+    */
+    private long getCostPercentile(long count, double fraction) {
+        long target = (long)Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i=0; i<tickCosts.length; i++) {
+            seen += tickCosts[i];
+            if (seen >= target && seen > 0) {
+                return (i < 62) ? (1L << (i + 1)) : Long.MAX_VALUE;
+            }
+        }
+        return 0;
+    }
+
+
+    private void printDistribution(PrintStream out, String name,
+        long[] values, double scale)
+    {
+        if (values.length == 0) {
+            return;
+        }
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        double total = 0;
+        for (int i=0; i<sorted.length; i++) {
+            total += sorted[i];
+        }
+        out.println(label(name) +
+            pad(format(total / sorted.length * scale), 9) +
+            pad(format(sorted[0] * scale), 9) +
+            pad(format(getPercentile(sorted, 0.5) * scale), 9) +
+            pad(format(getPercentile(sorted, 0.9) * scale), 9) +
+            pad(format(getPercentile(sorted, 0.99) * scale), 9) +
+            pad(format(sorted[sorted.length - 1] * scale), 9));
+    }
+
+
+    private static long getPercentile(long[] sorted, double fraction) {
+        int index = (int)Math.ceil(sorted.length * fraction) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+
+    private static String format(double value) {
+        return String.valueOf(Math.round(value * 10) / 10.0);
+    }
+
+
+    private static String label(String name) {
+        StringBuffer buffer = new StringBuffer(name);
+        while (buffer.length() < 12) {
+            buffer.append(' ');
+        }
+        return buffer.toString();
+    }
+
+
+    private static String pad(String s, int width) {
+        StringBuffer buffer = new StringBuffer(width);
+        buffer.append(s);
+        while (buffer.length() < width) {
+            buffer.insert(0, ' ');
+        }
+        return buffer.toString();
+    }
+}
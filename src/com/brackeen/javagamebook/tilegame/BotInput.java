@@ -0,0 +1,67 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.util.Random;
+
+import com.brackeen.javagamebook.input.GameAction;
+
+/**
+    The BotInput class plays the game like a (not very smart)
+    player would: it wanders left and right across the map and
+    keeps firing. Its decisions come from its own Random, so the
+    same seed always plays the same way.
+*/
+public class BotInput implements InputSource {
+
+    // how often (in ticks) the bot picks a new place to go
+    private static final int BOT_TURN_TICKS = 100;
+    // how often (in ticks) the bot fires
+    private static final int BOT_SHOOT_TICKS = 8;
+
+    private Random rand;
+    private float targetX;
+    private int tick;
+
+    /**
+        Creates a new BotInput with the specified seed.
+    */
+    public BotInput(long seed) {
+        rand = new Random(seed);
+    }
+
+
+    /**
+        Gets the bot's Random, which can also be used for other
+        decisions that should follow the same seed.
+    */
+    public Random getRandom() {
+        return rand;
+    }
+
+
+    public void update(GameManager game) {
+        TileMap map = game.getMap();
+        if (tick % BOT_TURN_TICKS == 0) {
+            targetX = rand.nextInt(
+                TileMapRenderer.tilesToPixels(map.getWidth() - 1));
+        }
+        GameAction left = game.getMoveLeftAction();
+        GameAction right = game.getMoveRightAction();
+        float playerX = map.getPlayer().getX();
+        left.release();
+        right.release();
+        if (playerX > targetX + TileMapRenderer.tilesToPixels(1)) {
+            left.press();
+        }
+        else if (playerX < targetX - TileMapRenderer.tilesToPixels(1)) {
+            right.press();
+        }
+        GameAction shoot = game.getShootAction();
+        if (tick % BOT_SHOOT_TICKS == 0) {
+            shoot.press();
+        }
+        else {
+            shoot.release();
+        }
+        tick++;
+    }
+}
@@ -0,0 +1,371 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.Image;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The ChunkedTileMap class is a TileMap for maps too wide to
+    keep in memory. The map is split into chunks of CHUNK_WIDTH
+    columns. Only the chunks near the camera are loaded: their
+    tiles are copied from a memory-mapped compiled map (see
+    MapCompiler) when the camera comes near, and the least
+    recently used chunks are unloaded when more than the maximum
+    are loaded.
+    <p>Sprites in a chunk that isn't loaded are kept as records
+    (see Snapshotter), and are created again from the SpritePools
+    when the chunk is loaded. Sprites added to a chunk that isn't
+    loaded, like mushrooms spawned across the whole map, go
+    straight to records. Columns that aren't loaded are solid, so
+    Sprites stay in the loaded chunks.
+    <p>The memory used grows only slightly with the width of the
+    map: a few bytes per column, plus the records of Sprites in
+    unloaded chunks. The tile rows only have room for the
+    loaded chunks.
+*/
+public class ChunkedTileMap extends TileMap {
+
+    /**
+        Number of columns in a chunk.
+    */
+    public static final int CHUNK_WIDTH = 32;
+
+    /**
+        Number of chunks on each side of the camera's chunk that
+        are always loaded.
+    */
+    public static final int LOAD_RADIUS = 1;
+
+    /**
+        Default maximum number of loaded chunks.
+    */
+    public static final int DEFAULT_MAX_CHUNKS = 8;
+
+    private ResourceManager resourceManager;
+    private Snapshotter snapshotter;
+
+    // tiles of the compiled map, one byte per tile, row by row
+    private ByteBuffer tileData;
+    private int tileDataOffset;
+
+    private int numChunks;
+    private int maxChunks;
+    // loaded chunks, least recently used first
+    private int[] loadedChunks;
+    private int numLoaded;
+    // slot of each chunk, or -1 if it isn't loaded
+    private int[] chunkSlots;
+    private int[] freeSlots;
+    private int numFreeSlots;
+    private int centerChunk = -1;
+
+    // records of the Sprites in each chunk that isn't loaded
+    private int[][] records;
+    private int[] recordCounts;
+    private int[] recordLiveCounts;
+
+    /**
+        Creates a new ChunkedTileMap from the tiles of a compiled
+        map. The tile data has one byte per tile, row by row,
+        starting at the specified offset; each byte is an index
+        into the palette (0 for no tile). No chunks are loaded
+        until pageAround() is called.
+    */
+    public ChunkedTileMap(ResourceManager resourceManager,
+        ByteBuffer tileData, int tileDataOffset, int width,
+        int height, Image[] palette, int maxChunks)
+    {
+        super(width, height,
+            Math.max(maxChunks, 2 * LOAD_RADIUS + 1) * CHUNK_WIDTH,
+            palette);
+        this.resourceManager = resourceManager;
+        this.tileData = tileData;
+        this.tileDataOffset = tileDataOffset;
+        this.maxChunks = Math.max(maxChunks, 2 * LOAD_RADIUS + 1);
+        snapshotter = new Snapshotter(resourceManager);
+
+        numChunks = (width + CHUNK_WIDTH - 1) / CHUNK_WIDTH;
+        loadedChunks = new int[this.maxChunks];
+        chunkSlots = new int[numChunks];
+        for (int i=0; i<numChunks; i++) {
+            chunkSlots[i] = -1;
+        }
+        freeSlots = new int[this.maxChunks];
+        for (int i=0; i<this.maxChunks; i++) {
+            freeSlots[numFreeSlots++] = this.maxChunks - 1 - i;
+        }
+        records = new int[numChunks][];
+        recordCounts = new int[numChunks];
+        recordLiveCounts = new int[NUM_TYPES];
+    }
+
+
+    /**
+        Gets the number of chunks in this map.
+    */
+    public int getNumChunks() {
+        return numChunks;
+    }
+
+
+    /**
+        Gets the number of loaded chunks.
+    */
+    public int getLoadedChunkCount() {
+        return numLoaded;
+    }
+
+
+    /**
+        Checks if the chunk containing a column is loaded.
+    */
+    public boolean isLoaded(int tileX) {
+        return chunkSlots[getChunk(tileX)] != -1;
+    }
+
+
+    /**
+        Loads the chunks near the specified camera location (in
+        pixels), unloading the least recently used chunks that
+        aren't near it if too many are loaded. Does nothing if
+        the camera is still in the same chunk.
+    */
+    public void pageAround(float x) {
+        int center = getChunk(TileMapRenderer.pixelsToTiles(
+            Math.round(x)));
+        if (center == centerChunk) {
+            return;
+        }
+        centerChunk = center;
+        int first = Math.max(0, center - LOAD_RADIUS);
+        int last = Math.min(numChunks - 1, center + LOAD_RADIUS);
+
+        // mark the chunks already loaded as recently used, and
+        // count the ones that aren't
+        int missing = 0;
+        for (int c=first; c<=last; c++) {
+            if (chunkSlots[c] != -1) {
+                markUsed(c);
+            }
+            else {
+                missing++;
+            }
+        }
+
+        // make room
+        int i = 0;
+        while (numLoaded + missing > maxChunks && i < numLoaded) {
+            int c = loadedChunks[i];
+            if (c < first || c > last) {
+                removeLoaded(i);
+                unloadChunk(c);
+            }
+            else {
+                i++;
+            }
+        }
+
+        for (int c=first; c<=last; c++) {
+            if (chunkSlots[c] == -1) {
+                loadChunk(c);
+            }
+        }
+
+        // keep Sprites that wandered out of the loaded chunks
+        saveStrays();
+    }
+
+
+    /**
+        Adds a Sprite to this map. If the Sprite is in a chunk
+        that isn't loaded, it's saved as a record and released
+        to its SpritePool, so the caller must not use it
+        afterwards.
+    */
+    public void addSprite(Sprite sprite) {
+        int chunk = getChunk(sprite);
+        if (chunkSlots[chunk] != -1) {
+            super.addSprite(sprite);
+        }
+        else {
+            saveSprite(sprite, chunk);
+            resourceManager.releaseSprite(sprite);
+        }
+    }
+
+
+    /**
+        Removes every Sprite of the specified type from this map,
+        including the ones in chunks that aren't loaded.
+    */
+    public void removeSprites(int type) {
+        super.removeSprites(type);
+        for (int c=0; c<numChunks; c++) {
+            int[] chunkRecords = records[c];
+            int count = recordCounts[c];
+            int kept = 0;
+            for (int j=0; j<count; j++) {
+                int offset = j * Snapshotter.RECORD_SIZE;
+                if (snapshotter.getType(chunkRecords, offset) == type) {
+                    continue;
+                }
+                System.arraycopy(chunkRecords, offset, chunkRecords,
+                    kept * Snapshotter.RECORD_SIZE,
+                    Snapshotter.RECORD_SIZE);
+                kept++;
+            }
+            recordCounts[c] = kept;
+        }
+        recordLiveCounts[type] = 0;
+    }
+
+
+    /**
+        Gets the number of Creatures of the specified type in
+        this map that are alive, including the ones in chunks
+        that aren't loaded.
+    */
+    public int getLiveCount(int type) {
+        return super.getLiveCount(type) + recordLiveCounts[type];
+    }
+
+
+    private int getChunk(int tileX) {
+        return Math.max(0, Math.min(numChunks - 1,
+            tileX / CHUNK_WIDTH));
+    }
+
+
+    private int getChunk(Sprite sprite) {
+        return getChunk(TileMapRenderer.pixelsToTiles(
+            Math.round(sprite.getX())));
+    }
+
+
+    /**
+        Moves a loaded chunk to the end of the least recently
+        used order.
+    */
+    private void markUsed(int chunk) {
+        for (int i=0; i<numLoaded; i++) {
+            if (loadedChunks[i] == chunk) {
+                removeLoaded(i);
+                loadedChunks[numLoaded++] = chunk;
+                return;
+            }
+        }
+    }
+
+
+    /**
+        Removes the chunk at the specified index from the least
+        recently used order.
+    */
+    private void removeLoaded(int index) {
+        System.arraycopy(loadedChunks, index + 1, loadedChunks, index,
+            numLoaded - index - 1);
+        numLoaded--;
+    }
+
+
+    /**
+        Reads a chunk's tiles into a free slot and creates the
+        Sprites saved in it.
+    */
+    private void loadChunk(int chunk) {
+        int slot = freeSlots[--numFreeSlots];
+        chunkSlots[chunk] = slot;
+        loadedChunks[numLoaded++] = chunk;
+
+        // the map's palette is the file's palette, so the tile
+        // indices are copied as they are
+        int firstColumn = chunk * CHUNK_WIDTH;
+        int count = Math.min(CHUNK_WIDTH, getWidth() - firstColumn);
+        loadColumns(firstColumn, count, slot * CHUNK_WIDTH, tileData,
+            tileDataOffset, getWidth());
+        getSpriteGrid().mapColumns(firstColumn, count,
+            slot * CHUNK_WIDTH);
+
+        // create the chunk's Sprites
+        int[] chunkRecords = records[chunk];
+        for (int j=0; j<recordCounts[chunk]; j++) {
+            int offset = j * Snapshotter.RECORD_SIZE;
+            if (snapshotter.isAlive(chunkRecords, offset)) {
+                recordLiveCounts[
+                    snapshotter.getType(chunkRecords, offset)]--;
+            }
+            super.addSprite(snapshotter.loadSprite(chunkRecords,
+                offset));
+        }
+        recordCounts[chunk] = 0;
+    }
+
+
+    /**
+        Saves a chunk's Sprites as records, releases them, and
+        frees the chunk's slot.
+    */
+    private void unloadChunk(int chunk) {
+        Iterator i = getSprites();
+        while (i.hasNext()) {
+            Sprite sprite = (Sprite)i.next();
+            if (getChunk(sprite) == chunk) {
+                i.remove();
+                saveSprite(sprite, chunk);
+                resourceManager.releaseSprite(sprite);
+            }
+        }
+
+        int firstColumn = chunk * CHUNK_WIDTH;
+        int count = Math.min(CHUNK_WIDTH, getWidth() - firstColumn);
+        unloadColumns(firstColumn, count);
+        getSpriteGrid().unmapColumns(firstColumn, count);
+        freeSlots[numFreeSlots++] = chunkSlots[chunk];
+        chunkSlots[chunk] = -1;
+    }
+
+
+    /**
+        Saves and releases Sprites that are in chunks that aren't
+        loaded.
+    */
+    private void saveStrays() {
+        Iterator i = getSprites();
+        while (i.hasNext()) {
+            Sprite sprite = (Sprite)i.next();
+            int chunk = getChunk(sprite);
+            if (chunkSlots[chunk] == -1) {
+                i.remove();
+                saveSprite(sprite, chunk);
+                resourceManager.releaseSprite(sprite);
+            }
+        }
+    }
+
+
+    /**
+        Adds a record of a Sprite to a chunk.
+    */
+    private void saveSprite(Sprite sprite, int chunk) {
+        int[] chunkRecords = records[chunk];
+        int offset = recordCounts[chunk] * Snapshotter.RECORD_SIZE;
+        if (chunkRecords == null ||
+            offset + Snapshotter.RECORD_SIZE > chunkRecords.length)
+        {
+            int[] newRecords = new int[Math.max(
+                4 * Snapshotter.RECORD_SIZE, offset * 2)];
+            if (chunkRecords != null) {
+                System.arraycopy(chunkRecords, 0, newRecords, 0, offset);
+            }
+            chunkRecords = newRecords;
+            records[chunk] = chunkRecords;
+        }
+        snapshotter.saveSprite(sprite, chunkRecords, offset);
+        recordCounts[chunk]++;
+        if (snapshotter.isAlive(chunkRecords, offset)) {
+            recordLiveCounts[snapshotter.getType(chunkRecords, offset)]++;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+import com.brackeen.javagamebook.tilegame.sprites.Player;
+
+/**
+    The CollisionPairs class collects the pairs of Sprites that
+    collide in an update, and handles them by calling the Handler
+    for the pair's types. Once every creature has moved, the
+    colliding pairs are found (see findPairs(), findOverlaps()
+    and findImpact()) and written to the buffer; then dispatch()
+    calls the Handlers, in the order the pairs were found.
+    <p>Handlers are kept in a table indexed by the two Sprites'
+    types. Each type also has a layer mask: the types it has
+    Handlers with. Pairs no Handler cares about, like two
+    Centipedes, are skipped before their bounds are even
+    compared, and never written to the buffer.
+    <p>Each pair is only written once. Most pairs are found by
+    findPairs(), in one pass over the map's SpatialGrid.
+    Fast-moving creatures (see Creature.isFastMover()) find
+    their own pairs, checking their whole path for the first
+    Sprite they run into, and Sprites that aren't in the grid,
+    like the player, find theirs with findOverlaps().
+    <p>The buffer keeps each pair as two int Sprite handles (see
+    TileMap.getSpriteHandle()) and the index of its Handler, in
+    primitive arrays that are allocated once and reused every
+    tick; they only grow if a tick has more pairs than ever
+    before.
+*/
+public class CollisionPairs {
+
+    /**
+        Handles collisions between two types of Sprites.
+    */
+    public interface Handler {
+        /**
+            Handles a collision between a Sprite of the Handler's
+            first type and a Sprite of its second type.
+        */
+        public void collide(Sprite sprite, Sprite other);
+    }
+
+
+    /**
+        Type of the player, after the TileMap types.
+    */
+    public static final int TYPE_PLAYER = TileMap.NUM_TYPES;
+
+    /**
+        Number of collision types: the TileMap types and the
+        player.
+    */
+    public static final int NUM_TYPES = TileMap.NUM_TYPES + 1;
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    // handle of the map's player, which isn't in the map's
+    // SpriteBag
+    private static final int PLAYER_HANDLE = -2;
+
+    // Handlers by (type, other type), and whether the Handler
+    // was set for the other order
+    private Handler[] handlers;
+    private boolean[] swapped;
+    // types each type collides with, one bit per type
+    private int[] layerMasks;
+    // types each type finds its pairs with, one bit per type
+    private int[] findMasks;
+
+    private int size;
+    private int[] pairHandles;
+    private int[] pairHandlers;
+
+    // the map, the Sprite finding pairs, and the filter of the
+    // current findPairs(), findOverlaps() or findImpact() call
+    private TileMap map;
+    private Sprite finder;
+    private int finderMask;
+    private int finderFindMask;
+    private SpatialGrid.Filter finderFilter;
+
+    private SpatialGrid.Visitor overlapVisitor =
+        new SpatialGrid.Visitor()
+    {
+        public boolean visit(Sprite other) {
+            // fast movers find their own pairs
+            if (isWanted(other) && !isFastMover(other) &&
+                finderFilter.accept(finder, other))
+            {
+                add(finder, other);
+            }
+            return true;
+        }
+    };
+    private SpatialGrid.PairVisitor pairVisitor =
+        new SpatialGrid.PairVisitor()
+    {
+        public boolean isWanted(Sprite sprite, Sprite other) {
+            // fast movers find their own pairs
+            return canCollide(getType(sprite), getType(other)) &&
+                !isFastMover(sprite) && !isFastMover(other) &&
+                isAlive(sprite) && isAlive(other);
+        }
+
+        public void visit(Sprite sprite, Sprite other) {
+            // dormant Sprites haven't moved, so two of them
+            // can't have run into each other
+            if (map.isDormant(sprite) && map.isDormant(other)) {
+                return;
+            }
+            int index = getType(sprite) * NUM_TYPES + getType(other);
+            if (swapped[index]) {
+                Sprite temp = sprite;
+                sprite = other;
+                other = temp;
+            }
+            if (finderFilter.accept(sprite, other)) {
+                add(sprite, other);
+            }
+        }
+    };
+    private SpatialGrid.Filter impactFilter =
+        new SpatialGrid.Filter()
+    {
+        public boolean accept(Sprite sprite, Sprite other) {
+            // of two fast movers, the one of the Handler's first
+            // type finds the pair
+            return isWanted(other) &&
+                (!isFastMover(other) ||
+                (finderFindMask & (1 << getType(other))) != 0) &&
+                finderFilter.accept(sprite, other);
+        }
+    };
+
+    /**
+        Creates a new CollisionPairs with no Handlers.
+    */
+    public CollisionPairs() {
+        handlers = new Handler[NUM_TYPES * NUM_TYPES];
+        swapped = new boolean[NUM_TYPES * NUM_TYPES];
+        layerMasks = new int[NUM_TYPES];
+        findMasks = new int[NUM_TYPES];
+        pairHandles = new int[DEFAULT_CAPACITY * 2];
+        pairHandlers = new int[DEFAULT_CAPACITY];
+    }
+
+
+    /**
+        Gets the collision type of a Sprite: TYPE_PLAYER for the
+        player, or its TileMap type.
+    */
+    public static int getType(Sprite sprite) {
+        if (sprite instanceof Player) {
+            return TYPE_PLAYER;
+        }
+        return TileMap.getType(sprite);
+    }
+
+
+    /**
+        Sets the Handler for collisions between Sprites of two
+        different types, and puts each type in the other's layer
+        mask. The Handler is called with the Sprite of the first
+        type first. findOverlaps() only finds pairs for the
+        Sprite of the first type, so Sprites that aren't in the
+        map's SpatialGrid, like the player, must be the first
+        type.
+    */
+    public void setHandler(int type, int otherType, Handler handler) {
+        if (type == otherType) {
+            throw new IllegalArgumentException(
+                "Types must be different: " + type);
+        }
+        int index = type * NUM_TYPES + otherType;
+        int swappedIndex = otherType * NUM_TYPES + type;
+        handlers[index] = handler;
+        handlers[swappedIndex] = handler;
+        swapped[index] = false;
+        swapped[swappedIndex] = true;
+        layerMasks[type] |= (1 << otherType);
+        layerMasks[otherType] |= (1 << type);
+        findMasks[type] |= (1 << otherType);
+        findMasks[otherType] &= ~(1 << type);
+    }
+
+
+    /**
+        Checks if Sprites of two types can collide, that is, if
+        there is a Handler for them.
+    */
+    public boolean canCollide(int type, int otherType) {
+        return (layerMasks[type] & (1 << otherType)) != 0;
+    }
+
+
+    /**
+        Gets the number of pairs waiting to be dispatched.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+        Removes every pair from the buffer.
+    */
+    public void clear() {
+        size = 0;
+    }
+
+
+    /**
+        Finds the pairs of Sprites in the map's SpatialGrid that
+        overlap and have a Handler, in one pass over the grid's
+        cells, and adds each pair the filter accepts (the narrow
+        phase). The filter is called with the Sprite of the
+        Handler's first type first. Fast movers aren't paired
+        here, since they find their own pairs, and neither are
+        two dormant Sprites. Creatures that aren't alive don't
+        collide.
+    */
+    public void findPairs(TileMap map, SpatialGrid.Filter filter) {
+        this.map = map;
+        finderFilter = filter;
+        map.getSpriteGrid().queryPairs(pairVisitor);
+        finderFilter = null;
+        this.map = null;
+    }
+
+
+    /**
+        Finds the Sprites in the map's SpatialGrid that the
+        specified Sprite overlaps and has Handlers for, and adds
+        a pair for each one the filter accepts. This is for
+        Sprites that aren't in the grid, like the player. Fast
+        movers aren't paired here, since they find their own
+        pairs. Creatures that aren't alive don't collide.
+    */
+    public void findOverlaps(TileMap map, Sprite sprite,
+        SpatialGrid.Filter filter)
+    {
+        int mask = findMasks[getType(sprite)];
+        if (mask == 0 || !isAlive(sprite)) {
+            return;
+        }
+        this.map = map;
+        finder = sprite;
+        finderMask = mask;
+        finderFilter = filter;
+        map.getSpriteGrid().queryOverlaps(sprite, overlapVisitor);
+        finder = null;
+        finderFilter = null;
+        this.map = null;
+    }
+
+
+    /**
+        Finds the first Sprite, accepted by the filter, that a
+        fast-moving creature ran into while moving from (startX,
+        startY) to its current location, and adds a pair for it.
+        The creature is moved back to where it touched the
+        Sprite, and re-indexed in the map's SpatialGrid.
+    */
+    public void findImpact(TileMap map, Creature creature,
+        float startX, float startY, SpatialGrid.Filter filter)
+    {
+        int type = getType(creature);
+        if (layerMasks[type] == 0 || !creature.isAlive()) {
+            return;
+        }
+        SpatialGrid grid = map.getSpriteGrid();
+        this.map = map;
+        finderMask = layerMasks[type];
+        finderFindMask = findMasks[type];
+        finderFilter = filter;
+        Sprite other = grid.findFirstImpact(creature, startX, startY,
+            impactFilter);
+        finderFilter = null;
+        if (other != null) {
+            float time = grid.getImpactTime();
+            creature.setX(startX + (creature.getX() - startX) * time);
+            creature.setY(startY + (creature.getY() - startY) * time);
+            grid.update(creature);
+            add(creature, other);
+        }
+        this.map = null;
+    }
+
+
+    /**
+        Calls the Handler of each pair, in the order the pairs
+        were found, then clears the buffer. The pairs' handles
+        are looked up in the specified map, which must be the
+        map they were found in. Pairs the filter doesn't accept
+        (for example, if a Handler earlier in the update killed
+        one of the Sprites) are skipped.
+    */
+    public void dispatch(TileMap map, SpatialGrid.Filter filter) {
+        for (int i=0; i<size; i++) {
+            Sprite sprite = getSprite(map, pairHandles[i*2]);
+            Sprite other = getSprite(map, pairHandles[i*2+1]);
+            if (sprite != null && other != null &&
+                filter.accept(sprite, other))
+            {
+                handlers[pairHandlers[i]].collide(sprite, other);
+            }
+        }
+        clear();
+    }
+
+
+    private boolean isWanted(Sprite other) {
+        return (finderMask & (1 << getType(other))) != 0 &&
+            isAlive(other);
+    }
+
+
+    private static boolean isAlive(Sprite sprite) {
+        return !(sprite instanceof Creature) ||
+            ((Creature)sprite).isAlive();
+    }
+
+
+    private static boolean isFastMover(Sprite sprite) {
+        return (sprite instanceof Creature) &&
+            ((Creature)sprite).isFastMover();
+    }
+
+
+    /**
+        Adds a pair, in the order of its Handler's types.
+    */
+    private void add(Sprite sprite, Sprite other) {
+        int index = getType(sprite) * NUM_TYPES + getType(other);
+        if (swapped[index]) {
+            Sprite temp = sprite;
+            sprite = other;
+            other = temp;
+            index = getType(sprite) * NUM_TYPES + getType(other);
+        }
+        if (size == pairHandlers.length) {
+            grow();
+        }
+        pairHandles[size*2] = getHandle(sprite);
+        pairHandles[size*2+1] = getHandle(other);
+        pairHandlers[size] = index;
+        size++;
+    }
+
+
+    private int getHandle(Sprite sprite) {
+        if (sprite == map.getPlayer()) {
+            return PLAYER_HANDLE;
+        }
+        return map.getSpriteHandle(sprite);
+    }
+
+
+    private static Sprite getSprite(TileMap map, int handle) {
+        if (handle == PLAYER_HANDLE) {
+            return map.getPlayer();
+        }
+        return map.getSpriteByHandle(handle);
+    }
+
+
+    private void grow() {
+        int capacity = pairHandlers.length * 2;
+        int[] newHandles = new int[capacity * 2];
+        int[] newHandlers = new int[capacity];
+        System.arraycopy(pairHandles, 0, newHandles, 0, size * 2);
+        System.arraycopy(pairHandlers, 0, newHandlers, 0, size);
+        pairHandles = newHandles;
+        pairHandlers = newHandlers;
+    }
+}
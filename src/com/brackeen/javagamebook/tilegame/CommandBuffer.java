@@ -0,0 +1,203 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+
+/**
+    The CommandBuffer class collects changes to a map - spawning
+    Sprites, removing Sprites, and changing creatures' state or
+    health - so they can be applied together at the end of an
+    update, instead of while the map's Sprites are being
+    iterated. Commands are applied in the order they were added.
+    <p>The buffer's arrays are allocated once and reused every
+    tick; they only grow if a tick has more commands than ever
+    before. Sprites and types waiting to be removed or killed
+    are also kept in a set and a type mask, so isPendingDeath()
+    doesn't search the commands.
+*/
+public class CommandBuffer {
+
+    private static final int SPAWN = 0;
+    private static final int DESPAWN = 1;
+    private static final int DESPAWN_TYPE = 2;
+    private static final int SET_STATE = 3;
+    private static final int ADD_HEALTH = 4;
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private int size;
+    private int[] ops;
+    private Sprite[] sprites;
+    private int[] args1;
+    private int[] args2;
+
+    // Sprites waiting to be removed or set to the dead state,
+    // and types waiting to be removed (one bit per type)
+    private SpriteBag pendingDeaths;
+    private int pendingDeathTypes;
+
+    /**
+        Creates a new, empty CommandBuffer.
+    */
+    public CommandBuffer() {
+        ops = new int[DEFAULT_CAPACITY];
+        sprites = new Sprite[DEFAULT_CAPACITY];
+        args1 = new int[DEFAULT_CAPACITY];
+        args2 = new int[DEFAULT_CAPACITY];
+        pendingDeaths = new SpriteBag(DEFAULT_CAPACITY);
+    }
+
+
+    /**
+        Requests a new Sprite like the specified host Sprite be
+        added to the map at the specified tile.
+    */
+    public void spawn(Sprite hostSprite, int tileX, int tileY) {
+        add(SPAWN, hostSprite, tileX, tileY);
+    }
+
+
+    /**
+        Requests a Sprite be removed from the map and released
+        for reuse.
+    */
+    public void despawn(Sprite sprite) {
+        add(DESPAWN, sprite, 0, 0);
+        addPendingDeath(sprite);
+    }
+
+
+    /**
+        Requests every Sprite of the specified type (a TileMap
+        type) be removed from the map and released for reuse.
+    */
+    public void despawnAll(int type) {
+        add(DESPAWN_TYPE, null, type, 0);
+        pendingDeathTypes |= (1 << type);
+    }
+
+
+    /**
+        Requests a Creature's state be changed.
+    */
+    public void setState(Creature creature, int state) {
+        add(SET_STATE, creature, state, 0);
+        if (state == Creature.STATE_DEAD) {
+            addPendingDeath(creature);
+        }
+    }
+
+
+    /**
+        Requests a Creature's health be changed by the specified
+        amount. Health doesn't go below zero, and Creatures that
+        are no longer alive when the command is applied aren't
+        changed.
+    */
+    public void addHealth(Creature creature, int amount) {
+        add(ADD_HEALTH, creature, amount, 0);
+    }
+
+
+    /**
+        Checks if a Sprite is waiting to be removed or set to
+        the dead state. Takes constant time, however many
+        commands are waiting.
+    */
+    public boolean isPendingDeath(Sprite sprite) {
+        if ((pendingDeathTypes & (1 << TileMap.getType(sprite))) != 0) {
+            return true;
+        }
+        return !pendingDeaths.isEmpty() && pendingDeaths.contains(sprite);
+    }
+
+
+    /**
+        Gets the number of commands waiting to be applied.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+        Applies all waiting commands to the specified map, in
+        order, then clears the buffer.
+    */
+    public void apply(TileMap map, ResourceManager resourceManager) {
+        for (int i=0; i<size; i++) {
+            Sprite sprite = sprites[i];
+            switch (ops[i]) {
+                case SPAWN:
+                    resourceManager.addSprite(map, sprite,
+                        args1[i], args2[i]);
+                    break;
+                case DESPAWN:
+                    // might have been removed already
+                    if (map.removeSprite(sprite)) {
+                        resourceManager.releaseSprite(sprite);
+                    }
+                    break;
+                case DESPAWN_TYPE:
+                    SpriteBag typed = map.getSprites(args1[i]);
+                    for (int j=0; j<typed.size(); j++) {
+                        resourceManager.releaseSprite(typed.get(j));
+                    }
+                    map.removeSprites(args1[i]);
+                    break;
+                case SET_STATE:
+                    ((Creature)sprite).setState(args1[i]);
+                    break;
+                case ADD_HEALTH:
+                    Creature creature = (Creature)sprite;
+                    if (creature.isAlive()) {
+                        creature.setHealth(Math.max(0,
+                            creature.getHealth() + args1[i]));
+                        // a hit wakes up a dormant creature
+                        map.wake(creature);
+                    }
+                    break;
+            }
+            sprites[i] = null;
+        }
+        size = 0;
+        pendingDeaths.clear();
+        pendingDeathTypes = 0;
+    }
+
+
+    private void addPendingDeath(Sprite sprite) {
+        if (!pendingDeaths.contains(sprite)) {
+            pendingDeaths.add(sprite);
+        }
+    }
+
+
+    private void add(int op, Sprite sprite, int arg1, int arg2) {
+        if (size == ops.length) {
+            grow();
+        }
+        ops[size] = op;
+        sprites[size] = sprite;
+        args1[size] = arg1;
+        args2[size] = arg2;
+        size++;
+    }
+
+
+    private void grow() {
+        int capacity = ops.length * 2;
+        int[] newOps = new int[capacity];
+        Sprite[] newSprites = new Sprite[capacity];
+        int[] newArgs1 = new int[capacity];
+        int[] newArgs2 = new int[capacity];
+        System.arraycopy(ops, 0, newOps, 0, size);
+        System.arraycopy(sprites, 0, newSprites, 0, size);
+        System.arraycopy(args1, 0, newArgs1, 0, size);
+        System.arraycopy(args2, 0, newArgs2, 0, size);
+        ops = newOps;
+        sprites = newSprites;
+        args1 = newArgs1;
+        args2 = newArgs2;
+    }
+}
@@ -0,0 +1,697 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.Image;
+
+import com.brackeen.javagamebook.graphics.Animation;
+import com.brackeen.javagamebook.graphics.CollisionMask;
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.sprites.Centipede;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+
+/**
+    The EntityStore class is a data-oriented alternative to
+    keeping every creature as a Sprite object. Each entity is an
+    index into parallel arrays of primitives (position, velocity,
+    health, state, type, and animation time), and the game
+    systems - movement, tile collision, animation, and lifetime -
+    run as tight loops over those arrays, switching on the type
+    instead of calling virtual methods.
+    <p>Entity types use the TileMap type constants. Each type is
+    defined from a "host" Creature, which supplies its
+    Animations, size, speed, and health, and behaves like that
+    Creature: centipedes turn and drop a row when they hit a
+    wall, spiders bounce, lasers die when they hit something
+    vertically, and mushrooms sit still.
+    <p>For drawing, getView() returns a Sprite whose methods read
+    and write the arrays. Entity indexes change when dead entities
+    are removed at the end of update(). Like any Sprite, a view
+    can be cloned: the clone views a copy of the entity in a new,
+    one-entity store, so this store isn't changed. Use copy() to
+    add a copy of an entity to this store.
+    <p>Entities only collide with tiles. They aren't in the map's
+    SpatialGrid, so other Sprites, like lasers and the player,
+    pass through them. Creatures that need to be hit should be
+    Sprites on the map.
+    <p>Each entity can be saved to a fixed-length record of ints,
+    so the store is saved with the rest of a map in snapshots
+    (see Snapshotter).
+*/
+public class EntityStore {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    // animation index: moving left, moving right, dying left,
+    // dying right
+    private static final int ANIM_LEFT = 0;
+    private static final int ANIM_RIGHT = 1;
+    private static final int ANIM_DEAD_LEFT = 2;
+    private static final int ANIM_DEAD_RIGHT = 3;
+
+    // fields of an entity record
+    private static final int TYPE = 0;
+    private static final int X = 1;
+    private static final int Y = 2;
+    private static final int PREV_X = 3;
+    private static final int PREV_Y = 4;
+    private static final int DX = 5;
+    private static final int DY = 6;
+    private static final int HEALTH = 7;
+    private static final int STATE = 8;
+    private static final int ANIM_INDEX = 9;
+    private static final int ANIM_TIME = 10;
+    private static final int ANIM_TIME_HIGH = 11;
+    private static final int STATE_TIME = 12;
+    private static final int STATE_TIME_HIGH = 13;
+
+    /**
+        Number of ints in an entity record.
+    */
+    static final int RECORD_SIZE = 14;
+
+    // per-type data
+    private boolean[] typeDefined;
+    private Animation[][] typeAnims;
+    private long[][] typeAnimDurations;
+    private float[] typeSpeed;
+    private int[] typeHealth;
+    private int[] typeWidth;
+    private int[] typeHeight;
+
+    // per-entity data
+    private int size;
+    private float[] x;
+    private float[] y;
+    private float[] prevX;
+    private float[] prevY;
+    private float[] dx;
+    private float[] dy;
+    private int[] health;
+    private int[] state;
+    private int[] type;
+    private int[] animIndex;
+    private long[] animTime;
+    private long[] stateTime;
+
+    private View view = new View();
+
+    /**
+        Creates a new, empty EntityStore.
+    */
+    public EntityStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+
+    /**
+        Creates a new, empty EntityStore with room for the
+        specified number of entities before growing.
+    */
+    public EntityStore(int capacity) {
+        typeDefined = new boolean[TileMap.NUM_TYPES];
+        typeAnims = new Animation[TileMap.NUM_TYPES][];
+        typeAnimDurations = new long[TileMap.NUM_TYPES][];
+        typeSpeed = new float[TileMap.NUM_TYPES];
+        typeHealth = new int[TileMap.NUM_TYPES];
+        typeWidth = new int[TileMap.NUM_TYPES];
+        typeHeight = new int[TileMap.NUM_TYPES];
+        allocate(Math.max(1, capacity));
+    }
+
+
+    /**
+        Defines an entity type from a host Creature. Entities of
+        the type share the host's Animations.
+    */
+    public void defineType(int entityType, Creature host) {
+        typeDefined[entityType] = true;
+        typeAnims[entityType] = new Animation[] {
+            host.getAnim1(), host.getAnim2(),
+            host.getDeadLeft(), host.getDeadRight()
+        };
+        typeAnimDurations[entityType] = new long[4];
+        for (int i=0; i<4; i++) {
+            typeAnimDurations[entityType][i] =
+                typeAnims[entityType][i].getDuration();
+        }
+        typeSpeed[entityType] = host.getMaxSpeed();
+        typeHealth[entityType] = host.getHealth();
+        typeWidth[entityType] = host.getWidth();
+        typeHeight[entityType] = host.getHeight();
+    }
+
+
+    /**
+        Adds an entity of the specified type at the specified
+        pixel location, already moving the way its Creature would
+        when woken up. Returns the entity's index.
+    */
+    public int spawn(int entityType, float spawnX, float spawnY) {
+        if (!typeDefined[entityType]) {
+            throw new IllegalArgumentException(
+                "Undefined entity type: " + entityType);
+        }
+        if (size == x.length) {
+            allocate(size * 2);
+        }
+        int i = size++;
+        x[i] = spawnX;
+        y[i] = spawnY;
+        prevX[i] = spawnX;
+        prevY[i] = spawnY;
+        dx[i] = 0;
+        dy[i] = 0;
+        float speed = typeSpeed[entityType];
+        switch (entityType) {
+            case TileMap.TYPE_CENTIPEDE:
+                dx[i] = -speed;
+                break;
+            case TileMap.TYPE_SPIDER:
+                dx[i] = -speed;
+                dy[i] = speed;
+                break;
+            case TileMap.TYPE_LASER:
+                dy[i] = -speed;
+                break;
+        }
+        health[i] = typeHealth[entityType];
+        state[i] = Creature.STATE_NORMAL;
+        type[i] = entityType;
+        animIndex[i] = ANIM_RIGHT;
+        animTime[i] = 0;
+        stateTime[i] = 0;
+        return i;
+    }
+
+
+    /**
+        Adds a copy of the entity at the specified index, in the
+        same state. Returns the copy's index.
+    */
+    public int copy(int i) {
+        if (size == x.length) {
+            allocate(size * 2);
+        }
+        int j = size++;
+        x[j] = x[i];
+        y[j] = y[i];
+        prevX[j] = prevX[i];
+        prevY[j] = prevY[i];
+        dx[j] = dx[i];
+        dy[j] = dy[i];
+        health[j] = health[i];
+        state[j] = state[i];
+        type[j] = type[i];
+        animIndex[j] = animIndex[i];
+        animTime[j] = animTime[i];
+        stateTime[j] = stateTime[i];
+        return j;
+    }
+
+
+    /**
+        Creates a new store holding only a copy of the entity at
+        the specified index. The new store has the same entity
+        types as this one.
+    */
+    private EntityStore detach(int i) {
+        EntityStore store = new EntityStore(1);
+        System.arraycopy(typeDefined, 0, store.typeDefined, 0,
+            TileMap.NUM_TYPES);
+        System.arraycopy(typeAnims, 0, store.typeAnims, 0,
+            TileMap.NUM_TYPES);
+        System.arraycopy(typeAnimDurations, 0,
+            store.typeAnimDurations, 0, TileMap.NUM_TYPES);
+        System.arraycopy(typeSpeed, 0, store.typeSpeed, 0,
+            TileMap.NUM_TYPES);
+        System.arraycopy(typeHealth, 0, store.typeHealth, 0,
+            TileMap.NUM_TYPES);
+        System.arraycopy(typeWidth, 0, store.typeWidth, 0,
+            TileMap.NUM_TYPES);
+        System.arraycopy(typeHeight, 0, store.typeHeight, 0,
+            TileMap.NUM_TYPES);
+        int[] record = new int[RECORD_SIZE];
+        save(i, record, 0);
+        store.load(record, 0);
+        return store;
+    }
+
+
+    /**
+        Saves the entity at the specified index to a record at
+        the specified offset.
+    */
+    void save(int i, int[] snapshot, int offset) {
+        snapshot[offset + TYPE] = type[i];
+        snapshot[offset + X] = Float.floatToIntBits(x[i]);
+        snapshot[offset + Y] = Float.floatToIntBits(y[i]);
+        snapshot[offset + PREV_X] = Float.floatToIntBits(prevX[i]);
+        snapshot[offset + PREV_Y] = Float.floatToIntBits(prevY[i]);
+        snapshot[offset + DX] = Float.floatToIntBits(dx[i]);
+        snapshot[offset + DY] = Float.floatToIntBits(dy[i]);
+        snapshot[offset + HEALTH] = health[i];
+        snapshot[offset + STATE] = state[i];
+        snapshot[offset + ANIM_INDEX] = animIndex[i];
+        snapshot[offset + ANIM_TIME] = (int)animTime[i];
+        snapshot[offset + ANIM_TIME_HIGH] = (int)(animTime[i] >>> 32);
+        snapshot[offset + STATE_TIME] = (int)stateTime[i];
+        snapshot[offset + STATE_TIME_HIGH] = (int)(stateTime[i] >>> 32);
+    }
+
+
+    /**
+        Adds an entity from the record at the specified offset.
+        Returns the entity's index.
+    */
+    int load(int[] snapshot, int offset) {
+        int entityType = snapshot[offset + TYPE];
+        if (!typeDefined[entityType]) {
+            throw new IllegalArgumentException(
+                "Undefined entity type: " + entityType);
+        }
+        if (size == x.length) {
+            allocate(size * 2);
+        }
+        int i = size++;
+        type[i] = entityType;
+        x[i] = Float.intBitsToFloat(snapshot[offset + X]);
+        y[i] = Float.intBitsToFloat(snapshot[offset + Y]);
+        prevX[i] = Float.intBitsToFloat(snapshot[offset + PREV_X]);
+        prevY[i] = Float.intBitsToFloat(snapshot[offset + PREV_Y]);
+        dx[i] = Float.intBitsToFloat(snapshot[offset + DX]);
+        dy[i] = Float.intBitsToFloat(snapshot[offset + DY]);
+        health[i] = snapshot[offset + HEALTH];
+        state[i] = snapshot[offset + STATE];
+        animIndex[i] = snapshot[offset + ANIM_INDEX];
+        animTime[i] = toLong(snapshot[offset + ANIM_TIME_HIGH],
+            snapshot[offset + ANIM_TIME]);
+        stateTime[i] = toLong(snapshot[offset + STATE_TIME_HIGH],
+            snapshot[offset + STATE_TIME]);
+        return i;
+    }
+
+
+    private static long toLong(int high, int low) {
+        return ((long)high << 32) | (low & 0xffffffffL);
+    }
+
+
+    /**
+        Removes all entities.
+    */
+    public void clear() {
+        size = 0;
+    }
+
+
+    /**
+        Gets the number of entities.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    public int getType(int i) {
+        return type[i];
+    }
+
+
+    public int getState(int i) {
+        return state[i];
+    }
+
+
+    public int getHealth(int i) {
+        return health[i];
+    }
+
+
+    /**
+        Sets the health of an entity. Entities with zero health
+        start dying.
+    */
+    public void setHealth(int i, int newHealth) {
+        health[i] = newHealth;
+        if (newHealth == 0) {
+            setState(i, Creature.STATE_DYING);
+        }
+    }
+
+
+    private void setState(int i, int newState) {
+        if (state[i] != newState) {
+            state[i] = newState;
+            stateTime[i] = 0;
+            if (newState == Creature.STATE_DYING) {
+                dx[i] = 0;
+                dy[i] = 0;
+            }
+        }
+    }
+
+
+    /**
+        Gets a Sprite view of the entity at the specified index.
+        The same View object is returned by every call, so it is
+        only valid until the next call.
+    */
+    public Sprite getView(int i) {
+        view.index = i;
+        return view;
+    }
+
+
+    /**
+        Runs one tick of every system: movement with tile
+        collision, animation, and lifetime. Dead entities are
+        removed at the end.
+    */
+    public void update(TileMap map, long elapsedTime) {
+        savePositions();
+        moveHorizontal(map, elapsedTime);
+        moveVertical(map, elapsedTime);
+        animate(elapsedTime);
+        removeDead();
+    }
+
+
+    private void savePositions() {
+        System.arraycopy(x, 0, prevX, 0, size);
+        System.arraycopy(y, 0, prevY, 0, size);
+    }
+
+
+    private void moveHorizontal(TileMap map, long elapsedTime) {
+        for (int i=0; i<size; i++) {
+            float vx = dx[i];
+            if (vx == 0 || state[i] != Creature.STATE_NORMAL) {
+                continue;
+            }
+            int t = type[i];
+            float newX = x[i] + vx * elapsedTime;
+            long tile = map.getTileCollision(x[i], y[i],
+                typeWidth[t], typeHeight[t], newX, y[i]);
+            if (tile == TileMap.NO_COLLISION) {
+                x[i] = newX;
+                continue;
+            }
+
+            // line up with the tile boundary
+            if (vx > 0) {
+                x[i] = TileMapRenderer.tilesToPixels(
+                    TileMap.getTileX(tile)) -
+                    typeWidth[t];
+            }
+            else {
+                x[i] = TileMapRenderer.tilesToPixels(
+                    TileMap.getTileX(tile) + 1);
+            }
+
+            // collided horizontally
+            if (t == TileMap.TYPE_CENTIPEDE &&
+                y[i] < Centipede.DROP_LIMIT_Y)
+            {
+                // drop down a row
+                y[i] += Centipede.DROP_DISTANCE;
+            }
+            dx[i] = -vx;
+        }
+    }
+
+
+    private void moveVertical(TileMap map, long elapsedTime) {
+        for (int i=0; i<size; i++) {
+            float vy = dy[i];
+            if (vy == 0 || state[i] != Creature.STATE_NORMAL) {
+                continue;
+            }
+            int t = type[i];
+            float newY = y[i] + vy * elapsedTime;
+            long tile = map.getTileCollision(x[i], y[i],
+                typeWidth[t], typeHeight[t], x[i], newY);
+            if (tile == TileMap.NO_COLLISION) {
+                y[i] = newY;
+                continue;
+            }
+
+            // line up with the tile boundary
+            if (vy > 0) {
+                y[i] = TileMapRenderer.tilesToPixels(
+                    TileMap.getTileY(tile)) -
+                    typeHeight[t];
+            }
+            else {
+                y[i] = TileMapRenderer.tilesToPixels(
+                    TileMap.getTileY(tile) + 1);
+            }
+
+            // collided vertically
+            if (t == TileMap.TYPE_SPIDER) {
+                dy[i] = -vy;
+            }
+            else if (t == TileMap.TYPE_LASER) {
+                setState(i, Creature.STATE_DEAD);
+            }
+            else {
+                dy[i] = 0;
+            }
+        }
+    }
+
+
+    private void animate(long elapsedTime) {
+        for (int i=0; i<size; i++) {
+            int newAnim = animIndex[i];
+            if (type[i] == TileMap.TYPE_MUSHROOM) {
+                // mushrooms show their health
+                if (health[i] >= 3) {
+                    newAnim = ANIM_LEFT;
+                }
+                else if (health[i] == 2) {
+                    newAnim = ANIM_RIGHT;
+                }
+                else if (health[i] == 1) {
+                    newAnim = ANIM_DEAD_LEFT;
+                }
+                else {
+                    setState(i, Creature.STATE_DEAD);
+                }
+            }
+            else {
+                if (dx[i] < 0) {
+                    newAnim = ANIM_LEFT;
+                }
+                else if (dx[i] > 0) {
+                    newAnim = ANIM_RIGHT;
+                }
+                if (state[i] == Creature.STATE_DYING) {
+                    if (newAnim == ANIM_LEFT) {
+                        newAnim = ANIM_DEAD_LEFT;
+                    }
+                    else if (newAnim == ANIM_RIGHT) {
+                        newAnim = ANIM_DEAD_RIGHT;
+                    }
+                }
+            }
+
+            if (animIndex[i] != newAnim) {
+                animIndex[i] = newAnim;
+                animTime[i] = 0;
+            }
+            else {
+                long duration = typeAnimDurations[type[i]][newAnim];
+                animTime[i] += elapsedTime;
+                if (duration > 0 && animTime[i] >= duration) {
+                    animTime[i] %= duration;
+                }
+            }
+
+            stateTime[i] += elapsedTime;
+            if (state[i] == Creature.STATE_DYING &&
+                stateTime[i] >= Creature.DIE_TIME)
+            {
+                setState(i, Creature.STATE_DEAD);
+            }
+        }
+    }
+
+
+    /**
+        Removes dead entities, keeping the remaining entities in
+        the same order.
+    */
+    private void removeDead() {
+        int j = 0;
+        for (int i=0; i<size; i++) {
+            if (state[i] == Creature.STATE_DEAD) {
+                continue;
+            }
+            if (i != j) {
+                x[j] = x[i];
+                y[j] = y[i];
+                prevX[j] = prevX[i];
+                prevY[j] = prevY[i];
+                dx[j] = dx[i];
+                dy[j] = dy[i];
+                health[j] = health[i];
+                state[j] = state[i];
+                type[j] = type[i];
+                animIndex[j] = animIndex[i];
+                animTime[j] = animTime[i];
+                stateTime[j] = stateTime[i];
+            }
+            j++;
+        }
+        size = j;
+    }
+
+
+    private void allocate(int capacity) {
+        x = grow(x, capacity);
+        y = grow(y, capacity);
+        prevX = grow(prevX, capacity);
+        prevY = grow(prevY, capacity);
+        dx = grow(dx, capacity);
+        dy = grow(dy, capacity);
+        health = grow(health, capacity);
+        state = grow(state, capacity);
+        type = grow(type, capacity);
+        animIndex = grow(animIndex, capacity);
+        animTime = grow(animTime, capacity);
+        stateTime = grow(stateTime, capacity);
+    }
+
+
+    private float[] grow(float[] array, int capacity) {
+        float[] newArray = new float[capacity];
+        if (array != null) {
+            System.arraycopy(array, 0, newArray, 0, size);
+        }
+        return newArray;
+    }
+
+
+    private int[] grow(int[] array, int capacity) {
+        int[] newArray = new int[capacity];
+        if (array != null) {
+            System.arraycopy(array, 0, newArray, 0, size);
+        }
+        return newArray;
+    }
+
+
+    private long[] grow(long[] array, int capacity) {
+        long[] newArray = new long[capacity];
+        if (array != null) {
+            System.arraycopy(array, 0, newArray, 0, size);
+        }
+        return newArray;
+    }
+
+
+    /**
+        A Sprite that reads and writes one entity in the store.
+    */
+    private class View extends Sprite {
+
+        int index;
+
+        public View() {
+            super(null);
+        }
+
+        public float getX() {
+            return x[index];
+        }
+
+        public float getY() {
+            return y[index];
+        }
+
+        public void setX(float newX) {
+            x[index] = newX;
+        }
+
+        public void setY(float newY) {
+            y[index] = newY;
+        }
+
+        public float getVelocityX() {
+            return dx[index];
+        }
+
+        public float getVelocityY() {
+            return dy[index];
+        }
+
+        public void setVelocityX(float vx) {
+            dx[index] = vx;
+        }
+
+        public void setVelocityY(float vy) {
+            dy[index] = vy;
+        }
+
+        public void savePosition() {
+            prevX[index] = x[index];
+            prevY[index] = y[index];
+        }
+
+        public float getInterpolatedX(float alpha) {
+            return prevX[index] + (x[index] - prevX[index]) * alpha;
+        }
+
+        public float getInterpolatedY(float alpha) {
+            return prevY[index] + (y[index] - prevY[index]) * alpha;
+        }
+
+        public int getWidth() {
+            return typeWidth[type[index]];
+        }
+
+        public int getHeight() {
+            return typeHeight[type[index]];
+        }
+
+        public Image getImage() {
+            return typeAnims[type[index]][animIndex[index]].getImageAt(
+                animTime[index]);
+        }
+
+        public CollisionMask getCollisionMask() {
+            return typeAnims[type[index]][animIndex[index]]
+                .getCollisionMaskAt(animTime[index]);
+        }
+
+        public long getAnimTime() {
+            return animTime[index];
+        }
+
+        public void setAnimTime(long time) {
+            long duration =
+                typeAnimDurations[type[index]][animIndex[index]];
+            if (duration > 0) {
+                time %= duration;
+            }
+            animTime[index] = time;
+        }
+
+        public void reset() {
+            dx[index] = 0;
+            dy[index] = 0;
+            animTime[index] = 0;
+        }
+
+        public void update(long elapsedTime) {
+            // entities are updated by the store
+        }
+
+        /**
+            Returns a View of a copy of this view's entity, in a
+            new store of its own. This view's store isn't changed.
+        */
+        public Object clone() {
+            return detach(index).getView(0);
+        }
+    }
+}
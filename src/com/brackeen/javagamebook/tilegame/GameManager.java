@@ -3,9 +3,11 @@ package com.brackeen.javagamebook.tilegame;
 import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Iterator;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.sound.midi.Sequence;
 import javax.sound.midi.Sequencer;
@@ -22,8 +24,44 @@ import com.brackeen.javagamebook.tilegame.sprites.*;
 */
 public class GameManager extends GameCore {
 
-    public static void main(String[] args) {
-        new GameManager().run();
+    public static void main(String[] args) throws IOException {
+        // a replay has to be opened first, for its seed
+        InputReplay replay = null;
+        for (int i=0; i<args.length-1; i++) {
+            if (args[i].equals("-replay")) {
+                replay = new InputReplay(args[i+1]);
+            }
+        }
+        GameManager game = (replay != null) ?
+            new GameManager(replay.getSeed()) : new GameManager();
+        String recordFile = null;
+        for (int i=0; i<args.length; i++) {
+            if (args[i].equals("-tickrate") && i+1 < args.length) {
+                game.setTickRate(Integer.parseInt(args[++i]));
+            }
+            else if (args[i].equals("-record") && i+1 < args.length) {
+                recordFile = args[++i];
+            }
+            else if (args[i].equals("-replay") && i+1 < args.length) {
+                i++;
+            }
+            else if (args[i].equals("-speed") && i+1 < args.length) {
+                game.setTimeScale(Float.parseFloat(args[++i]));
+            }
+            else if (args[i].equals("-fps") && i+1 < args.length) {
+                game.setFrameRate(Integer.parseInt(args[++i]));
+            }
+            else if (args[i].equals("-threads") && i+1 < args.length) {
+                game.setUpdateThreads(Integer.parseInt(args[++i]));
+            }
+        }
+        if (replay != null) {
+            game.setInputReplay(replay);
+        }
+        if (recordFile != null) {
+            game.startRecording(recordFile);
+        }
+        game.run();
     }
 
     // uncompressed, 44100Hz, 16-bit, mono, signed, little-endian
@@ -38,7 +76,73 @@ public class GameManager extends GameCore {
     // Percent chance mushroom gets placed at valid location
     public static final float SPAWN_RATE = 6;
 
-    private Point pointCache = new Point();
+    // indexes of the GameActions in recorded input
+    private static final int ACTION_MOVE_LEFT = 0;
+    private static final int ACTION_MOVE_RIGHT = 1;
+    private static final int ACTION_MOVE_UP = 2;
+    private static final int ACTION_MOVE_DOWN = 3;
+    private static final int ACTION_SHOOT = 4;
+    private static final int ACTION_EXIT = 5;
+    private static final int NUM_ACTIONS = 6;
+
+    // fewest Sprites worth splitting among threads
+    private static final int MIN_PARALLEL_SPRITES = 64;
+
+    // screen size assumed when running headless
+    private static final int HEADLESS_SCREEN_WIDTH = 800;
+
+    // game time between rewind snapshots, in milliseconds
+    private static final int REWIND_INTERVAL = 100;
+
+    private SpatialGrid.Filter collisionFilter =
+        new SpatialGrid.Filter()
+    {
+        public boolean accept(Sprite sprite, Sprite other) {
+            // ignore Sprites that were hit earlier in this update
+            return isCollision(sprite, other) &&
+                !commands.isPendingDeath(other);
+        }
+    };
+    private SpatialGrid.Filter impactFilter =
+        new SpatialGrid.Filter()
+    {
+        public boolean accept(Sprite sprite, Sprite other) {
+            return canCollide(sprite, other) &&
+                !commands.isPendingDeath(other);
+        }
+    };
+    private SpatialGrid.Filter responseFilter =
+        new SpatialGrid.Filter()
+    {
+        public boolean accept(Sprite sprite, Sprite other) {
+            // skip pairs with a Sprite killed by an earlier
+            // response
+            return canCollide(sprite, other) &&
+                !commands.isPendingDeath(sprite) &&
+                !commands.isPendingDeath(other);
+        }
+    };
+    private CommandBuffer commands = new CommandBuffer();
+    private CollisionPairs collisions = new CollisionPairs();
+    // reused by removeDeadCreatures()
+    private SpriteBag deadCreatures = new SpriteBag();
+
+    // phased update
+    private int updateThreads;
+    private ForkJoinPool updatePool;
+    private Sprite[] phaseSprites = new Sprite[0];
+    private float[] phaseStartX;
+    private float[] phaseStartY;
+    private boolean[] phaseMoved;
+
+    // snapshots for resetting and rewinding the map
+    private Snapshotter snapshotter;
+    // null for a ChunkedTileMap, which is too big to snapshot
+    private int[] mapStartSnapshot;
+    private SnapshotBuffer rewindBuffer;
+    private long rewindElapsedTime;
+    // reused for each rewind snapshot, which the buffer copies
+    private int[] rewindSnapshot;
     public TileMap map;
     private MidiPlayer midiPlayer;
     private SoundManager soundManager;
@@ -56,8 +160,32 @@ public class GameManager extends GameCore {
     private GameAction moveDown;
     private GameAction shoot;
     private GameAction exit;
+    private GameAction[] actions;
+    private int[] actionAmounts;
+    private InputRecorder inputRecorder;
+    private InputReplay inputReplay;
 
     private Random rand;
+    private long seed;
+    private boolean headless;
+
+
+    /**
+        Creates a new GameManager with a random seed.
+    */
+    public GameManager() {
+        this(System.currentTimeMillis());
+    }
+
+
+    /**
+        Creates a new GameManager that uses the specified seed
+        for all of its random decisions, like mushroom spawning.
+    */
+    public GameManager(long seed) {
+        this.seed = seed;
+        createCollisionHandlers();
+    }
 
 
     public void init() {
@@ -75,9 +203,6 @@ public class GameManager extends GameCore {
         renderer.setBackground(
             resourceManager.loadImage("background.png"));
 
-        // load first map
-        map = resourceManager.loadNextMap();
-
         // load sounds
         soundManager = new SoundManager(PLAYBACK_FORMAT);
         prizeSound = soundManager.getSound("sounds/prize.wav");
@@ -94,11 +219,58 @@ public class GameManager extends GameCore {
         //midiPlayer.play(sequence, true);
         toggleDrumPlayback();
 
+        initGame();
+
+        // get the next map ready while this one is played
+        resourceManager.preloadNextMap();
+    }
+
+
+    /**
+        Initializes the GameManager without a screen, input
+        devices, sound, or music, so the simulation can be run by
+        calling update() directly. GameActions are created but
+        not mapped; callers press and release them to give input.
+    */
+    public void initHeadless() {
+        // without a GraphicsConfiguration, images are created
+        // in memory
+        initHeadless(new ResourceManager((GraphicsConfiguration)null));
+    }
+
+
+    /**
+        Initializes the GameManager without a screen, input
+        devices, sound, or music, using the specified
+        ResourceManager. Each game needs its own ResourceManager,
+        but it can share images with other games' (see
+        ResourceManager(ResourceManager)).
+    */
+    public void initHeadless(ResourceManager resourceManager) {
+        headless = true;
+        createGameActions();
+        this.resourceManager = resourceManager;
+        renderer = new TileMapRenderer();
+
+        initGame();
+    }
+
+
+    /**
+        Loads the first map and spawns the starting creatures.
+    */
+    private void initGame() {
+        // load first map
+        snapshotter = new Snapshotter(resourceManager);
+        map = resourceManager.loadNextMap();
+        mapStartSnapshot = captureMapStart();
+
         //set random number for shroom spawning
-        rand = new Random();
+        rand = new Random(seed);
 
         //spawn centipede
         spawnNewCentipede();
+        commands.apply(map, resourceManager);
     }
 
 
@@ -107,12 +279,23 @@ public class GameManager extends GameCore {
     */
     public void stop() {
         super.stop();
-        midiPlayer.close();
-        soundManager.close();
+        if (midiPlayer != null) {
+            midiPlayer.close();
+        }
+        if (soundManager != null) {
+            soundManager.close();
+        }
+        if (updatePool != null) {
+            updatePool.shutdown();
+        }
+        if (resourceManager != null) {
+            resourceManager.close();
+        }
+        stopRecording();
     }
 
 
-    private void initInput() {
+    private void createGameActions() {
         moveLeft = new GameAction("moveLeft");
         moveRight = new GameAction("moveRight");
         moveUp = new GameAction("moveUp");
@@ -122,6 +305,17 @@ public class GameManager extends GameCore {
         exit = new GameAction("exit",
             GameAction.DETECT_INITAL_PRESS_ONLY);
 
+        // in the order of the ACTION_ constants
+        actions = new GameAction[] {
+            moveLeft, moveRight, moveUp, moveDown, shoot, exit
+        };
+        actionAmounts = new int[actions.length];
+    }
+
+
+    private void initInput() {
+        createGameActions();
+
         inputManager = new InputManager(
             screen.getFullScreenWindow());
         inputManager.setCursor(InputManager.INVISIBLE_CURSOR);
@@ -142,9 +336,48 @@ public class GameManager extends GameCore {
     }
 
 
+    /**
+        Reads this update's amount for every GameAction, from the
+        actions themselves or from the input replay, and records
+        them if recording.
+    */
+    private void readInput() {
+        if (inputReplay != null) {
+            try {
+                inputReplay.next(actionAmounts);
+                if (inputReplay.isFinished() && !headless) {
+                    // replay is over
+                    stop();
+                }
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+                inputReplay = null;
+            }
+        }
+        else {
+            for (int i=0; i<actions.length; i++) {
+                actionAmounts[i] = actions[i].getAmount();
+            }
+        }
+
+        if (inputRecorder != null) {
+            try {
+                inputRecorder.record(actionAmounts);
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+                inputRecorder = null;
+            }
+        }
+    }
+
+
     private void checkInput(long elapsedTime) {
 
-        if (exit.isPressed()) {
+        readInput();
+
+        if (actionAmounts[ACTION_EXIT] != 0) {
             stop();
         }
 
@@ -152,21 +385,21 @@ public class GameManager extends GameCore {
         if (player.isAlive()) {
             float velocityX = 0;
             float velocityY = 0;
-            if (moveLeft.isPressed()) {
+            if (actionAmounts[ACTION_MOVE_LEFT] != 0) {
                 velocityX-=player.getMaxSpeed();
             }
-            if (moveRight.isPressed()) {
+            if (actionAmounts[ACTION_MOVE_RIGHT] != 0) {
                 velocityX+=player.getMaxSpeed();
             }
-            if (moveUp.isPressed()) {
+            if (actionAmounts[ACTION_MOVE_UP] != 0) {
                 velocityY-=player.getMaxSpeed();
             }
-            if (moveDown.isPressed()) {
+            if (actionAmounts[ACTION_MOVE_DOWN] != 0) {
                 velocityY+=player.getMaxSpeed();
             }
-            if (shoot.isPressed()) {
+            if (actionAmounts[ACTION_SHOOT] != 0) {
                 player.shoot();
-                soundManager.play(boopSound);
+                playSound(boopSound);
                 shootLaser(renderer.pixelsToTiles(player.getX()),renderer.pixelsToTiles(player.getY()));
             }
             player.setVelocityX(velocityX);
@@ -178,7 +411,8 @@ public class GameManager extends GameCore {
 
     public void draw(Graphics2D g) {
         renderer.draw(g, map,
-            screen.getWidth(), screen.getHeight());
+            screen.getWidth(), screen.getHeight(),
+            getInterpolation());
     }
 
 
@@ -190,10 +424,227 @@ public class GameManager extends GameCore {
     }
 
 
+    /**
+        Takes a snapshot of the map just loaded, for starting it
+        over, or returns null if it's a ChunkedTileMap. The map's
+        EntityStore isn't saved: entities aren't part of the map
+        the player starts over, and keep going when the player
+        dies (see update()).
+    */
+    private int[] captureMapStart() {
+        if (map instanceof ChunkedTileMap) {
+            return null;
+        }
+        return snapshotter.capture(map, null, false);
+    }
+
+
+    /**
+        Keeps snapshots of the map for the specified number of
+        seconds of game time, so the game can be rewound (see
+        rewind()). Snapshots are taken every REWIND_INTERVAL
+        milliseconds. Use 0 to stop keeping snapshots. Snapshots
+        aren't kept for a ChunkedTileMap.
+    */
+    public void setRewindTime(float seconds) {
+        int capacity = Math.round(seconds * 1000 / REWIND_INTERVAL);
+        if (capacity <= 0) {
+            rewindBuffer = null;
+        }
+        else {
+            rewindBuffer = new SnapshotBuffer(capacity);
+        }
+        rewindElapsedTime = 0;
+    }
+
+
+    /**
+        Gets the SnapshotBuffer used for rewinding, or null if
+        snapshots aren't being kept.
+    */
+    public SnapshotBuffer getRewindBuffer() {
+        return rewindBuffer;
+    }
+
+
+    /**
+        Rewinds the map by about the specified number of seconds
+        of game time, or as far as the kept snapshots go. Later
+        snapshots are dropped. Returns the number of seconds
+        actually rewound. The map's EntityStore is rewound with
+        it. Random decisions aren't rewound, so the game may play
+        out differently the second time.
+    */
+    public float rewind(float seconds) {
+        if (rewindBuffer == null || rewindBuffer.size() == 0) {
+            return 0;
+        }
+        int back = Math.min(rewindBuffer.size() - 1,
+            Math.round(seconds * 1000 / REWIND_INTERVAL));
+        resourceManager.releaseSprites(map);
+        map = snapshotter.restore(rewindBuffer.get(back));
+        rewindBuffer.removeNewest(back);
+        rewindElapsedTime = 0;
+        return back * REWIND_INTERVAL / 1000f;
+    }
+
+
+    /**
+        Gets the EntityStore of the current map, creating it if
+        needed. Entities in the store are updated in batches
+        after the map's Sprites, and are drawn after them.
+    */
+    public EntityStore getEntityStore() {
+        EntityStore entities = map.getEntityStore();
+        if (entities == null) {
+            entities = new EntityStore();
+            resourceManager.defineEntityTypes(entities);
+            map.setEntityStore(entities);
+        }
+        return entities;
+    }
+
+
+    /**
+        Gets the ResourceManager.
+    */
+    public ResourceManager getResourceManager() {
+        return resourceManager;
+    }
+
+
+    /**
+        Gets the seed used for this game's random decisions.
+    */
+    public long getSeed() {
+        return seed;
+    }
+
+
+    /**
+        Sets how many threads move the map's Sprites. With 0 or
+        1 threads (the default is 0), creatures are moved on the
+        update's thread. Creatures are always all moved before
+        collisions are checked, in map order, so the update gives
+        the same results for any number of threads.
+    */
+    public void setUpdateThreads(int threads) {
+        updateThreads = Math.max(0, threads);
+        if (updatePool != null) {
+            updatePool.shutdown();
+            updatePool = null;
+        }
+        if (updateThreads > 1) {
+            updatePool = new ForkJoinPool(updateThreads);
+        }
+    }
+
+
+    /**
+        Gets the number of threads used to move the map's
+        Sprites, or 0 if they're moved on the update's thread.
+    */
+    public int getUpdateThreads() {
+        return updateThreads;
+    }
+
+
+    /**
+        Starts recording this game's input to the specified file.
+        Should be called before the first update, so the log can
+        be replayed from the start. The step is rounded to a
+        whole number of milliseconds, the step the log records,
+        so every update can be replayed exactly.
+    */
+    public void startRecording(String filename) throws IOException {
+        stopRecording();
+        setStepTime(getStepTime());
+        inputRecorder = new InputRecorder(filename, seed,
+            getStepTime(), NUM_ACTIONS);
+    }
+
+
+    /**
+        Stops recording input and closes the log. Does nothing if
+        not recording.
+    */
+    public void stopRecording() {
+        if (inputRecorder != null) {
+            try {
+                inputRecorder.close();
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            inputRecorder = null;
+        }
+    }
+
+
+    /**
+        Plays back recorded input instead of reading the game's
+        GameActions. The GameManager must have been created with
+        the log's seed, and its step time must match the log's.
+        When drawn on screen, the game stops when the replay is
+        over.
+    */
+    public void setInputReplay(InputReplay inputReplay) {
+        this.inputReplay = inputReplay;
+        setStepTime(inputReplay.getStepTime());
+    }
+
+
+    /**
+        Gets the input replay, or null if input isn't being
+        replayed.
+    */
+    public InputReplay getInputReplay() {
+        return inputReplay;
+    }
+
+
+    GameAction getMoveLeftAction() {
+        return moveLeft;
+    }
+
+
+    GameAction getMoveRightAction() {
+        return moveRight;
+    }
+
+
+    GameAction getMoveUpAction() {
+        return moveUp;
+    }
+
+
+    GameAction getMoveDownAction() {
+        return moveDown;
+    }
+
+
+    GameAction getShootAction() {
+        return shoot;
+    }
+
+
+    /**
+        Plays a sound, if sound is enabled.
+    */
+    private void playSound(Sound sound) {
+        if (soundManager != null) {
+            soundManager.play(sound);
+        }
+    }
+
+
     /**
         Turns on/off drum playback in the midi music (track 1).
     */
     public void toggleDrumPlayback() {
+        if (midiPlayer == null) {
+            return;
+        }
         Sequencer sequencer = midiPlayer.getSequencer();
         if (sequencer != null) {
             sequencer.setTrackMute(DRUM_TRACK,
@@ -204,45 +655,24 @@ public class GameManager extends GameCore {
 
     /**
         Gets the tile that a Sprites collides with. Only the
-        Sprite's X or Y should be changed, not both. Returns null
-        if no collision is detected.
+        Sprite's X or Y should be changed, not both. Returns the
+        packed tile location (see TileMap.getTileX() and
+        TileMap.getTileY()), or TileMap.NO_COLLISION if no
+        collision is detected. For fast-moving Creatures, the tile
+        returned is the first one in their path.
     */
-    public Point getTileCollision(Sprite sprite,
+    public long getTileCollision(Sprite sprite,
         float newX, float newY)
     {
-        float fromX = Math.min(sprite.getX(), newX);
-        float fromY = Math.min(sprite.getY(), newY);
-        float toX = Math.max(sprite.getX(), newX);
-        float toY = Math.max(sprite.getY(), newY);
-
-        // get the tile locations
-        int fromTileX = TileMapRenderer.pixelsToTiles(fromX);
-        int fromTileY = TileMapRenderer.pixelsToTiles(fromY);
-        int toTileX = TileMapRenderer.pixelsToTiles(
-            toX + sprite.getWidth() - 1);
-        int toTileY = TileMapRenderer.pixelsToTiles(
-            toY + sprite.getHeight() - 1);
-
-        // check each tile for a collision
-        for (int x=fromTileX; x<=toTileX; x++) {
-            for (int y=fromTileY; y<=toTileY; y++) {
-                if (x < 0 || x >= map.getWidth() || map.getTile(x, y) != null)
-                {
-                    // collision found, return the tile
-                    pointCache.setLocation(x, y);
-                    return pointCache;
-                }
-                else if(y < 0 || y >= map.getHeight() || map.getTile(x, y) != null)
-                {
-                    // collision found, return the tile
-                    pointCache.setLocation(x, y);
-                    return pointCache;
-                }
-            }
+        if (sprite instanceof Creature &&
+            ((Creature)sprite).isFastMover())
+        {
+            return map.sweepTileCollision(sprite.getX(),
+                sprite.getY(), sprite.getWidth(), sprite.getHeight(),
+                newX, newY);
         }
-
-        // no collision found
-        return null;
+        return map.getTileCollision(sprite.getX(), sprite.getY(),
+            sprite.getWidth(), sprite.getHeight(), newX, newY);
     }
 
 
@@ -250,22 +680,11 @@ public class GameManager extends GameCore {
         Checks if two Sprites collide with one another. Returns
         false if the two Sprites are the same. Returns false if
         one of the Sprites is a Creature that is not alive.
+        If both Sprites' images have CollisionMasks, they only
+        collide if their solid pixels overlap.
     */
     public boolean isCollision(Sprite s1, Sprite s2) {
-        // if the Sprites are the same, return false
-        if (s1 == s2) {
-            return false;
-        }
-        if( s1 instanceof Centipede && s2 instanceof Centipede){
-            //System.out.println("Cent collision");
-            return false;
-        }
-
-        // if one of the Sprites is a dead Creature, return false
-        if (s1 instanceof Creature && !((Creature)s1).isAlive()) {
-            return false;
-        }
-        if (s2 instanceof Creature && !((Creature)s2).isAlive()) {
+        if (!canCollide(s1, s2)) {
             return false;
         }
 
@@ -275,6 +694,13 @@ public class GameManager extends GameCore {
         int s2x = Math.round(s2.getX());
         int s2y = Math.round(s2.getY());
 
+        // check if the two sprites' solid pixels overlap
+        CollisionMask m1 = s1.getCollisionMask();
+        CollisionMask m2 = s2.getCollisionMask();
+        if (m1 != null && m2 != null) {
+            return m1.collides(s1x, s1y, m2, s2x, s2y);
+        }
+
         // check if the two sprites' boundaries intersect
         return (s1x < s2x + s2.getWidth() &&
             s2x < s1x + s1.getWidth() &&
@@ -284,247 +710,469 @@ public class GameManager extends GameCore {
 
 
     /**
-        Gets the Sprite that collides with the specified Sprite,
-        or null if no Sprite collides with the specified Sprite.
+        Checks if two Sprites can collide with one another,
+        wherever they are. Returns false if the two Sprites are
+        the same, or if one of the Sprites is a Creature that is
+        not alive. Which types of Sprites collide is decided by
+        the collision Handlers (see createCollisionHandlers()).
     */
-    public Sprite getSpriteCollision(Sprite sprite) {
-
-        // run through the list of Sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite otherSprite = (Sprite)i.next();
-            if (isCollision(sprite, otherSprite)) {
-                // collision found, return the Sprite
-                return otherSprite;
-            }
+    private boolean canCollide(Sprite s1, Sprite s2) {
+        // if the Sprites are the same, return false
+        if (s1 == s2) {
+            return false;
         }
 
-        // no collision found
-        return null;
+        // if one of the Sprites is a dead Creature, return false
+        if (s1 instanceof Creature && !((Creature)s1).isAlive()) {
+            return false;
+        }
+        if (s2 instanceof Creature && !((Creature)s2).isAlive()) {
+            return false;
+        }
+        return true;
     }
 
 
     /**
         Updates Animation, position, and velocity of all Sprites
-        in the current map.
+        in the current map. Sprites spawned, removed, or hit during
+        the update are changed together afterwards, so the map's
+        Sprites don't change while they are being updated.
     */
     public void update(long elapsedTime) {
         Creature player = (Creature)map.getPlayer();
 
 
-        // player is dead! start map over
+        // player is dead! start map over. Entities aren't part of
+        // the map's start (see captureMapStart()), so the current
+        // EntityStore carries on in the restarted map.
         if (player.getState() == Creature.STATE_DEAD) {
-            map = resourceManager.reloadMap();
+            EntityStore entities = map.getEntityStore();
+            resourceManager.releaseSprites(map);
+            if (mapStartSnapshot != null) {
+                map = snapshotter.restore(mapStartSnapshot);
+            }
+            else {
+                map = resourceManager.reloadMap();
+            }
+            map.setEntityStore(entities);
             resetMap();
             return;
         }
 
+        // load the parts of a chunked map around the player
+        if (map instanceof ChunkedTileMap) {
+            ((ChunkedTileMap)map).pageAround(player.getX());
+        }
+
+        // remember where everything was, for drawing in between
+        // updates. Dormant Sprites don't move.
+        player.savePosition();
+        for (int j=0; j<map.getActiveCount(); j++) {
+            map.getActiveSprite(j).savePosition();
+        }
+
         // get keyboard/mouse input
         checkInput(elapsedTime);
 
-        // update player
-        updateCreature(player, elapsedTime);
+        // update the player and the other sprites
+        updateSpritesInPhases(elapsedTime);
+
+        // update data-oriented entities
+        EntityStore entities = map.getEntityStore();
+        if (entities != null) {
+            entities.update(map, elapsedTime);
+        }
+
+        // apply the spawns, removals, and hits from this update
+        commands.apply(map, resourceManager);
+
+        //check if all centipedes are dead
+        checkLastCentipede();
+
+        //check if spider is dead
+        checkSpider();
+
+        commands.apply(map, resourceManager);
+
+        // wake up the creatures on screen
+        renderer.wakeUpCreatures(map,
+            headless ? HEADLESS_SCREEN_WIDTH : screen.getWidth());
+
+        if (rewindBuffer != null && mapStartSnapshot != null) {
+            rewindElapsedTime += elapsedTime;
+            if (rewindElapsedTime >= REWIND_INTERVAL) {
+                rewindElapsedTime -= REWIND_INTERVAL;
+                rewindSnapshot = snapshotter.capture(map,
+                    rewindSnapshot);
+                rewindBuffer.add(rewindSnapshot);
+            }
+        }
+
+    }
+
+
+    /**
+        Updates the player and the map's awake Sprites in phases.
+        First, creatures that died in an earlier update are swept
+        out of the map, and every other creature is moved and
+        stopped at tiles; this is split among the update threads,
+        since each creature only changes itself. Then the moved
+        creatures are re-indexed, and the pairs of Sprites that
+        collide are found and handled, in order (see
+        CollisionPairs). Last, Sprites are animated, and static
+        creatures are made dormant until something wakes them up
+        (see TileMap). The results are the same for any number of
+        threads.
+    */
+    private void updateSpritesInPhases(long elapsedTime) {
+        Creature player = (Creature)map.getPlayer();
+        removeDeadCreatures();
+        int count = map.getActiveCount();
+        if (phaseSprites.length < count) {
+            int capacity = Math.max(count, phaseSprites.length * 2);
+            phaseSprites = new Sprite[capacity];
+            phaseStartX = new float[capacity];
+            phaseStartY = new float[capacity];
+            phaseMoved = new boolean[capacity];
+        }
+        for (int j=0; j<count; j++) {
+            phaseSprites[j] = map.getActiveSprite(j);
+        }
+
+        // phase one: motion and tile collisions. Creatures that
+        // change state are woken up afterwards, on this thread.
+        moveHorizontal(player, elapsedTime);
+        moveVertical(player, elapsedTime);
+        map.setWakesDeferred(true);
+        if (updatePool != null && count > MIN_PARALLEL_SPRITES) {
+            int chunk = Math.max(MIN_PARALLEL_SPRITES / 2,
+                count / (updatePool.getParallelism() * 4));
+            updatePool.invoke(new MoveTask(0, count, chunk,
+                elapsedTime));
+        }
+        else {
+            moveSprites(0, count, elapsedTime);
+        }
+        map.setWakesDeferred(false);
+
+        // phase two: collisions, in map order after the player
+        SpatialGrid grid = map.getSpriteGrid();
+        for (int j=0; j<count; j++) {
+            if (phaseMoved[j]) {
+                grid.update(phaseSprites[j]);
+            }
+        }
+        findCollisions(count);
+        collisions.dispatch(map, responseFilter);
+
+        // phase three: animation
         player.update(elapsedTime);
+        for (int j=0; j<count; j++) {
+            phaseSprites[j].update(elapsedTime);
+            phaseSprites[j] = null;
+        }
+        map.sleepStaticCreatures();
+    }
+
 
-        // update other sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite sprite = (Sprite)i.next();
+    /**
+        Finds the pairs of Sprites that collided in this update,
+        after every creature has moved: the player's first, then
+        the awake fast movers', each checked along its whole
+        move, then every other pair, in one pass over the sprite
+        grid. Pairs of two dormant Sprites are skipped.
+    */
+    private void findCollisions(int count) {
+        collisions.findOverlaps(map, map.getPlayer(),
+            collisionFilter);
+        for (int j=0; j<count; j++) {
+            Sprite sprite = phaseSprites[j];
+            if (phaseMoved[j] && ((Creature)sprite).isFastMover()) {
+                collisions.findImpact(map, (Creature)sprite,
+                    phaseStartX[j], phaseStartY[j], impactFilter);
+            }
+        }
+        collisions.findPairs(map, collisionFilter);
+    }
+
+
+    /**
+        Moves the creatures in phaseSprites from index start
+        (inclusive) to end (exclusive). Dead creatures aren't
+        moved.
+    */
+    private void moveSprites(int start, int end, long elapsedTime) {
+        for (int j=start; j<end; j++) {
+            Sprite sprite = phaseSprites[j];
+            phaseMoved[j] = false;
             if (sprite instanceof Creature) {
                 Creature creature = (Creature)sprite;
-                if (creature.getState() == Creature.STATE_DEAD) {
-                    i.remove();
-                    map.setScore(map.getScore()+creature.getPointValue());
-                }
-                else {
-                    updateCreature(creature, elapsedTime);
+                if (creature.getState() != Creature.STATE_DEAD) {
+                    phaseMoved[j] = true;
+                    phaseStartX[j] = creature.getX();
+                    moveHorizontal(creature, elapsedTime);
+                    phaseStartY[j] = creature.getY();
+                    moveVertical(creature, elapsedTime);
                 }
             }
-            // normal update
-            sprite.update(elapsedTime);
         }
+    }
 
-        //check if all centipedes are dead
-        checkLastCentipede();
 
-        //check if spider is dead
-        checkSpider();
+    /**
+        Moves a range of phaseSprites, splitting it among the
+        update threads.
+    */
+    private class MoveTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private int start;
+        private int end;
+        private int chunk;
+        private long elapsedTime;
+
+        public MoveTask(int start, int end, int chunk,
+            long elapsedTime)
+        {
+            this.start = start;
+            this.end = end;
+            this.chunk = chunk;
+            this.elapsedTime = elapsedTime;
+        }
 
+        protected void compute() {
+            if (end - start <= chunk) {
+                moveSprites(start, end, elapsedTime);
+            }
+            else {
+                int middle = (start + end) >>> 1;
+                invokeAll(
+                    new MoveTask(start, middle, chunk, elapsedTime),
+                    new MoveTask(middle, end, chunk, elapsedTime));
+            }
+        }
     }
 
 
     /**
-        Updates the creature, applying gravity for creatures that
-        aren't flying, and checks collisions.
+        Removes the dead creatures from the map in one pass, adds
+        their points to the score, and releases them for reuse.
     */
-    private void updateCreature(Creature creature, long elapsedTime)
-    {
+    private void removeDeadCreatures() {
+        map.removeDeadCreatures(deadCreatures);
+        for (int j=0; j<deadCreatures.size(); j++) {
+            Creature creature = (Creature)deadCreatures.get(j);
+            map.setScore(map.getScore()+creature.getPointValue());
+            resourceManager.releaseSprite(creature);
+        }
+        deadCreatures.clear();
+    }
+
+
+    /**
+        Moves a creature horizontally, stopping at the first
+        solid tile. Only changes the creature itself, so
+        different creatures can be moved at the same time.
+    */
+    private void moveHorizontal(Creature creature, long elapsedTime) {
         // change x
         float dx = creature.getVelocityX();
         float oldX = creature.getX();
         float newX = oldX + dx * elapsedTime;
-        Point tile =
+        long tile =
             getTileCollision(creature, newX, creature.getY());
-        if (tile == null) {
+        if (tile == TileMap.NO_COLLISION) {
             creature.setX(newX);
         }
         else {
             // line up with the tile boundary
             if (dx > 0) {
                 creature.setX(
-                    TileMapRenderer.tilesToPixels(tile.x) -
+                    TileMapRenderer.tilesToPixels(
+                    TileMap.getTileX(tile)) -
                     creature.getWidth());
             }
             else if (dx < 0) {
                 creature.setX(
-                    TileMapRenderer.tilesToPixels(tile.x + 1));
+                    TileMapRenderer.tilesToPixels(
+                    TileMap.getTileX(tile) + 1));
             }
             creature.collideHorizontal();
         }
-        if (creature instanceof Player) {
-            checkPlayerCollision((Player)creature, false);
-        }
+    }
 
+
+    /**
+        Moves a creature vertically, stopping at the first solid
+        tile. Only changes the creature itself, so different
+        creatures can be moved at the same time.
+    */
+    private void moveVertical(Creature creature, long elapsedTime) {
         // change y
         float dy = creature.getVelocityY();
         float oldY = creature.getY();
         float newY = oldY + dy * elapsedTime;
-        tile = getTileCollision(creature, creature.getX(), newY);
-        if (tile == null) {
+        long tile = getTileCollision(creature, creature.getX(), newY);
+        if (tile == TileMap.NO_COLLISION) {
             creature.setY(newY);
         }
         else {
             // line up with the tile boundary
             if (dy > 0) {
                 creature.setY(
-                    TileMapRenderer.tilesToPixels(tile.y) -
+                    TileMapRenderer.tilesToPixels(
+                    TileMap.getTileY(tile)) -
                     creature.getHeight());
             }
             else if (dy < 0) {
                 creature.setY(
-                    TileMapRenderer.tilesToPixels(tile.y + 1));
+                    TileMapRenderer.tilesToPixels(
+                    TileMap.getTileY(tile) + 1));
             }
             creature.collideVertical();
         }
-        if (creature instanceof Player) {
-            boolean canKill = (oldY < creature.getY());
-            checkPlayerCollision((Player)creature, false);
-        }
-        if (creature instanceof Centipede) {
-            Sprite collide = getSpriteCollision(creature);
-            if (collide instanceof Laser) {
-                creature.setHealth(creature.getHealth()-1);
-                map.setScore(map.getScore()+2);
-                ((Laser) collide).setState(Creature.STATE_DEAD);
-            }
-            else if (collide instanceof Mushroom) {
-                creature.collideHorizontal();
-            }
-        }
-        if(creature instanceof Laser){
-            Sprite collide = getSpriteCollision(creature);
-            if (collide instanceof Mushroom) {
-                ((Mushroom) collide).setHealth(((Mushroom) collide).getHealth()-1);
-                map.setScore(map.getScore()+1);
-                creature.setState(Creature.STATE_DEAD);
+    }
+
+
+    /**
+        Sets the responses to collisions between each type of
+        Sprite. Types without a Handler, like two Centipedes,
+        don't collide.
+    */
+    private void createCollisionHandlers() {
+        // the player dies when touching a centipede or spider
+        CollisionPairs.Handler playerHit = new CollisionPairs.Handler() {
+            public void collide(Sprite sprite, Sprite other) {
+                killPlayer((Player)sprite);
             }
-            else if(collide instanceof Spider){
-                ((Spider) collide).setHealth(((Spider) collide).getHealth() - 1);
-                map.setScore(map.getScore()+100);
-                creature.setState(Creature.STATE_DEAD);
+        };
+        collisions.setHandler(CollisionPairs.TYPE_PLAYER,
+            TileMap.TYPE_CENTIPEDE, playerHit);
+        collisions.setHandler(CollisionPairs.TYPE_PLAYER,
+            TileMap.TYPE_SPIDER, playerHit);
+
+        // lasers hurt what they hit
+        collisions.setHandler(TileMap.TYPE_LASER,
+            TileMap.TYPE_CENTIPEDE, new LaserHit(2));
+        collisions.setHandler(TileMap.TYPE_LASER,
+            TileMap.TYPE_MUSHROOM, new LaserHit(1));
+        collisions.setHandler(TileMap.TYPE_LASER,
+            TileMap.TYPE_SPIDER, new LaserHit(100));
+
+        // centipedes turn at mushrooms in their way
+        collisions.setHandler(TileMap.TYPE_CENTIPEDE,
+            TileMap.TYPE_MUSHROOM, new CollisionPairs.Handler()
+        {
+            public void collide(Sprite sprite, Sprite other) {
+                Creature centipede = (Creature)sprite;
+                float toward = other.getX() - centipede.getX();
+                if (centipede.getVelocityX() * toward > 0) {
+                    centipede.collideHorizontal();
+                }
             }
+        });
+    }
+
+
+    /**
+        Kills a laser that hit a creature, taking one health from
+        the creature and adding points to the score.
+    */
+    private class LaserHit implements CollisionPairs.Handler {
+
+        private int points;
+
+        public LaserHit(int points) {
+            this.points = points;
         }
 
+        public void collide(Sprite sprite, Sprite other) {
+            commands.addHealth((Creature)other, -1);
+            map.setScore(map.getScore()+points);
+            ((Creature)sprite).setState(Creature.STATE_DEAD);
+        }
     }
 
 
     /**
-        Checks for Player collision with other Sprites. If
-        canKill is true, collisions with Creatures will kill
-        them.
+        Takes one of the player's lives and starts the player
+        over, with new centipedes and spider.
     */
-    public void checkPlayerCollision(Player player, boolean canKill)
-    {
-        if (!player.isAlive()) {
-            return;
-        }
-        // check for player collision with other sprites
-        Sprite collisionSprite = getSpriteCollision(player);
-        if (collisionSprite instanceof Centipede || collisionSprite instanceof Spider) {
-            // player dies!
-            player.setHealth(player.getHealth()-1);
-            player.setX(400);
-            player.setY(400);
+    private void killPlayer(Player player) {
+        // player dies!
+        player.setHealth(player.getHealth()-1);
+        player.setX(400);
+        player.setY(400);
+        player.savePosition();
 
-            //restore mushrooms and add points
-            restoreMushrooms();
+        //restore mushrooms and add points
+        restoreMushrooms();
 
-            killCentipede();
-            spawnNewCentipede();
+        killCentipede();
+        spawnNewCentipede();
 
-            killSpider();
-            spawnNewSpider();
-        }
+        killSpider();
+        spawnNewSpider();
     }
 
     private void restoreMushrooms(){
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite sprite = (Sprite) i.next();
-            if (sprite instanceof Mushroom) {
-                if(((Mushroom) sprite).getHealth() < 3){
-                    ((Mushroom) sprite).setHealth(3);
-                    map.setScore(map.getScore()+10);
-                }
+        SpriteBag mushrooms = map.getSprites(TileMap.TYPE_MUSHROOM);
+        for (int i=0; i<mushrooms.size(); i++) {
+            Mushroom mushroom = (Mushroom)mushrooms.get(i);
+            if (mushroom.getHealth() < 3) {
+                mushroom.setHealth(3);
+                map.wake(mushroom);
+                map.setScore(map.getScore()+10);
             }
         }
     }
 
+    /**
+        Removes every Sprite of the specified type from the map
+        and releases them for reuse.
+    */
+    private void removeSprites(int type) {
+        SpriteBag sprites = map.getSprites(type);
+        for (int i=0; i<sprites.size(); i++) {
+            resourceManager.releaseSprite(sprites.get(i));
+        }
+        map.removeSprites(type);
+    }
+
     private void resetMap(){
         //clear mushrooms
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite sprite = (Sprite) i.next();
-            if (sprite instanceof Mushroom) {
-               i.remove();
-            }
-        }
+        removeSprites(TileMap.TYPE_MUSHROOM);
 
         //spawn mushrooms
         spawnNewMushrooms();
         //spawn centipede
         spawnNewCentipede();
+        commands.apply(map, resourceManager);
 
         //spawn player
         map.getPlayer().setX(400);
         map.getPlayer().setY(400);
+        map.getPlayer().savePosition();
         ((Creature)map.getPlayer()).setHealth(3);
 
         //reset score
         map.setScore(0);
     }
 
+    /**
+        Gets a Sprite whose top-left corner is in the specified
+        tile, or null if there is none.
+    */
     public Sprite getSprite(int x, int y){
-        if (x < 0 || x >= map.getWidth() || y < 0 || y >= map.getHeight()) {
-            return null;
-        }
-        else {
-            Iterator itr = map.getSprites();
-            while (itr.hasNext()) {
-                //  moving cursor to next element
-                Sprite i = (Sprite) itr.next();
-                if (renderer.pixelsToTiles(i.getX()) == x && renderer.pixelsToTiles(i.getY()) ==y ){
-                    return i;
-                }
-            }
-        }
-        return null;
+        return map.getSpriteAt(x, y);
     }
 
     private void spawnNewMushrooms(){
         for (int y=1; y<map.getHeight()-8; y++) {
             for (int x = 1; x < map.getWidth() - 1; x++) {
-                if(getSprite(x-1,y-1) == null && getSprite(x+1, y-1) == null) {
+                if(!map.isOccupied(x-1,y-1) && !map.isOccupied(x+1, y-1)) {
                     // Roll to place sprite or not
                     int randNum = rand.nextInt(100);
                     if(randNum < SPAWN_RATE) {
@@ -539,17 +1187,8 @@ public class GameManager extends GameCore {
      * Checks if all the centipededs are gone from the map. If yes, spawns a new one
      */
     private boolean checkLastCentipede() {
-        Iterator itr = map.getSprites();
-        boolean centipedeAlive = false;
-        while (itr.hasNext()) {
-            //  moving cursor to next element
-            Sprite i = (Sprite) itr.next();
-            if (i instanceof Centipede) {
-                if(((Centipede) i).getState() == Creature.STATE_NORMAL) {
-                    centipedeAlive = true;
-                }
-            }
-        }
+        boolean centipedeAlive =
+            (map.getLiveCount(TileMap.TYPE_CENTIPEDE) > 0);
         if (centipedeAlive == false) {
             map.setScore(map.getScore()+600);
             spawnNewCentipede();
@@ -558,34 +1197,19 @@ public class GameManager extends GameCore {
     }
 
     private void killCentipede(){
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite sprite = (Sprite) i.next();
-            if (sprite instanceof Centipede) {
-               i.remove();
-            }
-        }
+        commands.despawnAll(TileMap.TYPE_CENTIPEDE);
     }
 
     private void spawnNewCentipede(){
         // Spawn new centipede
         for(int k = map.getWidth() - 5;k<map.getWidth();k++) {
-            resourceManager.addSprite(map, resourceManager.getCentipedeSprite(), k, 0);
+            commands.spawn(resourceManager.getCentipedeSprite(), k, 0);
         }
     }
 
     private boolean checkSpider(){
-        Iterator itr = map.getSprites();
-        boolean spiderAlive = false;
-        while (itr.hasNext()) {
-            //  moving cursor to next element
-            Sprite i = (Sprite) itr.next();
-            if (i instanceof Spider) {
-                if(((Spider) i).getState() == Creature.STATE_NORMAL) {
-                    spiderAlive = true;
-                }
-            }
-        }
+        boolean spiderAlive =
+            (map.getLiveCount(TileMap.TYPE_SPIDER) > 0);
         if (spiderAlive == false) {
             spawnNewSpider();
         }
@@ -593,19 +1217,13 @@ public class GameManager extends GameCore {
     }
 
     private void killSpider(){
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite sprite = (Sprite) i.next();
-            if (sprite instanceof Spider) {
-                i.remove();
-            }
-        }
+        commands.despawnAll(TileMap.TYPE_SPIDER);
     }
     private void spawnNewSpider(){
         //collisionSprite.setX(50);
         //collisionSprite.setY(400);
         //((Spider) collisionSprite).setHealth(2);
-        resourceManager.addSprite(map, resourceManager.getSpiderSprite(), 0, 25);
+        commands.spawn(resourceManager.getSpiderSprite(), 0, 25);
     }
 
     /**
@@ -615,27 +1233,50 @@ public class GameManager extends GameCore {
     public void acquirePowerUp(PowerUp powerUp) {
         // remove it from the map
         map.removeSprite(powerUp);
+        resourceManager.releaseSprite(powerUp);
 
         if (powerUp instanceof PowerUp.Star) {
             // do something here, like give the player points
-            soundManager.play(prizeSound);
+            playSound(prizeSound);
         }
         else if (powerUp instanceof PowerUp.Music) {
             // change the music
-            soundManager.play(prizeSound);
+            playSound(prizeSound);
             toggleDrumPlayback();
         }
         else if (powerUp instanceof PowerUp.Goal) {
             // advance to next map
-            soundManager.play(prizeSound,
-                new EchoFilter(2000, .7f), false);
+            if (soundManager != null) {
+                soundManager.play(prizeSound,
+                    new EchoFilter(2000, .7f), false);
+            }
+            EntityStore entities = map.getEntityStore();
+            resourceManager.releaseSprites(map);
             map = resourceManager.loadNextMap();
+            mapStartSnapshot = captureMapStart();
+            // headless games don't draw frames, so they don't
+            // need a loader thread each
+            if (!headless) {
+                resourceManager.preloadNextMap();
+            }
+            if (rewindBuffer != null) {
+                // can't rewind into the last map
+                rewindBuffer.clear();
+            }
+            if (entities != null) {
+                entities.clear();
+                map.setEntityStore(entities);
+            }
         }
     }
 
+    /**
+        Shoots a laser from the specified tile. The laser is added
+        to the map when the current update's commands are applied.
+    */
     public void shootLaser(int tileX, int tileY) {
         //simpleSoundManager.play(simpleStream);
-        resourceManager.addSprite(map,resourceManager.getLaserSprite(),tileX,tileY-1);
+        commands.spawn(resourceManager.getLaserSprite(),tileX,tileY-1);
     }
 
 }
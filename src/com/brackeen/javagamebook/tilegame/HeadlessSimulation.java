@@ -0,0 +1,344 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.test.GameCore;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+
+/**
+    The HeadlessSimulation class runs the game without a screen,
+    input devices, or sound. The simulation is ticked as fast as
+    possible with a fixed time step, and a BotInput, seeded
+    from the same seed as the game, supplies the input. When
+    finished, ticks per second, entity counts (including how
+    many Sprites are awake, see TileMap) and the final score are
+    reported.
+    <p>Usage:<pre>
+    java com.brackeen.javagamebook.tilegame.HeadlessSimulation
+        [-ticks n] [-seed n] [-step ms] [-entities n] [-threads n]
+        [-record file] [-replay file] [-rewind seconds]
+    </pre>
+    The -entities option adds that many extra centipedes and
+    spiders to the map's EntityStore, to measure the simulation
+    with large numbers of creatures. The -threads option moves
+    creatures on that many threads (see
+    GameManager.setUpdateThreads()).
+    <p>The -record option writes the bot's input to an input
+    log. The -replay option plays an input log (from here or
+    from a game played on screen) instead of the bot, with the
+    log's seed and step time, until the log ends or -ticks is
+    reached.
+    <p>The report includes a checksum of the map's Sprites, so
+    runs with the same seed, or a recording and its replay, can
+    be checked for identical results.
+    <p>The -rewind option keeps snapshots of the map for that
+    many seconds (see GameManager.setRewindTime()), and reports
+    how much memory they take and how long restoring the oldest
+    one takes.
+*/
+public class HeadlessSimulation {
+
+    private static final int DEFAULT_TICKS = 100000;
+    private static final long DEFAULT_SEED = 1;
+    private static final int DEFAULT_STEP =
+        1000 / GameCore.DEFAULT_TICK_RATE;
+
+    public static void main(String[] args) throws IOException {
+        int ticks = DEFAULT_TICKS;
+        long seed = DEFAULT_SEED;
+        int step = DEFAULT_STEP;
+        int entities = 0;
+        int threads = 0;
+        String recordFile = null;
+        String replayFile = null;
+        float rewindTime = 0;
+        for (int i=0; i<args.length; i++) {
+            if (args[i].equals("-ticks") && i+1 < args.length) {
+                ticks = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-seed") && i+1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("-step") && i+1 < args.length) {
+                step = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-entities") && i+1 < args.length) {
+                entities = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-threads") && i+1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-record") && i+1 < args.length) {
+                recordFile = args[++i];
+            }
+            else if (args[i].equals("-replay") && i+1 < args.length) {
+                replayFile = args[++i];
+            }
+            else if (args[i].equals("-rewind") && i+1 < args.length) {
+                rewindTime = Float.parseFloat(args[++i]);
+            }
+            else {
+                System.err.println("Usage: HeadlessSimulation " +
+                    "[-ticks n] [-seed n] [-step ms] [-entities n] " +
+                    "[-threads n] [-record file] [-replay file] " +
+                    "[-rewind seconds]");
+                System.exit(1);
+            }
+        }
+
+        HeadlessSimulation sim;
+        if (replayFile != null) {
+            sim = new HeadlessSimulation(new InputReplay(replayFile));
+        }
+        else {
+            sim = new HeadlessSimulation(seed, step);
+        }
+        sim.getGame().setUpdateThreads(threads);
+        sim.getGame().setRewindTime(rewindTime);
+        if (recordFile != null) {
+            sim.getGame().startRecording(recordFile);
+        }
+        sim.spawnEntities(entities);
+        sim.run(ticks);
+        sim.getGame().stop();
+        sim.printReport(System.out);
+    }
+
+
+    private GameManager game;
+    private BotInput bot;
+    private int step;
+    private int ticksRun;
+    private long elapsedNanos;
+    // awake Sprites updated, summed over the ticks run
+    private long awakeSprites;
+
+    /**
+        Creates a new HeadlessSimulation with the specified seed
+        and time step (in milliseconds).
+    */
+    public HeadlessSimulation(long seed, int step) {
+        this.step = step;
+        game = new GameManager(seed);
+        game.setStepTime(step);
+        game.initHeadless();
+        bot = new BotInput(seed);
+    }
+
+
+    /**
+        Creates a new HeadlessSimulation that plays back an input
+        log instead of using the bot.
+    */
+    public HeadlessSimulation(InputReplay replay) {
+        this(replay.getSeed(), (int)replay.getStepTime());
+        game.setInputReplay(replay);
+    }
+
+
+    /**
+        Gets the simulated game.
+    */
+    public GameManager getGame() {
+        return game;
+    }
+
+
+    /**
+        Adds the specified number of centipedes and spiders to
+        the map's EntityStore, at random open tiles.
+    */
+    public void spawnEntities(int count) {
+        if (count <= 0) {
+            return;
+        }
+        TileMap map = game.getMap();
+        EntityStore entities = game.getEntityStore();
+        Random rand = bot.getRandom();
+        int spawned = 0;
+        while (spawned < count) {
+            int tileX = 1 + rand.nextInt(map.getWidth() - 2);
+            int tileY = rand.nextInt(map.getHeight() - 1);
+            if (map.getTile(tileX, tileY) == null) {
+                int type = (spawned % 4 == 0) ?
+                    TileMap.TYPE_SPIDER : TileMap.TYPE_CENTIPEDE;
+                entities.spawn(type,
+                    TileMapRenderer.tilesToPixels(tileX),
+                    TileMapRenderer.tilesToPixels(tileY));
+                spawned++;
+            }
+        }
+    }
+
+
+    /**
+        Runs the specified number of ticks as fast as possible.
+    */
+    public void run(int ticks) {
+        long startTime = System.nanoTime();
+        InputReplay replay = game.getInputReplay();
+        for (int i=0; i<ticks; i++) {
+            if (replay == null) {
+                bot.update(game);
+            }
+            else if (replay.isFinished()) {
+                break;
+            }
+            game.update(step);
+            ticksRun++;
+            awakeSprites += game.getMap().getActiveCount();
+        }
+        elapsedNanos += System.nanoTime() - startTime;
+    }
+
+
+    /**
+        Prints ticks per second, entity counts, and the score.
+    */
+    public void printReport(java.io.PrintStream out) {
+        TileMap map = game.getMap();
+        int total = 0;
+        for (int type=0; type<TileMap.NUM_TYPES; type++) {
+            total += map.getSpriteCount(type);
+        }
+
+        double seconds = elapsedNanos / 1e9;
+        out.println("seed:        " + game.getSeed());
+        out.println("ticks:       " + ticksRun + " (" + step +
+            " ms/tick, " + (ticksRun * (long)step / 1000) +
+            " s game time)");
+        out.println("wall time:   " + seconds + " s");
+        out.println("ticks/sec:   " +
+            (seconds > 0 ? Math.round(ticksRun / seconds) : 0));
+        if (map instanceof ChunkedTileMap) {
+            ChunkedTileMap chunked = (ChunkedTileMap)map;
+            out.println("chunks:      " +
+                chunked.getLoadedChunkCount() + " of " +
+                chunked.getNumChunks() + " loaded");
+        }
+        out.println("sprites:     " + total + " (" +
+            map.getActiveCount() + " awake, " +
+            (ticksRun > 0 ? awakeSprites / ticksRun : 0) +
+            " per tick on average)");
+        out.println("  centipede: " +
+            map.getSpriteCount(TileMap.TYPE_CENTIPEDE));
+        out.println("  spider:    " +
+            map.getSpriteCount(TileMap.TYPE_SPIDER));
+        out.println("  mushroom:  " +
+            map.getSpriteCount(TileMap.TYPE_MUSHROOM));
+        out.println("  laser:     " +
+            map.getSpriteCount(TileMap.TYPE_LASER));
+        out.println("  powerup:   " +
+            map.getSpriteCount(TileMap.TYPE_POWER_UP));
+        EntityStore entities = map.getEntityStore();
+        if (entities != null) {
+            out.println("entities:    " + entities.size());
+        }
+        ResourceManager resources = game.getResourceManager();
+        printPoolReport(out, "laser",
+            resources.getSpritePool(resources.getLaserSprite()));
+        printPoolReport(out, "centipede",
+            resources.getSpritePool(resources.getCentipedeSprite()));
+        printPoolReport(out, "spider",
+            resources.getSpritePool(resources.getSpiderSprite()));
+        printPoolReport(out, "mushroom",
+            resources.getSpritePool(resources.getMushroomSprite()));
+        out.println("lives:       " +
+            ((Creature)map.getPlayer()).getHealth());
+        out.println("score:       " + map.getScore());
+        out.println("threads:     " + game.getUpdateThreads());
+        out.println("checksum:    " +
+            Long.toHexString(getChecksum()));
+        SnapshotBuffer rewindBuffer = game.getRewindBuffer();
+        if (rewindBuffer != null && rewindBuffer.size() > 0) {
+            printRewindReport(out, rewindBuffer);
+        }
+    }
+
+
+    /**
+        Prints the size of the kept snapshots and how long it
+        takes to restore the oldest one. The game isn't changed.
+    */
+    private void printRewindReport(java.io.PrintStream out,
+        SnapshotBuffer rewindBuffer)
+    {
+        ResourceManager resources = game.getResourceManager();
+        Snapshotter snapshotter = new Snapshotter(resources);
+        int size = rewindBuffer.size();
+        int rawSize = snapshotter.capture(game.getMap())[0];
+
+        // warm up, then time getting and restoring the oldest
+        int runs = 100;
+        for (int i=0; i<runs; i++) {
+            resources.releaseSprites(snapshotter.restore(
+                rewindBuffer.get(size - 1)));
+        }
+        long startTime = System.nanoTime();
+        for (int i=0; i<runs; i++) {
+            resources.releaseSprites(snapshotter.restore(
+                rewindBuffer.get(size - 1)));
+        }
+        long restoreNanos = (System.nanoTime() - startTime) / runs;
+
+        out.println("snapshots:   " + size + " (" +
+            rewindBuffer.getEncodedSize() * 4 / 1024 + " KB, " +
+            rawSize * 4 / 1024 + " KB each uncompressed)");
+        out.println("restore:     " + restoreNanos / 1000 +
+            " us (oldest snapshot)");
+    }
+
+
+    /**
+        Gets a checksum of the exact positions, velocities, states,
+        and health of the player, the map's Sprites (in map order)
+        and the entities in the map's EntityStore.
+    */
+    public long getChecksum() {
+        TileMap map = game.getMap();
+        long checksum = map.getScore();
+        checksum = addToChecksum(checksum, map.getPlayer());
+        Iterator i = map.getSprites();
+        while (i.hasNext()) {
+            checksum = addToChecksum(checksum, (Sprite)i.next());
+        }
+        EntityStore entities = map.getEntityStore();
+        if (entities != null) {
+            for (int j=0; j<entities.size(); j++) {
+                checksum = addToChecksum(checksum,
+                    entities.getView(j));
+                checksum = checksum * 31 + entities.getState(j);
+                checksum = checksum * 31 + entities.getHealth(j);
+            }
+        }
+        return checksum;
+    }
+
+
+    private static long addToChecksum(long checksum, Sprite sprite) {
+        checksum = checksum * 31 + Float.floatToIntBits(sprite.getX());
+        checksum = checksum * 31 + Float.floatToIntBits(sprite.getY());
+        checksum = checksum * 31 +
+            Float.floatToIntBits(sprite.getVelocityX());
+        checksum = checksum * 31 +
+            Float.floatToIntBits(sprite.getVelocityY());
+        if (sprite instanceof Creature) {
+            Creature creature = (Creature)sprite;
+            checksum = checksum * 31 + creature.getState();
+            checksum = checksum * 31 + creature.getHealth();
+        }
+        return checksum;
+    }
+
+
+    private void printPoolReport(java.io.PrintStream out,
+        String name, SpritePool pool)
+    {
+        out.println("pool " + name + ": " + pool.getHits() +
+            " hits, " + pool.getMisses() + " misses, " +
+            pool.getFreeCount() + " free");
+    }
+}
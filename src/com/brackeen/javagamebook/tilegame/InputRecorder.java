@@ -0,0 +1,149 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.*;
+
+/**
+    The InputRecorder class writes a game session to a compact
+    binary log, so it can be played back exactly with an
+    InputReplay. The log starts with the game's seed and step
+    time, followed by the amounts the game read from each of its
+    GameActions on every update.
+    <p>Updates with the same input are written once, with a
+    repeat count, and only non-zero amounts are written, so long
+    stretches of holding a key (or of doing nothing) take a few
+    bytes.
+*/
+public class InputRecorder {
+
+    /**
+        First four bytes of an input log ("CPIL").
+    */
+    public static final int MAGIC = 0x4350494c;
+
+    /**
+        Version of the input log format.
+    */
+    public static final int VERSION = 1;
+
+    private DataOutputStream out;
+    private int[] lastAmounts;
+    private int repeatCount;
+    private long tickCount;
+
+    /**
+        Creates a new InputRecorder that writes to the specified
+        file.
+    */
+    public InputRecorder(String filename, long seed, long stepTime,
+        int numActions) throws IOException
+    {
+        this(new FileOutputStream(filename), seed, stepTime,
+            numActions);
+    }
+
+
+    /**
+        Creates a new InputRecorder that writes to the specified
+        stream, and writes the log's header.
+    */
+    public InputRecorder(OutputStream out, long seed, long stepTime,
+        int numActions) throws IOException
+    {
+        this.out = new DataOutputStream(
+            new BufferedOutputStream(out));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeLong(seed);
+        this.out.writeInt((int)stepTime);
+        this.out.writeByte(numActions);
+        lastAmounts = new int[numActions];
+    }
+
+
+    /**
+        Records the amounts read from each GameAction for one
+        update.
+    */
+    public void record(int[] amounts) throws IOException {
+        if (repeatCount > 0 && isSame(amounts)) {
+            repeatCount++;
+        }
+        else {
+            writeRun();
+            System.arraycopy(amounts, 0, lastAmounts, 0,
+                lastAmounts.length);
+            repeatCount = 1;
+        }
+        tickCount++;
+    }
+
+
+    /**
+        Gets the number of updates recorded.
+    */
+    public long getTickCount() {
+        return tickCount;
+    }
+
+
+    /**
+        Writes any buffered updates and closes the log.
+    */
+    public void close() throws IOException {
+        writeRun();
+        out.close();
+    }
+
+
+    private boolean isSame(int[] amounts) {
+        for (int i=0; i<lastAmounts.length; i++) {
+            if (amounts[i] != lastAmounts[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+        Writes the repeat count, a bit mask of the actions with
+        non-zero amounts, and those amounts.
+    */
+    private void writeRun() throws IOException {
+        if (repeatCount == 0) {
+            return;
+        }
+        writeVarInt(out, repeatCount);
+        int mask = 0;
+        for (int i=0; i<lastAmounts.length; i++) {
+            if (lastAmounts[i] != 0) {
+                mask |= (1 << i);
+            }
+        }
+        writeVarInt(out, mask);
+        for (int i=0; i<lastAmounts.length; i++) {
+            if (lastAmounts[i] != 0) {
+                // zig-zag encode, so small negative numbers are
+                // small too
+                writeVarInt(out,
+                    (lastAmounts[i] << 1) ^ (lastAmounts[i] >> 31));
+            }
+        }
+        repeatCount = 0;
+    }
+
+
+    /**
+        Writes an int 7 bits at a time, low bits first, so small
+        numbers take one byte.
+    */
+    static void writeVarInt(DataOutputStream out, int value)
+        throws IOException
+    {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+}
@@ -0,0 +1,163 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.*;
+
+/**
+    The InputReplay class reads an input log written by an
+    InputRecorder. A GameManager created with the log's seed and
+    step time, and given the log's input on every update, plays
+    out exactly like the recorded session, whether it's drawn on
+    screen or run headless as fast as possible.
+*/
+public class InputReplay {
+
+    private DataInputStream in;
+    private long seed;
+    private long stepTime;
+    private int[] amounts;
+    private int remaining;
+    private boolean finished;
+    private long tickCount;
+
+    /**
+        Opens the input log in the specified file.
+    */
+    public InputReplay(String filename) throws IOException {
+        this(new FileInputStream(filename));
+    }
+
+
+    /**
+        Reads an input log from the specified stream, starting
+        with its header.
+        @throws IOException if the stream isn't an input log.
+    */
+    public InputReplay(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        if (this.in.readInt() != InputRecorder.MAGIC) {
+            throw new IOException("Not an input log");
+        }
+        int version = this.in.readByte();
+        if (version != InputRecorder.VERSION) {
+            throw new IOException("Unknown input log version: " +
+                version);
+        }
+        seed = this.in.readLong();
+        stepTime = this.in.readInt();
+        amounts = new int[this.in.readByte()];
+        readRun();
+    }
+
+
+    /**
+        Gets the seed of the recorded game.
+    */
+    public long getSeed() {
+        return seed;
+    }
+
+
+    /**
+        Gets the step time, in milliseconds, of the recorded
+        game's updates.
+    */
+    public long getStepTime() {
+        return stepTime;
+    }
+
+
+    /**
+        Gets the number of GameActions recorded for each update.
+    */
+    public int getNumActions() {
+        return amounts.length;
+    }
+
+
+    /**
+        Gets the number of updates read so far.
+    */
+    public long getTickCount() {
+        return tickCount;
+    }
+
+
+    /**
+        Checks if every recorded update has been read.
+    */
+    public boolean isFinished() {
+        return finished;
+    }
+
+
+    /**
+        Reads the GameAction amounts for the next update into the
+        specified array. Returns false, and fills the array with
+        zeros, if there are no more updates.
+    */
+    public boolean next(int[] actionAmounts) throws IOException {
+        if (finished) {
+            for (int i=0; i<actionAmounts.length; i++) {
+                actionAmounts[i] = 0;
+            }
+            return false;
+        }
+        int count = Math.min(actionAmounts.length, amounts.length);
+        System.arraycopy(amounts, 0, actionAmounts, 0, count);
+        tickCount++;
+
+        // read ahead, so isFinished() is true right after the
+        // last update
+        remaining--;
+        if (remaining == 0) {
+            readRun();
+        }
+        return true;
+    }
+
+
+    /**
+        Closes the log.
+    */
+    public void close() throws IOException {
+        finished = true;
+        in.close();
+    }
+
+
+    private void readRun() throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            finished = true;
+            in.close();
+            return;
+        }
+        remaining = readVarInt(first);
+        int mask = readVarInt(in.readUnsignedByte());
+        for (int i=0; i<amounts.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                int value = readVarInt(in.readUnsignedByte());
+                amounts[i] = (value >>> 1) ^ -(value & 1);
+            }
+            else {
+                amounts[i] = 0;
+            }
+        }
+    }
+
+
+    /**
+        Reads an int written by InputRecorder.writeVarInt(),
+        given its first byte.
+    */
+    private int readVarInt(int b) throws IOException {
+        int value = b & 0x7f;
+        int shift = 7;
+        while ((b & 0x80) != 0) {
+            b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+}
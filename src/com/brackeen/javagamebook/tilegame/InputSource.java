@@ -0,0 +1,15 @@
+package com.brackeen.javagamebook.tilegame;
+
+/**
+    An InputSource plays a game without a person at the keyboard,
+    by pressing and releasing the game's GameActions before each
+    update. Bots and scripted input are InputSources.
+*/
+public interface InputSource {
+
+    /**
+        Presses and releases the game's actions for the next
+        update.
+    */
+    public void update(GameManager game);
+}
@@ -0,0 +1,154 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+    The MapCompiler class converts text map files (maps/mapN.txt)
+    to a compact binary format (maps/mapN.map), which the
+    ResourceManager loads without parsing each character.
+    <p>A compiled map is, in big-endian order:<pre>
+    int    MAGIC ("CMAP")
+    byte   VERSION
+    int    width, height (in tiles)
+    byte   palette size (n)
+    byte   n palette entries: the map character for each tile
+           ('A' for tile A, and so on)
+    byte   width * height tile indices, row by row: 0 for no
+           tile, or 1 + the tile's index in the palette
+    int    spawn count
+    spawns: byte map character ('o', '!', '*', '1', or '2'),
+           int tile x, int tile y
+    </pre>
+    <p>Usage:<pre>
+    java com.brackeen.javagamebook.tilegame.MapCompiler
+        [file.txt ...]
+    </pre>
+    With no arguments, every maps/mapN.txt is compiled, starting
+    with map1.txt. Each map is written next to its text file.
+*/
+public class MapCompiler {
+
+    /**
+        First four bytes of a compiled map ("CMAP").
+    */
+    public static final int MAGIC = 0x434d4150;
+
+    /**
+        Version of the compiled map format.
+    */
+    public static final int VERSION = 2;
+
+    /**
+        File name extension of compiled maps.
+    */
+    public static final String EXTENSION = ".map";
+
+    // map characters that are Sprites
+    private static final String SPAWN_CHARS = "o!*12";
+
+    public static void main(String[] args) throws IOException {
+        ArrayList files = new ArrayList();
+        if (args.length == 0) {
+            for (int i=1; new File("maps/map" + i + ".txt").exists();
+                i++)
+            {
+                files.add("maps/map" + i + ".txt");
+            }
+        }
+        else {
+            for (int i=0; i<args.length; i++) {
+                files.add(args[i]);
+            }
+        }
+
+        for (int i=0; i<files.size(); i++) {
+            String filename = (String)files.get(i);
+            String outName = getCompiledName(filename);
+            compile(filename, outName);
+            System.out.println(filename + " -> " + outName + " (" +
+                new File(outName).length() + " bytes)");
+        }
+    }
+
+
+    /**
+        Gets the name of the compiled map for a text map file.
+    */
+    public static String getCompiledName(String filename) {
+        if (filename.endsWith(".txt")) {
+            filename = filename.substring(0,
+                filename.length() - ".txt".length());
+        }
+        return filename + EXTENSION;
+    }
+
+
+    /**
+        Compiles a text map file to a binary map file.
+    */
+    public static void compile(String filename, String outName)
+        throws IOException
+    {
+        ArrayList lines = new ArrayList();
+        int width = 0;
+
+        // read every line except comments, as the
+        // ResourceManager does
+        BufferedReader reader = new BufferedReader(
+            new FileReader(filename));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.startsWith("#")) {
+                lines.add(line);
+                width = Math.max(width, line.length());
+            }
+        }
+        reader.close();
+        int height = lines.size();
+
+        // build the palette and the tile indices
+        int[] paletteIndex = new int[26];
+        StringBuffer palette = new StringBuffer();
+        byte[] tileIndices = new byte[width * height];
+        ByteArrayOutputStream spawnBytes = new ByteArrayOutputStream();
+        DataOutputStream spawns = new DataOutputStream(spawnBytes);
+        int spawnCount = 0;
+        for (int y=0; y<height; y++) {
+            line = (String)lines.get(y);
+            for (int x=0; x<line.length(); x++) {
+                char ch = line.charAt(x);
+                if (ch >= 'A' && ch <= 'Z') {
+                    int tile = ch - 'A';
+                    if (paletteIndex[tile] == 0) {
+                        palette.append(ch);
+                        paletteIndex[tile] = palette.length();
+                    }
+                    tileIndices[y * width + x] =
+                        (byte)paletteIndex[tile];
+                }
+                else if (SPAWN_CHARS.indexOf(ch) != -1) {
+                    spawns.writeByte(ch);
+                    spawns.writeInt(x);
+                    spawns.writeInt(y);
+                    spawnCount++;
+                }
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(outName)));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeByte(palette.length());
+        for (int i=0; i<palette.length(); i++) {
+            out.writeByte(palette.charAt(i));
+        }
+        out.write(tileIndices);
+        out.writeInt(spawnCount);
+        spawnBytes.writeTo(out);
+        out.close();
+    }
+}
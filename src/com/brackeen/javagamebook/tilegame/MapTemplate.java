@@ -0,0 +1,149 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.Image;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The MapTemplate class holds a parsed map file: the tile at
+    each location and the Sprites the map starts with. A template
+    never changes once it's built, so it can be parsed once and
+    used to create any number of TileMaps, on any thread. Tiles
+    are kept the same way a TileMap keeps them, as palette
+    indices row by row, and are copied to a new TileMap with bulk
+    array copies (see TileMap(MapTemplate)).
+*/
+public class MapTemplate {
+
+    private int width;
+    private int height;
+    // tile images; index 0 is no tile
+    private Image[] palette;
+    // palette index of each tile, row by row; null for a row
+    // with no tiles
+    private byte[][] rows;
+    // one bit per tile, set if the tile is solid, row by row
+    private long[] solidMask;
+
+    // host Sprite and tile location of each starting Sprite
+    private Sprite[] spawnHosts;
+    private int[] spawnX;
+    private int[] spawnY;
+
+    /**
+        Creates a new MapTemplate with the specified tiles, as
+        indices into a palette of tile Images (index 0 is no
+        tile, and the palette has at most 256 entries), row by
+        row. The arrays are copied.
+    */
+    public MapTemplate(int width, int height, Image[] palette,
+        byte[] tileIndices, Sprite[] spawnHosts,
+        int[] spawnX, int[] spawnY)
+    {
+        this.width = width;
+        this.height = height;
+        this.palette = palette.clone();
+        rows = new byte[height][];
+        int wordsPerRow = (width + 63) >> 6;
+        solidMask = new long[wordsPerRow * height];
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                int index = tileIndices[y * width + x] & 0xff;
+                if (palette[index] == null) {
+                    continue;
+                }
+                if (rows[y] == null) {
+                    rows[y] = new byte[width];
+                }
+                rows[y][x] = (byte)index;
+                solidMask[y * wordsPerRow + (x >> 6)] |= (1L << x);
+            }
+        }
+        this.spawnHosts = spawnHosts.clone();
+        this.spawnX = spawnX.clone();
+        this.spawnY = spawnY.clone();
+    }
+
+
+    /**
+        Gets the width of this template (number of tiles across).
+    */
+    public int getWidth() {
+        return width;
+    }
+
+
+    /**
+        Gets the height of this template (number of tiles down).
+    */
+    public int getHeight() {
+        return height;
+    }
+
+
+    /**
+        Gets the tile at the specified location, or null if there
+        is no tile there.
+    */
+    public Image getTile(int x, int y) {
+        byte[] row = rows[y];
+        return (row == null) ? null : palette[row[x] & 0xff];
+    }
+
+
+    /**
+        Gets the palette of tile Images. Index 0 is no tile. The
+        array must not be modified.
+    */
+    Image[] getPalette() {
+        return palette;
+    }
+
+
+    /**
+        Gets the number of Sprites the map starts with.
+    */
+    public int getSpawnCount() {
+        return spawnHosts.length;
+    }
+
+
+    /**
+        Gets the host Sprite of a starting Sprite.
+    */
+    public Sprite getSpawnHost(int index) {
+        return spawnHosts[index];
+    }
+
+
+    /**
+        Gets the tile x location of a starting Sprite.
+    */
+    public int getSpawnX(int index) {
+        return spawnX[index];
+    }
+
+
+    /**
+        Gets the tile y location of a starting Sprite.
+    */
+    public int getSpawnY(int index) {
+        return spawnY[index];
+    }
+
+
+    /**
+        Copies this template's tile rows and solid tile bitset
+        into a new TileMap's arrays of the same size. Rows with
+        no tiles are left null.
+    */
+    void copyTiles(byte[][] destRows, long[] destSolidMask) {
+        for (int y=0; y<height; y++) {
+            if (rows[y] != null) {
+                destRows[y] = rows[y].clone();
+            }
+        }
+        System.arraycopy(solidMask, 0, destSolidMask, 0,
+            solidMask.length);
+    }
+}
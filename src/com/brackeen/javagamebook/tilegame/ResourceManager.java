@@ -2,11 +2,19 @@ package com.brackeen.javagamebook.tilegame;
 
 import java.awt.*;
 import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import javax.swing.ImageIcon;
 
 import com.brackeen.javagamebook.graphics.*;
+import com.brackeen.javagamebook.util.ThreadPool;
 import com.brackeen.javagamebook.tilegame.sprites.*;
 
 
@@ -14,11 +22,60 @@ import com.brackeen.javagamebook.tilegame.sprites.*;
     The ResourceManager class loads and manages tile Images and
     "host" Sprites used in the game. Game Sprites are cloned from
     "host" Sprites.
+    <p>Each map file is parsed once, into a MapTemplate, and
+    TileMaps are created from the template, so changing or
+    restarting maps doesn't read or parse files. If a map has
+    been compiled by the MapCompiler (maps/mapN.map, no older
+    than maps/mapN.txt), the compiled map is memory-mapped and
+    read instead of the text map.
+    <p>The next map can be prepared on a background thread while
+    the current one is played (see preloadNextMap()), so
+    loadNextMap() only has to add the map's Sprites.
+    <p>Compiled maps wider than CHUNKED_MAP_WIDTH aren't parsed
+    into a MapTemplate. They're loaded as a ChunkedTileMap, which
+    reads the tiles near the camera from the mapped file as
+    they're needed.
+    <p>Sprites that come and go during the game are kept in a
+    SpritePool for each host, so removed Sprites can be released
+    back to their pool and reused.
 */
 public class ResourceManager {
 
+    // number of sprites created up front for each pool
+    private static final int PLAYER_POOL_SIZE = 1;
+    private static final int LASER_POOL_SIZE = 32;
+    private static final int CENTIPEDE_POOL_SIZE = 16;
+    private static final int SPIDER_POOL_SIZE = 2;
+    private static final int MUSHROOM_POOL_SIZE = 64;
+
+    // Sprites a loaded map has room for beyond its starting
+    // Sprites, so spawning them doesn't allocate: as many as
+    // the pools hold
+    private static final int SPARE_SPRITES = PLAYER_POOL_SIZE +
+        LASER_POOL_SIZE + CENTIPEDE_POOL_SIZE + SPIDER_POOL_SIZE +
+        MUSHROOM_POOL_SIZE;
+
+    /**
+        Compiled maps wider than this (in tiles) are loaded as a
+        ChunkedTileMap.
+    */
+    public static final int CHUNKED_MAP_WIDTH = 1024;
+
     private ArrayList tiles;
     private int currentMap;
+
+    // parsed maps, by map number. Shared by ResourceManagers
+    // created from this one, so it's synchronized on itself.
+    private HashMap mapTemplates;
+    // whether each map is a ChunkedTileMap, as Booleans by map
+    // number. Shared and synchronized like mapTemplates.
+    private HashMap chunkedMaps;
+    // number of maps, or -1 if the last map hasn't been found
+    private int[] numMaps;
+
+    // thread for preloading maps, and the latest preload
+    private ThreadPool loader;
+    private MapPreload preload;
     private GraphicsConfiguration gc;
 
     // host sprites used for cloning
@@ -31,16 +88,52 @@ public class ResourceManager {
     private Sprite mushroomSprite;
     private Sprite centipedeSprite;
 
+    // sprite pools, by host sprite and by sprite class
+    private IdentityHashMap poolsByHost;
+    private HashMap poolsByClass;
+
 
     /**
         Creates a new ResourceManager with the specified
-        GraphicsConfiguration.
+        GraphicsConfiguration. If the GraphicsConfiguration is
+        null (for example, when running headless), transformed
+        images are created as plain in-memory images.
     */
     public ResourceManager(GraphicsConfiguration gc) {
         this.gc = gc;
+        mapTemplates = new HashMap();
+        chunkedMaps = new HashMap();
+        numMaps = new int[] { -1 };
         loadTileImages();
         loadCreatureSprites();
         loadPowerUpSprites();
+        createSpritePools();
+    }
+
+
+    /**
+        Creates a new ResourceManager that shares the tile images
+        and host Sprites already loaded by another ResourceManager,
+        but has its own SpritePools and its own current map. This
+        way many games can run at once, on different threads,
+        without loading the images for each one. Parsed maps
+        are shared, too.
+    */
+    public ResourceManager(ResourceManager resources) {
+        gc = resources.gc;
+        tiles = resources.tiles;
+        mapTemplates = resources.mapTemplates;
+        chunkedMaps = resources.chunkedMaps;
+        numMaps = resources.numMaps;
+        playerSprite = resources.playerSprite;
+        musicSprite = resources.musicSprite;
+        coinSprite = resources.coinSprite;
+        goalSprite = resources.goalSprite;
+        spiderSprite = resources.spiderSprite;
+        laserSprite = resources.laserSprite;
+        mushroomSprite = resources.mushroomSprite;
+        centipedeSprite = resources.centipedeSprite;
+        createSpritePools();
     }
 
 
@@ -73,10 +166,19 @@ public class ResourceManager {
             (y-1) * image.getHeight(null) / 2);
 
         // create a transparent (not translucent) image
-        Image newImage = gc.createCompatibleImage(
-            image.getWidth(null),
-            image.getHeight(null),
-            Transparency.BITMASK);
+        Image newImage;
+        if (gc != null) {
+            newImage = gc.createCompatibleImage(
+                image.getWidth(null),
+                image.getHeight(null),
+                Transparency.BITMASK);
+        }
+        else {
+            newImage = new BufferedImage(
+                image.getWidth(null),
+                image.getHeight(null),
+                BufferedImage.TYPE_INT_ARGB);
+        }
 
         // draw the transformed image
         Graphics2D g = (Graphics2D)newImage.getGraphics();
@@ -88,40 +190,255 @@ public class ResourceManager {
 
 
     public TileMap loadNextMap() {
-        TileMap map = null;
-        while (map == null) {
-            currentMap++;
+        // use the preloaded map, if it's ready
+        MapPreload finished = takePreload();
+        if (finished != null) {
+            currentMap = finished.mapNumber;
+            return addStartingSprites(finished.map, finished.template);
+        }
+
+        int next = getNextMapNumber(currentMap);
+        if (next == 0) {
+            // no maps to load!
+            return null;
+        }
+        currentMap = next;
+        return loadMap(currentMap);
+    }
+
+
+    public TileMap reloadMap() {
+        return loadMap(currentMap);
+    }
+
+
+    /**
+        Creates a new TileMap for the map with the specified
+        number, or returns null if there's no such map.
+    */
+    private TileMap loadMap(int mapNumber) {
+        if (isChunkedMap(mapNumber)) {
             try {
-                map = loadMap(
-                    "maps/map" + currentMap + ".txt");
+                return loadChunkedMap(getCompiledMapFile(mapNumber));
             }
             catch (IOException ex) {
-                if (currentMap == 1) {
-                    // no maps to load!
-                    return null;
-                }
-                currentMap = 0;
-                map = null;
+                ex.printStackTrace();
+                return null;
             }
         }
+        MapTemplate template = getMapTemplate(mapNumber);
+        return (template == null) ? null : createMap(template);
+    }
+
+
+    /**
+        Checks if there's a map with the specified number.
+    */
+    private boolean hasMap(int mapNumber) {
+        return isChunkedMap(mapNumber) ||
+            getMapTemplate(mapNumber) != null;
+    }
+
+
+    /**
+        Gets the compiled map file for a map, or null if the map
+        isn't compiled or its text map is newer.
+    */
+    private File getCompiledMapFile(int mapNumber) {
+        String filename = "maps/map" + mapNumber + ".txt";
+        File compiled = new File(MapCompiler.getCompiledName(filename));
+        if (compiled.exists() &&
+            compiled.lastModified() >= new File(filename).lastModified())
+        {
+            return compiled;
+        }
+        return null;
+    }
+
 
-        return map;
+    /**
+        Checks if a map is compiled and wider than
+        CHUNKED_MAP_WIDTH, so it's loaded as a ChunkedTileMap.
+        The compiled map's header is only read the first time.
+    */
+    private boolean isChunkedMap(int mapNumber) {
+        synchronized (mapTemplates) {
+            Integer key = Integer.valueOf(mapNumber);
+            Boolean chunked = (Boolean)chunkedMaps.get(key);
+            if (chunked == null) {
+                chunked = Boolean.valueOf(readIsChunkedMap(mapNumber));
+                chunkedMaps.put(key, chunked);
+            }
+            return chunked.booleanValue();
+        }
     }
 
 
-    public TileMap reloadMap() {
+    private boolean readIsChunkedMap(int mapNumber) {
+        File compiled = getCompiledMapFile(mapNumber);
+        if (compiled == null) {
+            return false;
+        }
         try {
-            return loadMap(
-                "maps/map" + currentMap + ".txt");
+            DataInputStream in = new DataInputStream(
+                new FileInputStream(compiled));
+            try {
+                return (in.readInt() == MapCompiler.MAGIC &&
+                    in.readByte() == MapCompiler.VERSION &&
+                    in.readInt() > CHUNKED_MAP_WIDTH);
+            }
+            finally {
+                in.close();
+            }
         }
         catch (IOException ex) {
-            ex.printStackTrace();
-            return null;
+            return false;
+        }
+    }
+
+
+    /**
+        Gets the parsed map with the specified number, loading
+        it from maps/mapN.map or maps/mapN.txt the first time.
+        Returns null if there's no such map.
+    */
+    public MapTemplate getMapTemplate(int mapNumber) {
+        synchronized (mapTemplates) {
+            if (numMaps[0] >= 0 && mapNumber > numMaps[0]) {
+                return null;
+            }
+            Integer key = Integer.valueOf(mapNumber);
+            MapTemplate template = (MapTemplate)mapTemplates.get(key);
+            if (template == null) {
+                File compiled = getCompiledMapFile(mapNumber);
+                try {
+                    if (compiled != null) {
+                        template = loadCompiledMapTemplate(compiled);
+                    }
+                    else {
+                        template = loadMapTemplate(
+                            "maps/map" + mapNumber + ".txt");
+                    }
+                }
+                catch (FileNotFoundException ex) {
+                    // past the last map
+                    numMaps[0] = mapNumber - 1;
+                    return null;
+                }
+                catch (IOException ex) {
+                    ex.printStackTrace();
+                    return null;
+                }
+                mapTemplates.put(key, template);
+            }
+            return template;
+        }
+    }
+
+
+    /**
+        Starts preparing the map after the current one on a
+        background thread: its file is loaded and parsed (if it
+        isn't already), and a TileMap is created with its tiles.
+        The next call to loadNextMap() uses the prepared map if
+        it's ready, or else loads the map itself. Sprites are
+        added by loadNextMap(), since SpritePools aren't used
+        from other threads.
+    */
+    public synchronized void preloadNextMap() {
+        if (loader == null) {
+            loader = new ThreadPool(1);
+        }
+        preload = new MapPreload(currentMap);
+        loader.runTask(preload);
+    }
+
+
+    /**
+        Stops the preloading thread, if one was started.
+    */
+    public synchronized void close() {
+        if (loader != null) {
+            loader.close();
+            loader = null;
+        }
+        preload = null;
+    }
+
+
+    /**
+        Takes the preloaded map that follows the current map, or
+        returns null if it isn't ready. Any other preload is
+        dropped.
+    */
+    private synchronized MapPreload takePreload() {
+        MapPreload p = preload;
+        preload = null;
+        if (p != null && p.isReady() && p.fromMap == currentMap) {
+            return p;
+        }
+        return null;
+    }
+
+
+    /**
+        Gets the number of the map after the specified map,
+        wrapping back to the first map after the last. Returns 0
+        if there are no maps.
+    */
+    private int getNextMapNumber(int mapNumber) {
+        int next = mapNumber + 1;
+        if (next != 1 && !hasMap(next)) {
+            next = 1;
+        }
+        return hasMap(next) ? next : 0;
+    }
+
+
+    /**
+        Creates a new TileMap from a parsed map: the tiles are
+        copied, and the starting Sprites and the player are
+        added.
+    */
+    public TileMap createMap(MapTemplate template) {
+        return addStartingSprites(new TileMap(template), template);
+    }
+
+
+    /**
+        Adds a template's starting Sprites and the player to a
+        map created from the template.
+    */
+    private TileMap addStartingSprites(TileMap newMap,
+        MapTemplate template)
+    {
+        for (int i=0; i<template.getSpawnCount(); i++) {
+            addSprite(newMap, template.getSpawnHost(i),
+                template.getSpawnX(i), template.getSpawnY(i));
         }
+
+        // add the player to the map
+        Sprite player = acquireSprite(playerSprite);
+        //player.setX(TileMapRenderer.tilesToPixels(30));
+        player.setX(400);
+        player.setY(400);
+        newMap.setPlayer(player);
+        reserveSprites(newMap);
+
+        return newMap;
     }
 
 
-    private TileMap loadMap(String filename)
+    /**
+        Makes room in a newly loaded map for the Sprites spawned
+        while it's played, so spawning them doesn't allocate.
+    */
+    void reserveSprites(TileMap map) {
+        map.reserveSprites(SPARE_SPRITES);
+    }
+
+
+    private MapTemplate loadMapTemplate(String filename)
         throws IOException
     {
         ArrayList lines = new ArrayList();
@@ -146,9 +463,11 @@ public class ResourceManager {
             }
         }
 
-        // parse the lines to create a TileEngine
+        // parse the lines to create a MapTemplate
         height = lines.size();
-        TileMap newMap = new TileMap(width, height);
+        byte[] tileIndices = new byte[width * height];
+        ArrayList spawnHosts = new ArrayList();
+        ArrayList spawnTiles = new ArrayList();
         for (int y=0; y<height; y++) {
             String line = (String)lines.get(y);
             for (int x=0; x<line.length(); x++) {
@@ -157,37 +476,220 @@ public class ResourceManager {
                 // check if the char represents tile A, B, C etc.
                 int tile = ch - 'A';
                 if (tile >= 0 && tile < tiles.size()) {
-                    newMap.setTile(x, y, (Image)tiles.get(tile));
+                    tileIndices[y * width + x] = (byte)(tile + 1);
+                    continue;
                 }
 
                 // check if the char represents a sprite
-                else if (ch == 'o') {
-                    addSprite(newMap, mushroomSprite, x, y);
-                }
-                else if (ch == '!') {
-                    addSprite(newMap, spiderSprite, x, y);
-                }
-                else if (ch == '*') {
-                    addSprite(newMap, goalSprite, x, y);
-                }
-                else if (ch == '1') {
-                    addSprite(newMap, centipedeSprite, x, y);
-                }
-                else if (ch == '2') {
-                    addSprite(newMap, laserSprite, x, y);
+                Sprite host = getSpawnHost(ch);
+                if (host != null) {
+                    spawnHosts.add(host);
+                    spawnTiles.add(new Point(x, y));
                 }
             }
         }
 
-        // add the player to the map
-        Sprite player = (Sprite)playerSprite.clone();
-        //player.setX(TileMapRenderer.tilesToPixels(30));
-        player.setX(400);
-        player.setY(400);
-        newMap.setPlayer(player);
+        int numSpawns = spawnHosts.size();
+        int[] spawnX = new int[numSpawns];
+        int[] spawnY = new int[numSpawns];
+        for (int i=0; i<numSpawns; i++) {
+            Point p = (Point)spawnTiles.get(i);
+            spawnX[i] = p.x;
+            spawnY[i] = p.y;
+        }
+        // palette index i + 1 is tile i
+        Image[] palette = new Image[tiles.size() + 1];
+        for (int i=0; i<tiles.size(); i++) {
+            palette[i + 1] = (Image)tiles.get(i);
+        }
+        return new MapTemplate(width, height, palette, tileIndices,
+            (Sprite[])spawnHosts.toArray(new Sprite[numSpawns]),
+            spawnX, spawnY);
+    }
 
 
-        return newMap;
+    /**
+        Loads a map compiled by the MapCompiler. The file is
+        memory-mapped, and the tile indices are read in one bulk
+        get, and used as they are.
+    */
+    private MapTemplate loadCompiledMapTemplate(File file)
+        throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(
+                FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return readCompiledMap(buffer, file.getName());
+        }
+        finally {
+            in.close();
+        }
+    }
+
+
+    /**
+        Loads a compiled map as a ChunkedTileMap. The file stays
+        mapped while the map is used. The map's starting Sprites
+        are saved in their chunks, and the chunks around the
+        player are loaded.
+    */
+    private TileMap loadChunkedMap(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        MappedByteBuffer buffer;
+        try {
+            FileChannel channel = in.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                channel.size());
+        }
+        finally {
+            // the mapping stays valid after the channel is closed
+            in.close();
+        }
+
+        try {
+            if (buffer.getInt() != MapCompiler.MAGIC ||
+                buffer.get() != MapCompiler.VERSION)
+            {
+                throw new IOException("Not a compiled map: " +
+                    file.getName());
+            }
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            Image[] palette = readPalette(buffer);
+            int tileDataOffset = buffer.position();
+            buffer.position(tileDataOffset + width * height);
+            ChunkedTileMap newMap = new ChunkedTileMap(this, buffer,
+                tileDataOffset, width, height, palette,
+                ChunkedTileMap.DEFAULT_MAX_CHUNKS);
+
+            int numSpawns = buffer.getInt();
+            for (int i=0; i<numSpawns; i++) {
+                Sprite host = getSpawnHost((char)buffer.get());
+                int x = buffer.getInt();
+                int y = buffer.getInt();
+                addSprite(newMap, host, x, y);
+            }
+
+            // add the player to the map
+            Sprite player = acquireSprite(playerSprite);
+            player.setX(400);
+            player.setY(400);
+            newMap.setPlayer(player);
+            newMap.pageAround(player.getX());
+            reserveSprites(newMap);
+            return newMap;
+        }
+        catch (RuntimeException ex) {
+            throw new IOException("Bad compiled map: " + file.getName());
+        }
+    }
+
+
+    /**
+        Reads the palette of a compiled map. Palette entries are
+        map characters; unknown tiles are left empty, like in
+        text maps.
+    */
+    private Image[] readPalette(ByteBuffer buffer) {
+        Image[] palette = new Image[1 + (buffer.get() & 0xff)];
+        for (int i=1; i<palette.length; i++) {
+            int tile = buffer.get() - 'A';
+            if (tile >= 0 && tile < tiles.size()) {
+                palette[i] = (Image)tiles.get(tile);
+            }
+        }
+        return palette;
+    }
+
+
+    private MapTemplate readCompiledMap(ByteBuffer buffer,
+        String name) throws IOException
+    {
+        try {
+            if (buffer.getInt() != MapCompiler.MAGIC ||
+                buffer.get() != MapCompiler.VERSION)
+            {
+                throw new IOException("Not a compiled map: " + name);
+            }
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+
+            Image[] palette = readPalette(buffer);
+
+            byte[] tileIndices = new byte[width * height];
+            buffer.get(tileIndices);
+
+            int numSpawns = buffer.getInt();
+            Sprite[] spawnHosts = new Sprite[numSpawns];
+            int[] spawnX = new int[numSpawns];
+            int[] spawnY = new int[numSpawns];
+            for (int i=0; i<numSpawns; i++) {
+                spawnHosts[i] = getSpawnHost((char)buffer.get());
+                spawnX[i] = buffer.getInt();
+                spawnY[i] = buffer.getInt();
+            }
+            return new MapTemplate(width, height, palette,
+                tileIndices, spawnHosts, spawnX, spawnY);
+        }
+        catch (RuntimeException ex) {
+            // truncated file or bad palette index
+            throw new IOException("Bad compiled map: " + name);
+        }
+    }
+
+
+    /**
+        Gets the host Sprite for a map character, or null if the
+        character isn't a Sprite.
+    */
+    private Sprite getSpawnHost(char ch) {
+        switch (ch) {
+            case 'o': return mushroomSprite;
+            case '!': return spiderSprite;
+            case '*': return goalSprite;
+            case '1': return centipedeSprite;
+            case '2': return laserSprite;
+            default: return null;
+        }
+    }
+
+
+    /**
+        A task that prepares the map after a map, run on the
+        loader thread.
+    */
+    private class MapPreload implements Runnable {
+
+        private int fromMap;
+        private int mapNumber;
+        private MapTemplate template;
+        private TileMap map;
+        private boolean ready;
+
+        public MapPreload(int fromMap) {
+            this.fromMap = fromMap;
+        }
+
+        public void run() {
+            int next = getNextMapNumber(fromMap);
+            // chunked maps are quick to open, and load as they go
+            if (next != 0 && !isChunkedMap(next)) {
+                MapTemplate nextTemplate = getMapTemplate(next);
+                TileMap nextMap = new TileMap(nextTemplate);
+                synchronized (this) {
+                    mapNumber = next;
+                    template = nextTemplate;
+                    map = nextMap;
+                    ready = true;
+                }
+            }
+        }
+
+        public synchronized boolean isReady() {
+            return ready;
+        }
     }
 
 
@@ -195,8 +697,8 @@ public class ResourceManager {
         Sprite hostSprite, int tileX, int tileY)
     {
         if (hostSprite != null) {
-            // clone the sprite from the "host"
-            Sprite sprite = (Sprite)hostSprite.clone();
+            // get a sprite like the "host"
+            Sprite sprite = acquireSprite(hostSprite);
 
             // center the sprite
             sprite.setX(
@@ -215,6 +717,110 @@ public class ResourceManager {
     }
 
 
+    /**
+        Gets a Sprite like the specified host Sprite, from the
+        host's SpritePool if it has one, or else by cloning the
+        host.
+    */
+    public Sprite acquireSprite(Sprite hostSprite) {
+        SpritePool pool = (SpritePool)poolsByHost.get(hostSprite);
+        if (pool != null) {
+            return pool.acquire();
+        }
+        return (Sprite)hostSprite.clone();
+    }
+
+
+    /**
+        Releases a Sprite that was removed from its map back to
+        its SpritePool. Does nothing if there's no pool for the
+        Sprite. The Sprite must not be used after it's released.
+    */
+    public void releaseSprite(Sprite sprite) {
+        SpritePool pool = (SpritePool)poolsByClass.get(
+            sprite.getClass());
+        if (pool != null) {
+            pool.release(sprite);
+        }
+    }
+
+
+    /**
+        Releases every Sprite in a map, including the player, to
+        their SpritePools. The map must not be used afterwards.
+    */
+    public void releaseSprites(TileMap map) {
+        Iterator i = map.getSprites();
+        while (i.hasNext()) {
+            releaseSprite((Sprite)i.next());
+        }
+        if (map.getPlayer() != null) {
+            releaseSprite(map.getPlayer());
+        }
+    }
+
+
+    /**
+        Gets every host Sprite: the player, laser, centipede,
+        spider, mushroom, goal, coin, and music Sprites, in that
+        order.
+    */
+    public Sprite[] getHostSprites() {
+        return new Sprite[] {
+            playerSprite, laserSprite, centipedeSprite, spiderSprite,
+            mushroomSprite, goalSprite, coinSprite, musicSprite
+        };
+    }
+
+
+    /**
+        Gets the number of tile images.
+    */
+    public int getNumTiles() {
+        return tiles.size();
+    }
+
+
+    /**
+        Gets the tile image for the specified tile (0 for tile
+        A, 1 for tile B, and so on).
+    */
+    public Image getTile(int index) {
+        return (Image)tiles.get(index);
+    }
+
+
+    /**
+        Gets the SpritePool for a host Sprite, or null if the
+        host has no pool.
+    */
+    public SpritePool getSpritePool(Sprite hostSprite) {
+        return (SpritePool)poolsByHost.get(hostSprite);
+    }
+
+
+    private void createSpritePools() {
+        poolsByHost = new IdentityHashMap();
+        poolsByClass = new HashMap();
+        createSpritePool(playerSprite, PLAYER_POOL_SIZE);
+        createSpritePool(laserSprite, LASER_POOL_SIZE);
+        createSpritePool(centipedeSprite, CENTIPEDE_POOL_SIZE);
+        createSpritePool(spiderSprite, SPIDER_POOL_SIZE);
+        createSpritePool(mushroomSprite, MUSHROOM_POOL_SIZE);
+        createSpritePool(goalSprite, 0);
+        createSpritePool(coinSprite, 0);
+        createSpritePool(musicSprite, 0);
+    }
+
+
+    private void createSpritePool(Sprite hostSprite, int size) {
+        SpritePool pool = new SpritePool(
+            new SpritePool.HostFactory(hostSprite), size);
+        poolsByHost.put(hostSprite, pool);
+        poolsByClass.put(hostSprite.getClass(), pool);
+    }
+
+
     // -----------------------------------------------------------
     // code for loading sprites and images
     // -----------------------------------------------------------
@@ -299,6 +905,22 @@ public class ResourceManager {
                 createImgAnim(images[0][10]),createImgAnim(images[0][8]));
         spiderSprite = new Spider(spiderAnim[0], spiderAnim[1],
                 spiderAnim[2], spiderAnim[3]);
+
+        // build the collision masks once; every Sprite cloned
+        // from these shares them
+        createCollisionMasks((Creature)playerSprite);
+        createCollisionMasks((Creature)laserSprite);
+        createCollisionMasks((Creature)centipedeSprite);
+        createCollisionMasks((Creature)mushroomSprite);
+        createCollisionMasks((Creature)spiderSprite);
+    }
+
+
+    private void createCollisionMasks(Creature creature) {
+        creature.getAnim1().createCollisionMasks();
+        creature.getAnim2().createCollisionMasks();
+        creature.getDeadLeft().createCollisionMasks();
+        creature.getDeadRight().createCollisionMasks();
     }
 
     /**
@@ -355,6 +977,21 @@ public class ResourceManager {
         return anim;
     }
 
+    /**
+        Defines the centipede, spider, mushroom and laser entity
+        types of an EntityStore from the host sprites.
+    */
+    public void defineEntityTypes(EntityStore store) {
+        store.defineType(TileMap.TYPE_CENTIPEDE,
+            (Creature)centipedeSprite);
+        store.defineType(TileMap.TYPE_SPIDER,
+            (Creature)spiderSprite);
+        store.defineType(TileMap.TYPE_MUSHROOM,
+            (Creature)mushroomSprite);
+        store.defineType(TileMap.TYPE_LASER,
+            (Creature)laserSprite);
+    }
+
     public Sprite getLaserSprite() {
         return laserSprite;
     }
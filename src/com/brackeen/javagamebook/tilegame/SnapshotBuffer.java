@@ -0,0 +1,301 @@
+package com.brackeen.javagamebook.tilegame;
+
+/**
+    The SnapshotBuffer class is a ring buffer of the most recent
+    snapshots (see Snapshotter), used to rewind the game. Only
+    the oldest and newest snapshots are kept whole. Every other
+    snapshot is kept as its difference from the snapshot before
+    it: the two are XORed, and the result is run-length encoded,
+    so the ints that didn't change (nearly all of them) take
+    almost no space.
+    <p>An encoded delta is a list of runs. Each run is a count of
+    unchanged ints, a count of changed ints, then the changed
+    ints XORed with the ints they replace. Because XOR undoes
+    itself, the same delta steps forward or back a snapshot.
+    <p>Getting a snapshot replays deltas from whichever end of
+    the buffer is nearer. Nothing is allocated once the buffer's
+    arrays have grown to fit the snapshots.
+*/
+public class SnapshotBuffer {
+
+    private int capacity;
+    private int size;
+
+    // index in the ring of the oldest snapshot
+    private int first;
+
+    // deltas[i] steps from the snapshot in slot i-1 to slot i
+    private int[][] deltas;
+    private int[] deltaLengths;
+
+    private int[] oldest;
+    private int[] newest;
+    private int[] scratch;
+
+    /**
+        Creates a new SnapshotBuffer that holds at most the
+        specified number of snapshots.
+    */
+    public SnapshotBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(
+                "Capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        deltas = new int[capacity][];
+        deltaLengths = new int[capacity];
+        oldest = new int[0];
+        newest = new int[0];
+        scratch = new int[0];
+    }
+
+
+    /**
+        Gets the maximum number of snapshots in this buffer.
+    */
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    /**
+        Gets the number of snapshots in this buffer.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+        Removes every snapshot from this buffer.
+    */
+    public void clear() {
+        size = 0;
+        first = 0;
+    }
+
+
+    /**
+        Adds a snapshot as the newest in this buffer. If the
+        buffer is full, the oldest snapshot is dropped. The
+        snapshot is copied, so the caller may reuse it.
+    */
+    public void add(int[] snapshot) {
+        int length = snapshot[0];
+        if (capacity == 1) {
+            // no deltas: the new snapshot replaces the old one
+            size = 0;
+        }
+        if (size == 0) {
+            oldest = copy(snapshot, length, oldest);
+            newest = copy(snapshot, length, newest);
+            first = 0;
+            size = 1;
+            return;
+        }
+
+        if (size == capacity) {
+            // drop the oldest: step it forward to the next slot
+            first = (first + 1) % capacity;
+            oldest = applyDelta(oldest, first);
+            size--;
+        }
+
+        int slot = (first + size) % capacity;
+        encodeDelta(newest, snapshot, slot);
+        newest = copy(snapshot, length, newest);
+        size++;
+    }
+
+
+    /**
+        Gets a snapshot from this buffer: 0 for the newest, 1 for
+        the one before it, and so on. The returned array is reused
+        by the next call to get(), and may be longer than the
+        snapshot.
+    */
+    public int[] get(int back) {
+        if (back < 0 || back >= size) {
+            throw new IndexOutOfBoundsException(
+                "No snapshot " + back + " back (size " + size + ")");
+        }
+        int index = size - 1 - back;
+        if (back <= index) {
+            // step back from the newest
+            scratch = copy(newest, newest[0], scratch);
+            for (int i=size-1; i>index; i--) {
+                scratch = applyDelta(scratch, (first + i) % capacity);
+            }
+        }
+        else {
+            // step forward from the oldest
+            scratch = copy(oldest, oldest[0], scratch);
+            for (int i=1; i<=index; i++) {
+                scratch = applyDelta(scratch, (first + i) % capacity);
+            }
+        }
+        return scratch;
+    }
+
+
+    /**
+        Removes the specified number of the newest snapshots, as
+        after rewinding past them.
+    */
+    public void removeNewest(int count) {
+        count = Math.min(count, size);
+        if (count == size) {
+            clear();
+            return;
+        }
+        for (int i=0; i<count; i++) {
+            newest = applyDelta(newest, (first + size - 1) % capacity);
+            size--;
+        }
+    }
+
+
+    /**
+        Gets the number of ints used to store every snapshot in
+        this buffer, including the whole oldest and newest
+        snapshots.
+    */
+    public int getEncodedSize() {
+        if (size == 0) {
+            return 0;
+        }
+        int total = oldest[0] + newest[0];
+        for (int i=1; i<size; i++) {
+            total += deltaLengths[(first + i) % capacity];
+        }
+        return total;
+    }
+
+
+    /**
+        Encodes the delta from one snapshot to the next, and
+        stores it in the specified slot.
+    */
+    private void encodeDelta(int[] from, int[] to, int slot) {
+        int fromLength = from[0];
+        int toLength = to[0];
+        int length = Math.max(fromLength, toLength);
+
+        // worst case: one run with every int changed
+        int[] delta = deltas[slot];
+        if (delta == null || delta.length < length + 3) {
+            delta = new int[length + length / 2 + 3];
+            deltas[slot] = delta;
+        }
+
+        int pos = 0;
+        int i = 0;
+        while (i < length) {
+            int unchanged = i;
+            while (i < length && get(from, fromLength, i) ==
+                get(to, toLength, i))
+            {
+                i++;
+            }
+            unchanged = i - unchanged;
+            if (i == length) {
+                break;
+            }
+            int countPos = pos + 1;
+            delta[pos] = unchanged;
+            pos += 2;
+            int changed = 0;
+            // end a run of changes at two unchanged ints in a row
+            while (i < length && (get(from, fromLength, i) !=
+                get(to, toLength, i) || (i + 1 < length &&
+                get(from, fromLength, i + 1) !=
+                get(to, toLength, i + 1))))
+            {
+                if (pos == delta.length) {
+                    delta = grow(delta, pos);
+                    deltas[slot] = delta;
+                }
+                delta[pos++] = get(from, fromLength, i) ^
+                    get(to, toLength, i);
+                changed++;
+                i++;
+            }
+            delta[countPos] = changed;
+            if (pos + 2 > delta.length) {
+                delta = grow(delta, pos);
+                deltas[slot] = delta;
+            }
+        }
+        deltaLengths[slot] = pos;
+    }
+
+
+    /**
+        Applies the delta in the specified slot to a snapshot,
+        stepping it forward or back, and returns the snapshot
+        (which is reallocated if it has to grow).
+    */
+    private int[] applyDelta(int[] snapshot, int slot) {
+        int[] delta = deltas[slot];
+        int end = deltaLengths[slot];
+        int oldLength = snapshot[0];
+
+        // the length (index 0) is part of the delta, so the new
+        // length is known once the first run is applied. Make
+        // sure there's room for either length first.
+        int newLength = oldLength;
+        if (end > 0 && delta[0] == 0) {
+            newLength = oldLength ^ delta[2];
+        }
+        if (snapshot.length < newLength) {
+            snapshot = copy(snapshot, oldLength, new int[0], newLength);
+        }
+        // ints past the old length are zero in XOR terms
+        for (int i=oldLength; i<newLength; i++) {
+            snapshot[i] = 0;
+        }
+
+        int pos = 0;
+        int i = 0;
+        while (pos < end) {
+            i += delta[pos++];
+            int changed = delta[pos++];
+            for (int j=0; j<changed; j++) {
+                snapshot[i++] ^= delta[pos++];
+            }
+        }
+        return snapshot;
+    }
+
+
+    private static int get(int[] snapshot, int length, int index) {
+        return (index < length) ? snapshot[index] : 0;
+    }
+
+
+    private static int[] grow(int[] array, int length) {
+        int[] newArray = new int[array.length * 2 + 2];
+        System.arraycopy(array, 0, newArray, 0, length);
+        return newArray;
+    }
+
+
+    private static int[] copy(int[] src, int length, int[] dest) {
+        return copy(src, length, dest, length);
+    }
+
+
+    /**
+        Copies the first length ints of src into dest, which is
+        reallocated if it's shorter than minLength.
+    */
+    private static int[] copy(int[] src, int length, int[] dest,
+        int minLength)
+    {
+        if (dest.length < minLength) {
+            dest = new int[minLength];
+        }
+        System.arraycopy(src, 0, dest, 0, length);
+        return dest;
+    }
+}
@@ -0,0 +1,281 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.Image;
+import java.util.IdentityHashMap;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+
+/**
+    The Snapshotter class saves a whole TileMap - its tiles,
+    Sprites, player, score, and EntityStore - to an array of
+    ints, and creates
+    a new TileMap from a saved snapshot. Restoring a snapshot
+    doesn't touch the filesystem: tiles come from the
+    ResourceManager's images and Sprites from its SpritePools.
+    <p>Every Sprite is saved as a record of the same length, so
+    snapshots of the same map at different times differ in few
+    ints, and compress well as deltas (see SnapshotBuffer).
+    <p>A snapshot is laid out as: the snapshot length, the score,
+    the map width and height, one tile code for each tile (row by
+    row), the number of Sprites, then a record for the player
+    followed by a record for each Sprite, in map order, then the
+    number of entities in the map's EntityStore (-1 if it has
+    none) followed by a record for each entity (see
+    EntityStore.save()).
+*/
+public class Snapshotter {
+
+    private static final int HEADER_SIZE = 4;
+
+    // fields of a Sprite record
+    private static final int KIND = 0;
+    private static final int X = 1;
+    private static final int Y = 2;
+    private static final int DX = 3;
+    private static final int DY = 4;
+    private static final int ANIM_TIME = 5;
+    private static final int STATE = 6;
+    private static final int STATE_TIME = 7;
+    private static final int STATE_TIME_HIGH = 8;
+    private static final int HEALTH = 9;
+    private static final int ANIM_INDEX = 10;
+
+    /**
+        Number of ints in a Sprite record.
+    */
+    static final int RECORD_SIZE = 11;
+
+    private ResourceManager resourceManager;
+    private Sprite[] hosts;
+    private Image[] tiles;
+    private IdentityHashMap tileCodes;
+
+    /**
+        Creates a new Snapshotter for maps that use the images
+        and host Sprites of the specified ResourceManager.
+    */
+    public Snapshotter(ResourceManager resourceManager) {
+        this.resourceManager = resourceManager;
+        hosts = resourceManager.getHostSprites();
+        tiles = new Image[resourceManager.getNumTiles()];
+        tileCodes = new IdentityHashMap();
+        for (int i=0; i<tiles.length; i++) {
+            tiles[i] = resourceManager.getTile(i);
+            // 0 is for no tile
+            tileCodes.put(tiles[i], Integer.valueOf(i + 1));
+        }
+    }
+
+
+    /**
+        Saves the specified map to a new snapshot.
+    */
+    public int[] capture(TileMap map) {
+        return capture(map, null);
+    }
+
+
+    /**
+        Saves the specified map to a snapshot in the specified
+        array, and returns it. If the array is null or too short,
+        a new array is returned instead. The array may be longer
+        than the snapshot.
+    */
+    public int[] capture(TileMap map, int[] snapshot) {
+        return capture(map, snapshot, true);
+    }
+
+
+    /**
+        Saves the specified map to a snapshot in the specified
+        array, like capture(TileMap, int[]). If saveEntities is
+        false, the map's EntityStore is left out, as if the map
+        had none, so restoring the snapshot gives a map with no
+        EntityStore.
+    */
+    public int[] capture(TileMap map, int[] snapshot,
+        boolean saveEntities)
+    {
+        int width = map.getWidth();
+        int height = map.getHeight();
+        int numSprites = map.getSpriteCount();
+        EntityStore entities =
+            saveEntities ? map.getEntityStore() : null;
+        int numEntities = (entities != null) ? entities.size() : 0;
+        int length = HEADER_SIZE + width * height + 1 +
+            (numSprites + 1) * RECORD_SIZE + 1 +
+            numEntities * EntityStore.RECORD_SIZE;
+        if (snapshot == null || snapshot.length < length) {
+            snapshot = new int[length];
+        }
+
+        snapshot[0] = length;
+        snapshot[1] = map.getScore();
+        snapshot[2] = width;
+        snapshot[3] = height;
+        int offset = HEADER_SIZE;
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                Image tile = map.getTile(x, y);
+                if (tile != null) {
+                    snapshot[offset] =
+                        ((Integer)tileCodes.get(tile)).intValue();
+                }
+                else {
+                    snapshot[offset] = 0;
+                }
+                offset++;
+            }
+        }
+
+        snapshot[offset++] = numSprites;
+        saveSprite(map.getPlayer(), snapshot, offset);
+        offset += RECORD_SIZE;
+        for (int i=0; i<numSprites; i++) {
+            saveSprite(map.getSprite(i), snapshot, offset);
+            offset += RECORD_SIZE;
+        }
+
+        snapshot[offset++] = (entities != null) ? numEntities : -1;
+        for (int i=0; i<numEntities; i++) {
+            entities.save(i, snapshot, offset);
+            offset += EntityStore.RECORD_SIZE;
+        }
+        return snapshot;
+    }
+
+
+    /**
+        Creates a new TileMap from a snapshot. The snapshot may be
+        longer than the length saved in it.
+    */
+    public TileMap restore(int[] snapshot) {
+        int width = snapshot[2];
+        int height = snapshot[3];
+        TileMap map = new TileMap(width, height);
+        map.setScore(snapshot[1]);
+        int offset = HEADER_SIZE;
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                int code = snapshot[offset++];
+                if (code != 0) {
+                    map.setTile(x, y, tiles[code - 1]);
+                }
+            }
+        }
+
+        int numSprites = snapshot[offset++];
+        map.setPlayer(loadSprite(snapshot, offset));
+        offset += RECORD_SIZE;
+        for (int i=0; i<numSprites; i++) {
+            map.addSprite(loadSprite(snapshot, offset));
+            offset += RECORD_SIZE;
+        }
+
+        int numEntities = snapshot[offset++];
+        if (numEntities >= 0) {
+            EntityStore entities = new EntityStore(numEntities);
+            resourceManager.defineEntityTypes(entities);
+            for (int i=0; i<numEntities; i++) {
+                entities.load(snapshot, offset);
+                offset += EntityStore.RECORD_SIZE;
+            }
+            map.setEntityStore(entities);
+        }
+        resourceManager.reserveSprites(map);
+        return map;
+    }
+
+
+    /**
+        Saves a Sprite to a record at the specified offset.
+    */
+    void saveSprite(Sprite sprite, int[] snapshot, int offset) {
+        snapshot[offset + KIND] = getKind(sprite);
+        snapshot[offset + X] = Float.floatToIntBits(sprite.getX());
+        snapshot[offset + Y] = Float.floatToIntBits(sprite.getY());
+        snapshot[offset + DX] =
+            Float.floatToIntBits(sprite.getVelocityX());
+        snapshot[offset + DY] =
+            Float.floatToIntBits(sprite.getVelocityY());
+        snapshot[offset + ANIM_TIME] = (int)sprite.getAnimTime();
+        if (sprite instanceof Creature) {
+            Creature creature = (Creature)sprite;
+            snapshot[offset + STATE] = creature.getState();
+            long stateTime = creature.getStateTime();
+            snapshot[offset + STATE_TIME] = (int)stateTime;
+            snapshot[offset + STATE_TIME_HIGH] = (int)(stateTime >>> 32);
+            snapshot[offset + HEALTH] = creature.getHealth();
+            snapshot[offset + ANIM_INDEX] = creature.getAnimIndex();
+        }
+        else {
+            // the array may be reused, so clear the Creature fields
+            for (int i=STATE; i<RECORD_SIZE; i++) {
+                snapshot[offset + i] = 0;
+            }
+        }
+    }
+
+
+    /**
+        Gets a new Sprite from the SpritePools and sets it up from
+        the record at the specified offset.
+    */
+    Sprite loadSprite(int[] snapshot, int offset) {
+        Sprite sprite = resourceManager.acquireSprite(
+            hosts[snapshot[offset + KIND]]);
+        sprite.setX(Float.intBitsToFloat(snapshot[offset + X]));
+        sprite.setY(Float.intBitsToFloat(snapshot[offset + Y]));
+        sprite.setVelocityX(
+            Float.intBitsToFloat(snapshot[offset + DX]));
+        sprite.setVelocityY(
+            Float.intBitsToFloat(snapshot[offset + DY]));
+        sprite.savePosition();
+        if (sprite instanceof Creature) {
+            long stateTime =
+                ((long)snapshot[offset + STATE_TIME_HIGH] << 32) |
+                (snapshot[offset + STATE_TIME] & 0xffffffffL);
+            ((Creature)sprite).restore(snapshot[offset + STATE],
+                stateTime,
+                snapshot[offset + HEALTH],
+                snapshot[offset + ANIM_INDEX],
+                snapshot[offset + ANIM_TIME]);
+        }
+        else {
+            sprite.setAnimTime(snapshot[offset + ANIM_TIME]);
+        }
+        return sprite;
+    }
+
+
+    /**
+        Gets the TileMap type of the Sprite in a record.
+    */
+    int getType(int[] snapshot, int offset) {
+        return TileMap.getType(hosts[snapshot[offset + KIND]]);
+    }
+
+
+    /**
+        Checks if the Sprite in a record is a live Creature.
+    */
+    boolean isAlive(int[] snapshot, int offset) {
+        return (hosts[snapshot[offset + KIND]] instanceof Creature &&
+            snapshot[offset + STATE] == Creature.STATE_NORMAL);
+    }
+
+
+    /**
+        Gets the index of the host Sprite that a Sprite is like.
+    */
+    private int getKind(Sprite sprite) {
+        for (int i=0; i<hosts.length; i++) {
+            if (hosts[i].getClass() == sprite.getClass()) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(
+            "No host Sprite for " + sprite.getClass().getName());
+    }
+}
@@ -0,0 +1,761 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import com.brackeen.javagamebook.graphics.CollisionMask;
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The SpatialGrid class is a uniform grid index of Sprites,
+    with one cell per map tile. Each Sprite is listed in every
+    cell its bounds touch, so finding the Sprites near a
+    rectangle only looks at a few cells instead of every Sprite
+    in the map.
+    <p>Sprites must be re-indexed with update() after they move
+    or change size. Sprites outside the grid are kept in the
+    nearest edge cells.
+    <p>The grid also counts the Sprites anchored in each tile (the
+    tile containing a Sprite's top-left corner), so checking
+    whether a tile is occupied takes constant time.
+    <p>Queries report results to a callback, and don't allocate
+    any objects. Queries can't be nested: a Visitor, PairVisitor
+    or Filter must not start another query on the same grid.
+    Every cell is allocated when the grid is created, so moving
+    Sprites only allocates when a cell has to grow.
+    <p>A grid for a map too wide to index every column (see
+    ChunkedTileMap) has cells for only some columns. Map columns
+    are mapped to grid columns as they're loaded; Sprites must
+    not be in a column that isn't mapped.
+*/
+public class SpatialGrid {
+
+    /**
+        Receives the Sprites found by a query.
+    */
+    public interface Visitor {
+        /**
+            Visits a Sprite. Returns false to stop the query.
+        */
+        public boolean visit(Sprite sprite);
+    }
+
+
+    /**
+        Receives the pairs of Sprites found by queryPairs().
+    */
+    public interface PairVisitor {
+        /**
+            Checks if a pair of Sprites listed in the same cell
+            should have their bounds compared. Called before
+            visit(), so it should be cheap.
+        */
+        public boolean isWanted(Sprite sprite, Sprite other);
+
+        /**
+            Visits a pair of Sprites whose bounds overlap.
+        */
+        public void visit(Sprite sprite, Sprite other);
+    }
+
+
+    /**
+        Decides which overlapping Sprite a findFirstOverlap()
+        query returns.
+    */
+    public interface Filter {
+        /**
+            Returns true if the other Sprite should be returned
+            as the Sprite overlapping the specified Sprite.
+        */
+        public boolean accept(Sprite sprite, Sprite other);
+    }
+
+
+    private static final int INITIAL_CELL_CAPACITY = 4;
+
+    private int width;
+    private int height;
+    // map columns, and the grid column of each (null if the grid
+    // has every column)
+    private int columns;
+    private int[] columnMap;
+    private Entry[][] cells;
+    private int[] cellSizes;
+    // one bit per cell listing two or more Sprites
+    private long[] crowdedCells;
+    private int[] anchorCounts;
+    private IdentityHashMap entries;
+    private Entry freeEntries;
+    private int queryMark;
+    private float impactTime;
+    // time the rectangles of the last getImpactTime() call stop
+    // overlapping
+    private float exitTime;
+
+    /**
+        Creates a new SpatialGrid with the specified width and
+        height, in tiles.
+    */
+    public SpatialGrid(int width, int height) {
+        this(width, height, width);
+    }
+
+
+    /**
+        Creates a new SpatialGrid for a map with the specified
+        width and height, in tiles, with cells for only the
+        specified number of columns. If that's fewer than the
+        width, no columns are mapped to start with (see
+        mapColumns()).
+    */
+    public SpatialGrid(int width, int height, int gridColumns) {
+        columns = Math.max(1, width);
+        this.width = Math.max(1, Math.min(columns, gridColumns));
+        this.height = Math.max(1, height);
+        if (this.width < columns) {
+            columnMap = new int[columns];
+            Arrays.fill(columnMap, -1);
+        }
+        cells = new Entry[this.width * this.height][];
+        for (int i=0; i<cells.length; i++) {
+            cells[i] = new Entry[INITIAL_CELL_CAPACITY];
+        }
+        cellSizes = new int[cells.length];
+        crowdedCells = new long[(cells.length + 63) >> 6];
+        anchorCounts = new int[cells.length];
+        entries = new IdentityHashMap();
+    }
+
+
+    /**
+        Gets the number of Sprites in this grid.
+    */
+    public int size() {
+        return entries.size();
+    }
+
+
+    /**
+        Maps a range of map columns to a range of grid columns.
+        The grid columns must be empty.
+    */
+    public void mapColumns(int firstColumn, int count, int gridColumn) {
+        for (int i=0; i<count; i++) {
+            columnMap[firstColumn + i] = gridColumn + i;
+        }
+    }
+
+
+    /**
+        Unmaps a range of map columns. There must be no Sprites in
+        the columns.
+    */
+    public void unmapColumns(int firstColumn, int count) {
+        for (int i=0; i<count; i++) {
+            columnMap[firstColumn + i] = -1;
+        }
+    }
+
+
+    /**
+        Checks if the specified Sprite is in this grid.
+    */
+    public boolean contains(Sprite sprite) {
+        return entries.containsKey(sprite);
+    }
+
+
+    /**
+        Adds a Sprite to this grid at its current location. Does
+        nothing if the Sprite is already in this grid.
+    */
+    public void add(Sprite sprite) {
+        if (entries.containsKey(sprite)) {
+            return;
+        }
+        // reuse a removed entry if there is one
+        Entry entry = freeEntries;
+        if (entry != null) {
+            freeEntries = entry.next;
+            entry.next = null;
+            entry.sprite = sprite;
+        }
+        else {
+            entry = new Entry(sprite);
+        }
+        entries.put(sprite, entry);
+        setBounds(entry);
+        insert(entry);
+    }
+
+
+    /**
+        Makes room for the specified number of Sprites beyond the
+        ones in this grid, so adding them doesn't allocate.
+    */
+    public void reserve(int count) {
+        int free = 0;
+        for (Entry e=freeEntries; e != null; e=e.next) {
+            free++;
+        }
+        for (int i=free; i<count; i++) {
+            Entry entry = new Entry(null);
+            entry.next = freeEntries;
+            freeEntries = entry;
+        }
+        IdentityHashMap newEntries =
+            new IdentityHashMap(entries.size() + count);
+        newEntries.putAll(entries);
+        entries = newEntries;
+    }
+
+
+    /**
+        Removes a Sprite from this grid.
+    */
+    public void remove(Sprite sprite) {
+        Entry entry = (Entry)entries.remove(sprite);
+        if (entry != null) {
+            erase(entry);
+            entry.sprite = null;
+            entry.next = freeEntries;
+            freeEntries = entry;
+        }
+    }
+
+
+    /**
+        Removes all Sprites from this grid.
+    */
+    public void clear() {
+        entries.clear();
+        for (int i=0; i<cells.length; i++) {
+            Entry[] cell = cells[i];
+            for (int j=0; j<cellSizes[i]; j++) {
+                cell[j] = null;
+            }
+            cellSizes[i] = 0;
+            anchorCounts[i] = 0;
+        }
+        Arrays.fill(crowdedCells, 0);
+    }
+
+
+    /**
+        Re-indexes a Sprite after it moved or changed size. Does
+        nothing if the Sprite isn't in this grid.
+    */
+    public void update(Sprite sprite) {
+        Entry entry = (Entry)entries.get(sprite);
+        if (entry == null) {
+            return;
+        }
+        int x = Math.round(sprite.getX());
+        int y = Math.round(sprite.getY());
+        int anchorX = TileMapRenderer.pixelsToTiles(x);
+        int anchorY = TileMapRenderer.pixelsToTiles(y);
+        int left = clampX(anchorX);
+        int top = clampY(anchorY);
+        int right = clampX(TileMapRenderer.pixelsToTiles(
+            x + sprite.getWidth() - 1));
+        int bottom = clampY(TileMapRenderer.pixelsToTiles(
+            y + sprite.getHeight() - 1));
+
+        // only touch the cells if it moved to different ones
+        if (left != entry.left || top != entry.top ||
+            right != entry.right || bottom != entry.bottom ||
+            anchorX != entry.anchorX || anchorY != entry.anchorY)
+        {
+            erase(entry);
+            entry.anchorX = anchorX;
+            entry.anchorY = anchorY;
+            entry.left = left;
+            entry.top = top;
+            entry.right = right;
+            entry.bottom = bottom;
+            insert(entry);
+        }
+    }
+
+
+    /**
+        Checks if any Sprite is anchored in the specified tile,
+        that is, if the tile contains the top-left corner of a
+        Sprite.
+    */
+    public boolean isOccupied(int tileX, int tileY) {
+        if (tileX < 0 || tileX >= columns ||
+            tileY < 0 || tileY >= height)
+        {
+            return false;
+        }
+        int index = getCellIndex(tileX, tileY);
+        return (index != -1 && anchorCounts[index] != 0);
+    }
+
+
+    /**
+        Gets a Sprite anchored in the specified tile, or null if
+        the tile isn't occupied.
+    */
+    public Sprite getSpriteAt(int tileX, int tileY) {
+        if (!isOccupied(tileX, tileY)) {
+            return null;
+        }
+        int index = getCellIndex(tileX, tileY);
+        Entry[] cell = cells[index];
+        int size = cellSizes[index];
+        for (int i=0; i<size; i++) {
+            Entry entry = cell[i];
+            if (entry.anchorX == tileX && entry.anchorY == tileY) {
+                return entry.sprite;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+        Visits every Sprite whose bounds overlap the specified
+        rectangle (in pixels).
+    */
+    public void query(int x, int y, int w, int h, Visitor visitor) {
+        query(x, y, w, h, null, visitor, null);
+    }
+
+
+    /**
+        Visits every Sprite whose bounds overlap the bounds of the
+        specified Sprite, not including the Sprite itself. The
+        Sprite doesn't have to be in this grid.
+    */
+    public void queryOverlaps(Sprite sprite, Visitor visitor) {
+        query(Math.round(sprite.getX()), Math.round(sprite.getY()),
+            sprite.getWidth(), sprite.getHeight(),
+            sprite, visitor, null);
+    }
+
+
+    /**
+        Gets the first Sprite whose bounds overlap the bounds of
+        the specified Sprite and that is accepted by the Filter,
+        or null if there is no such Sprite. The Sprite doesn't
+        have to be in this grid.
+    */
+    public Sprite findFirstOverlap(Sprite sprite, Filter filter) {
+        return query(Math.round(sprite.getX()),
+            Math.round(sprite.getY()),
+            sprite.getWidth(), sprite.getHeight(),
+            sprite, null, filter);
+    }
+
+
+    /**
+        Visits every pair of Sprites in this grid whose bounds
+        overlap, in one pass over the cells that list two or more
+        Sprites (kept in a bitset). Each pair is visited once,
+        from the top-left cell that lists both Sprites, so the
+        order only depends on where the Sprites are and the order
+        they were indexed in.
+    */
+    public void queryPairs(PairVisitor visitor) {
+        // only cells with two or more Sprites can have a pair
+        for (int word=0; word<crowdedCells.length; word++) {
+            long bits = crowdedCells[word];
+            while (bits != 0) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                queryPairs(index, visitor);
+            }
+        }
+    }
+
+
+    private void queryPairs(int index, PairVisitor visitor) {
+        Entry[] cell = cells[index];
+        int size = cellSizes[index];
+        for (int i=0; i<size-1; i++) {
+            Entry entry = cell[i];
+            for (int j=i+1; j<size; j++) {
+                Entry other = cell[j];
+                // pairs that share several cells are only visited
+                // in the first one
+                if (getCellIndex(Math.max(entry.left, other.left),
+                    Math.max(entry.top, other.top)) != index)
+                {
+                    continue;
+                }
+                if (visitor.isWanted(entry.sprite, other.sprite) &&
+                    overlaps(entry.sprite, other.sprite))
+                {
+                    visitor.visit(entry.sprite, other.sprite);
+                }
+            }
+        }
+    }
+
+
+    /**
+        Gets the first Sprite, accepted by the Filter, that the
+        specified Sprite runs into while moving from (startX,
+        startY) to its current location, or null if there is no
+        such Sprite. Unlike findFirstOverlap(), Sprites in between
+        the start and the end are found even if the move is
+        longer than the Sprites are. The time of the impact is
+        available from getImpactTime().
+        <p>If both Sprites have CollisionMasks, their hitboxes are
+        swept, and the impact is when their solid pixels first
+        overlap, checked at each pixel of the move; a Sprite whose
+        hitbox is in the way but whose pixels never touch isn't
+        hit. Otherwise, their whole images are swept.
+    */
+    public Sprite findFirstImpact(Sprite sprite, float startX,
+        float startY, Filter filter)
+    {
+        float moveX = sprite.getX() - startX;
+        float moveY = sprite.getY() - startY;
+        int w = sprite.getWidth();
+        int h = sprite.getHeight();
+        CollisionMask mask = sprite.getCollisionMask();
+
+        // the cells the whole move touches
+        int left = clampX(TileMapRenderer.pixelsToTiles(
+            (int)Math.floor(Math.min(startX, sprite.getX()))));
+        int top = clampY(TileMapRenderer.pixelsToTiles(
+            (int)Math.floor(Math.min(startY, sprite.getY()))));
+        int right = clampX(TileMapRenderer.pixelsToTiles(
+            (int)Math.ceil(Math.max(startX, sprite.getX())) + w - 1));
+        int bottom = clampY(TileMapRenderer.pixelsToTiles(
+            (int)Math.ceil(Math.max(startY, sprite.getY())) + h - 1));
+        int mark = ++queryMark;
+
+        Sprite first = null;
+        float firstTime = 1;
+        for (int cy=top; cy<=bottom; cy++) {
+            for (int cx=left; cx<=right; cx++) {
+                int index = getCellIndex(cx, cy);
+                if (index == -1) {
+                    continue;
+                }
+                Entry[] cell = cells[index];
+                int size = cellSizes[index];
+                for (int i=0; i<size; i++) {
+                    Entry entry = cell[i];
+                    if (entry.mark == mark) {
+                        continue;
+                    }
+                    entry.mark = mark;
+                    Sprite other = entry.sprite;
+                    // filter first, so only wanted Sprites' masks
+                    // are tested
+                    if (other == sprite || !filter.accept(sprite, other)) {
+                        continue;
+                    }
+                    CollisionMask otherMask = other.getCollisionMask();
+                    float time;
+                    if (mask != null && otherMask != null) {
+                        time = getMaskImpactTime(mask, startX, startY,
+                            moveX, moveY, otherMask, other);
+                    }
+                    else {
+                        time = getImpactTime(startX, startY, w, h,
+                            moveX, moveY, other.getX(), other.getY(),
+                            other.getWidth(), other.getHeight());
+                    }
+                    // keep the earliest; ties go to the first found
+                    if (time >= 0 && (first == null || time < firstTime)) {
+                        first = other;
+                        firstTime = time;
+                    }
+                }
+            }
+        }
+        impactTime = (first != null) ? firstTime : 1;
+        return first;
+    }
+
+
+    /**
+        Gets the time of the impact found by the last call to
+        findFirstImpact(), from 0 (the start of the move) to 1
+        (the end of the move).
+    */
+    public float getImpactTime() {
+        return impactTime;
+    }
+
+
+    /**
+        Gets the time, from 0 to 1, when a CollisionMask moving
+        from (startX, startY) by (moveX, moveY) first has a solid
+        pixel in the same place as another Sprite's mask, or -1
+        if it doesn't during the move. Only the part of the move
+        where the hitboxes overlap is checked, one pixel of the
+        move at a time.
+    */
+    private float getMaskImpactTime(CollisionMask mask,
+        float startX, float startY, float moveX, float moveY,
+        CollisionMask otherMask, Sprite other)
+    {
+        if (mask.getHitWidth() == 0 || otherMask.getHitWidth() == 0) {
+            return -1;
+        }
+        float ox = other.getX();
+        float oy = other.getY();
+        float entry = getImpactTime(startX + mask.getHitX(),
+            startY + mask.getHitY(), mask.getHitWidth(),
+            mask.getHitHeight(), moveX, moveY,
+            ox + otherMask.getHitX(), oy + otherMask.getHitY(),
+            otherMask.getHitWidth(), otherMask.getHitHeight());
+        if (entry < 0) {
+            return -1;
+        }
+
+        float exit = exitTime;
+        int otherX = Math.round(ox);
+        int otherY = Math.round(oy);
+        float distance = Math.max(Math.abs(moveX), Math.abs(moveY));
+        float step = (distance > 1) ? 1 / distance : 1;
+        for (float time=entry; time<=exit; time+=step) {
+            int x = Math.round(startX + moveX * time);
+            int y = Math.round(startY + moveY * time);
+            if (mask.collides(x, y, otherMask, otherX, otherY)) {
+                return time;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+        Gets the time, from 0 to 1, when a rectangle moving from
+        (x, y) by (moveX, moveY) first overlaps another rectangle,
+        or -1 if it doesn't during the move. The time they stop
+        overlapping is kept in exitTime.
+    */
+    private float getImpactTime(float x, float y, int w, int h,
+        float moveX, float moveY, float ox, float oy, int ow, int oh)
+    {
+        float entry = 0;
+        float exit = 1;
+
+        if (moveX == 0) {
+            if (x >= ox + ow || ox >= x + w) {
+                return -1;
+            }
+        }
+        else {
+            float t1 = (ox - (x + w)) / moveX;
+            float t2 = (ox + ow - x) / moveX;
+            entry = Math.max(entry, Math.min(t1, t2));
+            exit = Math.min(exit, Math.max(t1, t2));
+        }
+
+        if (moveY == 0) {
+            if (y >= oy + oh || oy >= y + h) {
+                return -1;
+            }
+        }
+        else {
+            float t1 = (oy - (y + h)) / moveY;
+            float t2 = (oy + oh - y) / moveY;
+            entry = Math.max(entry, Math.min(t1, t2));
+            exit = Math.min(exit, Math.max(t1, t2));
+        }
+
+        exitTime = exit;
+        return (entry < exit) ? entry : -1;
+    }
+
+
+    private Sprite query(int x, int y, int w, int h, Sprite self,
+        Visitor visitor, Filter filter)
+    {
+        int left = clampX(TileMapRenderer.pixelsToTiles(x));
+        int top = clampY(TileMapRenderer.pixelsToTiles(y));
+        int right = clampX(TileMapRenderer.pixelsToTiles(x + w - 1));
+        int bottom = clampY(TileMapRenderer.pixelsToTiles(y + h - 1));
+        int mark = ++queryMark;
+
+        for (int cy=top; cy<=bottom; cy++) {
+            for (int cx=left; cx<=right; cx++) {
+                int index = getCellIndex(cx, cy);
+                if (index == -1) {
+                    continue;
+                }
+                Entry[] cell = cells[index];
+                int size = cellSizes[index];
+                for (int i=0; i<size; i++) {
+                    Entry entry = cell[i];
+                    // Sprites that span cells are only seen once
+                    if (entry.mark == mark) {
+                        continue;
+                    }
+                    entry.mark = mark;
+                    Sprite other = entry.sprite;
+                    if (other == self || !overlaps(other, x, y, w, h)) {
+                        continue;
+                    }
+                    if (filter != null) {
+                        if (filter.accept(self, other)) {
+                            return other;
+                        }
+                    }
+                    else if (!visitor.visit(other)) {
+                        return null;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+
+    private static boolean overlaps(Sprite sprite,
+        int x, int y, int w, int h)
+    {
+        int sx = Math.round(sprite.getX());
+        int sy = Math.round(sprite.getY());
+        return (sx < x + w && x < sx + sprite.getWidth() &&
+            sy < y + h && y < sy + sprite.getHeight());
+    }
+
+
+    private static boolean overlaps(Sprite sprite, Sprite other) {
+        return overlaps(other, Math.round(sprite.getX()),
+            Math.round(sprite.getY()), sprite.getWidth(),
+            sprite.getHeight());
+    }
+
+
+    private void setBounds(Entry entry) {
+        Sprite sprite = entry.sprite;
+        int x = Math.round(sprite.getX());
+        int y = Math.round(sprite.getY());
+        entry.anchorX = TileMapRenderer.pixelsToTiles(x);
+        entry.anchorY = TileMapRenderer.pixelsToTiles(y);
+        entry.left = clampX(entry.anchorX);
+        entry.top = clampY(entry.anchorY);
+        entry.right = clampX(TileMapRenderer.pixelsToTiles(
+            x + sprite.getWidth() - 1));
+        entry.bottom = clampY(TileMapRenderer.pixelsToTiles(
+            y + sprite.getHeight() - 1));
+    }
+
+
+    private int clampX(int x) {
+        return Math.max(0, Math.min(columns - 1, x));
+    }
+
+
+    private int clampY(int y) {
+        return Math.max(0, Math.min(height - 1, y));
+    }
+
+
+    private int getAnchorIndex(Entry entry) {
+        if (entry.anchorX < 0 || entry.anchorX >= columns ||
+            entry.anchorY < 0 || entry.anchorY >= height)
+        {
+            return -1;
+        }
+        return getCellIndex(entry.anchorX, entry.anchorY);
+    }
+
+
+    /**
+        Gets the index of the cell for a map tile, or -1 if the
+        tile's column isn't mapped.
+    */
+    private int getCellIndex(int tileX, int tileY) {
+        if (columnMap == null) {
+            return tileY * width + tileX;
+        }
+        int gridX = columnMap[tileX];
+        return (gridX == -1) ? -1 : tileY * width + gridX;
+    }
+
+
+    private void insert(Entry entry) {
+        int anchor = getAnchorIndex(entry);
+        if (anchor != -1) {
+            anchorCounts[anchor]++;
+        }
+        for (int cy=entry.top; cy<=entry.bottom; cy++) {
+            for (int cx=entry.left; cx<=entry.right; cx++) {
+                int index = getCellIndex(cx, cy);
+                if (index == -1) {
+                    continue;
+                }
+                Entry[] cell = cells[index];
+                int size = cellSizes[index];
+                if (size == cell.length) {
+                    Entry[] newCell = new Entry[size * 2];
+                    System.arraycopy(cell, 0, newCell, 0, size);
+                    cell = newCell;
+                    cells[index] = cell;
+                }
+                cell[size] = entry;
+                cellSizes[index] = size + 1;
+                if (size == 1) {
+                    crowdedCells[index >> 6] |= (1L << index);
+                }
+            }
+        }
+    }
+
+
+    private void erase(Entry entry) {
+        int anchor = getAnchorIndex(entry);
+        if (anchor != -1) {
+            anchorCounts[anchor]--;
+        }
+        for (int cy=entry.top; cy<=entry.bottom; cy++) {
+            for (int cx=entry.left; cx<=entry.right; cx++) {
+                int index = getCellIndex(cx, cy);
+                if (index == -1) {
+                    continue;
+                }
+                Entry[] cell = cells[index];
+                int size = cellSizes[index];
+                for (int i=0; i<size; i++) {
+                    if (cell[i] == entry) {
+                        // keep the order of the other entries
+                        System.arraycopy(cell, i+1, cell, i,
+                            size - i - 1);
+                        cell[size - 1] = null;
+                        cellSizes[index] = size - 1;
+                        if (size == 2) {
+                            crowdedCells[index >> 6] &= ~(1L << index);
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+        A Sprite in the grid, the tile it is anchored in, and the
+        cells it is listed in.
+    */
+    private static class Entry {
+
+        Sprite sprite;
+        int anchorX;
+        int anchorY;
+        int left;
+        int top;
+        int right;
+        int bottom;
+        int mark;
+        // next entry in the free list
+        Entry next;
+
+        public Entry(Sprite sprite) {
+            this.sprite = sprite;
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The SpriteBag class is a set of Sprites kept packed at the
+    front of an array, so they're looped over by index with
+    size() and get(), without an Iterator. A Sprite is removed in
+    constant time by moving the last Sprite into its place, so
+    removing a Sprite changes the order of the others (the same
+    way every time, so games still play the same way from the
+    same seed). removeAll() removes many Sprites in one pass,
+    keeping the others in order.
+    <p>Each Sprite gets a handle when it's added: an int that
+    stays the same while the Sprite is in the bag, however often
+    it's moved. A handle is a slot in a table of indexes, plus a
+    generation count that changes each time the slot is freed,
+    so the handle of a removed Sprite never finds the Sprite
+    that gets its slot next.
+    <p>The bag finds a Sprite's handle with its own hash table,
+    by identity, so adding, finding, and removing Sprites takes
+    constant time and doesn't allocate unless the bag grows (see
+    ensureCapacity()). A Sprite can be in a bag only once.
+*/
+public class SpriteBag {
+
+    /**
+        Decides which Sprites removeAll() removes.
+    */
+    public interface Filter {
+        /**
+            Checks if a Sprite should be removed.
+        */
+        public boolean accept(Sprite sprite);
+    }
+
+
+    /**
+        A handle that no Sprite has.
+    */
+    public static final int NO_HANDLE = -1;
+
+    /**
+        Most Sprites a bag can hold.
+    */
+    public static final int MAX_CAPACITY = 1 << 20;
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final int SLOT_BITS = 20;
+    private static final int SLOT_MASK = MAX_CAPACITY - 1;
+    private static final int GENERATION_MASK =
+        (1 << (31 - SLOT_BITS)) - 1;
+
+    // the Sprites, packed, and the handle of each
+    private int size;
+    private Sprite[] sprites;
+    private int[] spriteHandles;
+
+    // index of each slot's Sprite, or for a free slot, -2 minus
+    // the next free slot
+    private int[] slotIndexes;
+    private int[] slotGenerations;
+    private int numSlots;
+    private int freeSlot = -1;
+
+    // handles by Sprite, open-addressed with linear probing;
+    // never more than half full. The hash of each key is kept
+    // so entries can be moved without hashing them again.
+    private Sprite[] keys;
+    private int[] keyHandles;
+    private int[] keyHashes;
+
+    /**
+        Creates a new, empty SpriteBag.
+    */
+    public SpriteBag() {
+        this(DEFAULT_CAPACITY);
+    }
+
+
+    /**
+        Creates a new, empty SpriteBag with room for the
+        specified number of Sprites.
+    */
+    public SpriteBag(int capacity) {
+        capacity = Math.max(1, Math.min(capacity, MAX_CAPACITY));
+        sprites = new Sprite[capacity];
+        spriteHandles = new int[capacity];
+        slotIndexes = new int[capacity];
+        slotGenerations = new int[capacity];
+        int tableSize = getTableSize(capacity);
+        keys = new Sprite[tableSize];
+        keyHandles = new int[tableSize];
+        keyHashes = new int[tableSize];
+    }
+
+
+    /**
+        Gets the number of Sprites in this bag.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+        Checks if this bag has no Sprites.
+    */
+    public boolean isEmpty() {
+        return (size == 0);
+    }
+
+
+    /**
+        Gets the Sprite at the specified index, from 0 to size()
+        - 1.
+    */
+    public Sprite get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(
+                "Index: " + index + ", Size: " + size);
+        }
+        return sprites[index];
+    }
+
+
+    /**
+        Adds a Sprite to the end of this bag and returns its
+        handle.
+    */
+    public int add(Sprite sprite) {
+        if (sprite == null) {
+            throw new IllegalArgumentException("Sprite is null");
+        }
+        if (size == sprites.length) {
+            ensureCapacity(Math.min(MAX_CAPACITY, size * 2));
+        }
+        // find the empty entry for the Sprite
+        int hash = hash(sprite);
+        int mask = keys.length - 1;
+        int i = hash & mask;
+        while (keys[i] != null) {
+            if (keys[i] == sprite) {
+                throw new IllegalArgumentException(
+                    "Sprite is already in the bag");
+            }
+            i = (i + 1) & mask;
+        }
+
+        int slot;
+        if (freeSlot != -1) {
+            slot = freeSlot;
+            freeSlot = -2 - slotIndexes[slot];
+        }
+        else {
+            slot = numSlots++;
+        }
+        int handle = (slotGenerations[slot] << SLOT_BITS) | slot;
+        slotIndexes[slot] = size;
+        sprites[size] = sprite;
+        spriteHandles[size] = handle;
+        size++;
+        keys[i] = sprite;
+        keyHandles[i] = handle;
+        keyHashes[i] = hash;
+        return handle;
+    }
+
+
+    /**
+        Checks if a Sprite is in this bag.
+    */
+    public boolean contains(Sprite sprite) {
+        return (find(sprite) != -1);
+    }
+
+
+    /**
+        Gets the handle of a Sprite in this bag, or NO_HANDLE if
+        the Sprite isn't in it.
+    */
+    public int getHandle(Sprite sprite) {
+        int i = find(sprite);
+        return (i == -1) ? NO_HANDLE : keyHandles[i];
+    }
+
+
+    /**
+        Gets the index of the Sprite with the specified handle,
+        or -1 if it has been removed.
+    */
+    public int indexOf(int handle) {
+        if (handle < 0) {
+            return -1;
+        }
+        int slot = handle & SLOT_MASK;
+        if (slot >= numSlots || slotIndexes[slot] < 0 ||
+            slotGenerations[slot] != (handle >>> SLOT_BITS))
+        {
+            return -1;
+        }
+        return slotIndexes[slot];
+    }
+
+
+    /**
+        Gets the Sprite with the specified handle, or null if it
+        has been removed.
+    */
+    public Sprite getByHandle(int handle) {
+        int index = indexOf(handle);
+        return (index == -1) ? null : sprites[index];
+    }
+
+
+    /**
+        Removes a Sprite from this bag, moving the last Sprite
+        into its place. Returns false if the Sprite wasn't in
+        this bag.
+    */
+    public boolean remove(Sprite sprite) {
+        int i = find(sprite);
+        if (i == -1) {
+            return false;
+        }
+        int slot = keyHandles[i] & SLOT_MASK;
+        removeKey(i);
+        removeIndex(slotIndexes[slot]);
+        return true;
+    }
+
+
+    /**
+        Removes the Sprite at the specified index, moving the
+        last Sprite into its place, and returns it.
+    */
+    public Sprite removeAt(int index) {
+        Sprite sprite = get(index);
+        removeKey(find(sprite));
+        removeIndex(index);
+        return sprite;
+    }
+
+
+    /**
+        Removes every Sprite the filter accepts, in one pass,
+        keeping the other Sprites in order. The removed Sprites
+        are added, in order, to the specified bag, if it isn't
+        null. Returns the number of Sprites removed.
+    */
+    public int removeAll(Filter filter, SpriteBag removed) {
+        if (removed == this) {
+            throw new IllegalArgumentException(
+                "Can't remove Sprites into the same bag");
+        }
+        int oldSize = size;
+        int kept = 0;
+        for (int i=0; i<oldSize; i++) {
+            Sprite sprite = sprites[i];
+            int handle = spriteHandles[i];
+            if (filter.accept(sprite)) {
+                removeKey(find(sprite));
+                freeSlot(handle & SLOT_MASK);
+                if (removed != null) {
+                    removed.add(sprite);
+                }
+            }
+            else {
+                if (kept != i) {
+                    sprites[kept] = sprite;
+                    spriteHandles[kept] = handle;
+                    slotIndexes[handle & SLOT_MASK] = kept;
+                }
+                kept++;
+            }
+        }
+        for (int i=kept; i<oldSize; i++) {
+            sprites[i] = null;
+        }
+        size = kept;
+        return oldSize - kept;
+    }
+
+
+    /**
+        Removes every Sprite from this bag. Their handles are no
+        longer valid.
+    */
+    public void clear() {
+        for (int i=0; i<size; i++) {
+            removeKey(find(sprites[i]));
+            freeSlot(spriteHandles[i] & SLOT_MASK);
+            sprites[i] = null;
+        }
+        size = 0;
+    }
+
+
+    /**
+        Makes room for the specified number of Sprites, so adding
+        up to that many doesn't allocate.
+    */
+    public void ensureCapacity(int capacity) {
+        if (capacity <= sprites.length) {
+            return;
+        }
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalStateException("Too many Sprites: " +
+                capacity);
+        }
+        Sprite[] newSprites = new Sprite[capacity];
+        System.arraycopy(sprites, 0, newSprites, 0, size);
+        sprites = newSprites;
+        spriteHandles = grow(spriteHandles, capacity, size);
+        slotIndexes = grow(slotIndexes, capacity, numSlots);
+        slotGenerations = grow(slotGenerations, capacity, numSlots);
+
+        int tableSize = getTableSize(capacity);
+        if (tableSize > keys.length) {
+            Sprite[] oldKeys = keys;
+            int[] oldHandles = keyHandles;
+            int[] oldHashes = keyHashes;
+            keys = new Sprite[tableSize];
+            keyHandles = new int[tableSize];
+            keyHashes = new int[tableSize];
+            int mask = tableSize - 1;
+            for (int i=0; i<oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int j = oldHashes[i] & mask;
+                    while (keys[j] != null) {
+                        j = (j + 1) & mask;
+                    }
+                    keys[j] = oldKeys[i];
+                    keyHandles[j] = oldHandles[i];
+                    keyHashes[j] = oldHashes[i];
+                }
+            }
+        }
+    }
+
+
+    /**
+        Gets an Iterator of the Sprites in this bag, in order.
+        Removing a Sprite with the Iterator moves the last Sprite
+        into its place, and the Iterator returns that Sprite
+        next. Unlike looping with get(), this allocates the
+        Iterator.
+    */
+    public Iterator iterator() {
+        return new BagIterator();
+    }
+
+
+    /**
+        Moves the last Sprite into the specified index and frees
+        the slot of the Sprite that was there. The Sprite must
+        already be removed from the hash table.
+    */
+    private void removeIndex(int index) {
+        freeSlot(spriteHandles[index] & SLOT_MASK);
+        int last = --size;
+        if (index != last) {
+            int handle = spriteHandles[last];
+            sprites[index] = sprites[last];
+            spriteHandles[index] = handle;
+            slotIndexes[handle & SLOT_MASK] = index;
+        }
+        sprites[last] = null;
+    }
+
+
+    private void freeSlot(int slot) {
+        slotGenerations[slot] =
+            (slotGenerations[slot] + 1) & GENERATION_MASK;
+        slotIndexes[slot] = -2 - freeSlot;
+        freeSlot = slot;
+    }
+
+
+    /**
+        Gets the index of a Sprite in the hash table, or -1 if
+        it isn't there.
+    */
+    private int find(Sprite sprite) {
+        if (sprite == null) {
+            return -1;
+        }
+        int mask = keys.length - 1;
+        for (int i=hash(sprite) & mask; keys[i] != null;
+            i=(i+1) & mask)
+        {
+            if (keys[i] == sprite) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+        Removes the entry at index i of the hash table, moving
+        back later entries of its run that would no longer be
+        found past the gap.
+    */
+    private void removeKey(int i) {
+        int mask = keys.length - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            Sprite key = keys[j];
+            if (key == null) {
+                break;
+            }
+            // the gap is between the entry's home and the entry
+            int home = keyHashes[j] & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = key;
+                keyHandles[i] = keyHandles[j];
+                keyHashes[i] = keyHashes[j];
+                i = j;
+            }
+        }
+        keys[i] = null;
+    }
+
+
+    private static int hash(Sprite sprite) {
+        int h = System.identityHashCode(sprite);
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+
+
+    /**
+        Gets the hash table size for a capacity: the smallest
+        power of two at least twice the capacity.
+    */
+    private static int getTableSize(int capacity) {
+        int tableSize = 2;
+        while (tableSize < capacity * 2) {
+            tableSize <<= 1;
+        }
+        return tableSize;
+    }
+
+
+    private static int[] grow(int[] array, int capacity, int count) {
+        int[] newArray = new int[capacity];
+        System.arraycopy(array, 0, newArray, 0, count);
+        return newArray;
+    }
+
+
+    /**
+        An Iterator over the bag's Sprites, by index.
+    */
+    private class BagIterator implements Iterator {
+
+        private int next;
+        private int last = -1;
+
+        public boolean hasNext() {
+            return (next < size);
+        }
+
+        public Object next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return sprites[last];
+        }
+
+        public void remove() {
+            if (last == -1) {
+                throw new IllegalStateException();
+            }
+            removeAt(last);
+            // the last Sprite was moved into the removed one's
+            // place, so it's returned next
+            next = last;
+            last = -1;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Random;
+
+import com.brackeen.javagamebook.graphics.Animation;
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The SpriteBagBenchmark class compares the SpriteBag a TileMap
+    keeps its Sprites in with a LinkedList and an ArrayList, the
+    way the game uses them:
+    <ul>
+    <li>iteration: reading every Sprite, as each update and draw
+    does. The LinkedList and the bag's legacy view use an
+    Iterator; the ArrayList and the bag are looped by index.
+    <li>churn: removing a random Sprite and adding another, as
+    when a power up is picked up and a new creature spawns.
+    </ul>
+    Every test is run once to warm up before any is timed, then
+    timed a few times; the fastest time is reported, since the
+    others can include the JIT compiler or the garbage collector
+    running.
+    <p>Usage:<pre>
+    java com.brackeen.javagamebook.tilegame.SpriteBagBenchmark
+        [-sprites n] [-rounds n] [-seed n]
+    </pre>
+*/
+public class SpriteBagBenchmark {
+
+    private static final int DEFAULT_SPRITES = 1000;
+    private static final int DEFAULT_ROUNDS = 20000;
+    private static final long DEFAULT_SEED = 1;
+    // fewest removes and adds to warm up with, so the churn
+    // loops are compiled before they're timed
+    private static final int MIN_WARMUP_CHURNS = 20000;
+    private static final int TIMED_RUNS = 5;
+
+    public static void main(String[] args) {
+        int numSprites = DEFAULT_SPRITES;
+        int rounds = DEFAULT_ROUNDS;
+        long seed = DEFAULT_SEED;
+        for (int i=0; i<args.length; i++) {
+            if (args[i].equals("-sprites") && i+1 < args.length) {
+                numSprites = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-rounds") && i+1 < args.length) {
+                rounds = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-seed") && i+1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            }
+            else {
+                System.err.println("Usage: SpriteBagBenchmark " +
+                    "[-sprites n] [-rounds n] [-seed n]");
+                System.exit(1);
+            }
+        }
+
+        SpriteBagBenchmark benchmark =
+            new SpriteBagBenchmark(numSprites, seed);
+        benchmark.run(rounds, System.out);
+    }
+
+
+    private static final int LINKED_LIST = 0;
+    private static final int ARRAY_LIST = 1;
+    private static final int BAG_ITERATOR = 2;
+    private static final int BAG = 3;
+    private static final String[] NAMES = {
+        "LinkedList", "ArrayList", "SpriteBag iterator", "SpriteBag"
+    };
+
+    private Sprite[] pool;
+    // for each container, the Sprites in it followed by the
+    // others, and the Random choosing which to churn
+    private Sprite[][] orders;
+    private Random[] randoms;
+    private LinkedList linkedList;
+    private ArrayList arrayList;
+    private SpriteBag bag;
+    // read after each test, so the work isn't optimized away
+    private float sink;
+
+    /**
+        Creates a new SpriteBagBenchmark with the specified
+        number of Sprites in each container, and twice as many
+        Sprites to churn through.
+    */
+    public SpriteBagBenchmark(int numSprites, long seed) {
+        pool = new Sprite[numSprites * 2];
+        Animation anim = new Animation();
+        for (int i=0; i<pool.length; i++) {
+            pool[i] = new Sprite(anim);
+            pool[i].setX(i);
+        }
+        orders = new Sprite[NAMES.length][];
+        randoms = new Random[NAMES.length];
+        for (int type=0; type<NAMES.length; type++) {
+            orders[type] = new Sprite[pool.length];
+            System.arraycopy(pool, 0, orders[type], 0, pool.length);
+            randoms[type] = new Random(seed);
+        }
+        linkedList = new LinkedList();
+        arrayList = new ArrayList();
+        bag = new SpriteBag(numSprites);
+        for (int i=0; i<numSprites; i++) {
+            linkedList.add(pool[i]);
+            arrayList.add(pool[i]);
+            bag.add(pool[i]);
+        }
+    }
+
+
+    /**
+        Runs the iteration and churn tests for each container,
+        and prints the times.
+    */
+    public void run(int rounds, PrintStream out) {
+        int numSprites = bag.size();
+        out.println("sprites:     " + numSprites);
+        out.println("iteration:   " + rounds + " rounds (ns/sprite)");
+        double[] times = new double[NAMES.length];
+        for (int type=0; type<NAMES.length; type++) {
+            iterate(type, rounds);
+        }
+        for (int type=0; type<NAMES.length; type++) {
+            long best = Long.MAX_VALUE;
+            for (int run=0; run<TIMED_RUNS; run++) {
+                long start = System.nanoTime();
+                iterate(type, rounds);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            times[type] = (double)best / ((long)rounds * numSprites);
+        }
+        printTimes(out, times);
+
+        out.println("churn:       " + rounds +
+            " removes and adds (ns/op)");
+        for (int type=0; type<NAMES.length; type++) {
+            if (type != BAG_ITERATOR) {
+                churn(type, Math.max(rounds, MIN_WARMUP_CHURNS));
+            }
+        }
+        for (int type=0; type<NAMES.length; type++) {
+            if (type == BAG_ITERATOR) {
+                times[type] = -1;
+                continue;
+            }
+            long best = Long.MAX_VALUE;
+            for (int run=0; run<TIMED_RUNS; run++) {
+                long start = System.nanoTime();
+                churn(type, rounds);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            times[type] = (double)best / rounds;
+        }
+        printTimes(out, times);
+        out.println("(checksum " + sink + ")");
+    }
+
+
+    private void printTimes(PrintStream out, double[] times) {
+        for (int type=0; type<NAMES.length; type++) {
+            if (times[type] < 0) {
+                continue;
+            }
+            String name = (NAMES[type] + ":                    ")
+                .substring(0, 20);
+            out.println("  " + name +
+                Math.round(times[type] * 100) / 100.0 + " (" +
+                Math.round(times[LINKED_LIST] / times[type] * 10) /
+                10.0 + "x LinkedList)");
+        }
+    }
+
+
+    /**
+        Reads every Sprite of a container the specified number
+        of times. Each container has its own loop, so the JIT
+        compiles each one for its container.
+    */
+    private void iterate(int type, int rounds) {
+        if (type == LINKED_LIST) {
+            sink += iterate(linkedList, rounds);
+        }
+        else if (type == ARRAY_LIST) {
+            sink += iterate(arrayList, rounds);
+        }
+        else if (type == BAG_ITERATOR) {
+            sink += iterateBagIterator(rounds);
+        }
+        else {
+            sink += iterateBag(rounds);
+        }
+    }
+
+
+    private static float iterate(LinkedList list, int rounds) {
+        float sum = 0;
+        for (int r=0; r<rounds; r++) {
+            Iterator i = list.iterator();
+            while (i.hasNext()) {
+                sum += ((Sprite)i.next()).getX();
+            }
+        }
+        return sum;
+    }
+
+
+    private static float iterate(ArrayList list, int rounds) {
+        float sum = 0;
+        for (int r=0; r<rounds; r++) {
+            for (int j=0; j<list.size(); j++) {
+                sum += ((Sprite)list.get(j)).getX();
+            }
+        }
+        return sum;
+    }
+
+
+    private float iterateBagIterator(int rounds) {
+        float sum = 0;
+        for (int r=0; r<rounds; r++) {
+            Iterator i = bag.iterator();
+            while (i.hasNext()) {
+                sum += ((Sprite)i.next()).getX();
+            }
+        }
+        return sum;
+    }
+
+
+    private float iterateBag(int rounds) {
+        float sum = 0;
+        for (int r=0; r<rounds; r++) {
+            for (int j=0; j<bag.size(); j++) {
+                sum += bag.get(j).getX();
+            }
+        }
+        return sum;
+    }
+
+
+    /**
+        Removes a random Sprite from a container and adds one
+        that isn't in it, the specified number of times. Every
+        container gets the same Sprites in the same order.
+    */
+    private void churn(int type, int rounds) {
+        if (type == LINKED_LIST) {
+            churn(linkedList, type, rounds);
+        }
+        else if (type == ARRAY_LIST) {
+            churn(arrayList, type, rounds);
+        }
+        else {
+            churnBag(type, rounds);
+        }
+    }
+
+
+    private void churn(LinkedList list, int type, int rounds) {
+        Random random = randoms[type];
+        Sprite[] order = orders[type];
+        int numSprites = list.size();
+        int numOthers = pool.length - numSprites;
+        for (int r=0; r<rounds; r++) {
+            int i = random.nextInt(numSprites);
+            int j = numSprites + random.nextInt(numOthers);
+            list.remove(order[i]);
+            list.add(order[j]);
+            swap(order, i, j);
+        }
+    }
+
+
+    private void churn(ArrayList list, int type, int rounds) {
+        Random random = randoms[type];
+        Sprite[] order = orders[type];
+        int numSprites = list.size();
+        int numOthers = pool.length - numSprites;
+        for (int r=0; r<rounds; r++) {
+            int i = random.nextInt(numSprites);
+            int j = numSprites + random.nextInt(numOthers);
+            list.remove(order[i]);
+            list.add(order[j]);
+            swap(order, i, j);
+        }
+    }
+
+
+    private void churnBag(int type, int rounds) {
+        Random random = randoms[type];
+        Sprite[] order = orders[type];
+        int numSprites = bag.size();
+        int numOthers = pool.length - numSprites;
+        for (int r=0; r<rounds; r++) {
+            int i = random.nextInt(numSprites);
+            int j = numSprites + random.nextInt(numOthers);
+            bag.remove(order[i]);
+            bag.add(order[j]);
+            swap(order, i, j);
+        }
+    }
+
+
+    /**
+        Swaps a Sprite in a container (in the first part of
+        order) with one that isn't.
+    */
+    private static void swap(Sprite[] order, int i, int j) {
+        Sprite temp = order[i];
+        order[i] = order[j];
+        order[j] = temp;
+    }
+}
@@ -0,0 +1,128 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The SpritePool class keeps Sprites of one kind (an
+    "archetype", like lasers) that are no longer in use, so they
+    can be reused instead of creating new ones. Sprites are
+    reset when they are acquired. New Sprites are only created,
+    with the pool's Factory, when the pool is empty.
+    <p>The pool counts hits (acquires that reused a Sprite) and
+    misses (acquires that had to create one). In a steady state,
+    every acquire should be a hit.
+*/
+public class SpritePool {
+
+    /**
+        Creates new Sprites for a SpritePool.
+    */
+    public interface Factory {
+        public Sprite create();
+    }
+
+
+    /**
+        A Factory that clones a "host" Sprite.
+    */
+    public static class HostFactory implements Factory {
+
+        private Sprite host;
+
+        public HostFactory(Sprite host) {
+            this.host = host;
+        }
+
+        public Sprite create() {
+            return (Sprite)host.clone();
+        }
+    }
+
+
+    private Factory factory;
+    private Sprite[] free;
+    private int freeCount;
+    private long hits;
+    private long misses;
+
+    /**
+        Creates a new, empty SpritePool that creates Sprites with
+        the specified Factory.
+    */
+    public SpritePool(Factory factory) {
+        this(factory, 0);
+    }
+
+
+    /**
+        Creates a new SpritePool that creates Sprites with the
+        specified Factory, and creates the specified number of
+        Sprites up front.
+    */
+    public SpritePool(Factory factory, int initialSize) {
+        this.factory = factory;
+        free = new Sprite[Math.max(initialSize, 8)];
+        for (int i=0; i<initialSize; i++) {
+            free[freeCount++] = factory.create();
+        }
+    }
+
+
+    /**
+        Gets a Sprite from this pool, or creates one if the pool
+        is empty. The Sprite is reset, but its position is not
+        set.
+    */
+    public Sprite acquire() {
+        Sprite sprite;
+        if (freeCount > 0) {
+            hits++;
+            sprite = free[--freeCount];
+            free[freeCount] = null;
+        }
+        else {
+            misses++;
+            sprite = factory.create();
+        }
+        sprite.reset();
+        return sprite;
+    }
+
+
+    /**
+        Returns a Sprite to this pool. The Sprite must not be
+        used again by the caller.
+    */
+    public void release(Sprite sprite) {
+        if (freeCount == free.length) {
+            Sprite[] newFree = new Sprite[free.length * 2];
+            System.arraycopy(free, 0, newFree, 0, freeCount);
+            free = newFree;
+        }
+        free[freeCount++] = sprite;
+    }
+
+
+    /**
+        Gets the number of Sprites waiting in this pool.
+    */
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+
+    /**
+        Gets the number of acquires that reused a Sprite.
+    */
+    public long getHits() {
+        return hits;
+    }
+
+
+    /**
+        Gets the number of acquires that had to create a Sprite.
+    */
+    public long getMisses() {
+        return misses;
+    }
+}
@@ -1,21 +1,90 @@
 package com.brackeen.javagamebook.tilegame;
 
 import java.awt.Image;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.sprites.*;
 
 /**
     The TileMap class contains the data for a tile-based
-    map, including Sprites. Each tile is a reference to an
-    Image. Of course, Images are used multiple times in the tile
-    map.
+    map, including Sprites. Each tile is one of the map's tile
+    Images. Of course, Images are used multiple times in the
+    tile map.
+    <p>Sprites are kept in a SpriteBag, so they're removed in
+    constant time and looped over by index. They're also kept in
+    a bag for each type (centipede, spider, mushroom, laser, and
+    power up), along with a count of how many creatures of each
+    type are alive, so game rules don't have to search every
+    Sprite for a type.
+    <p>Sprites are either awake or dormant. Only awake Sprites
+    are moved, collide with others, and are animated each
+    update, so an update's cost grows with the awake Sprites,
+    not all of them. Static creatures (see Creature.isStatic()),
+    like mushrooms and creatures that haven't been woken up on
+    screen yet, are made dormant by sleepStaticCreatures().
+    Dormant Sprites stay in the SpatialGrid, so awake Sprites
+    still run into them. A dormant Sprite is woken up by
+    wake(), when it's hit or scrolls into view, or by any
+    change to its state. While wakes are deferred (see
+    setWakesDeferred()), creatures that change state are only
+    queued, so the awake Sprites don't change while other
+    threads are updating them.
+    <p>Tiles are kept as one byte per tile, row by row: an index
+    into the map's palette of tile Images. A row with no tiles
+    takes no space.
+    <p>Which tiles are solid is also kept in a bitset, row by
+    row, so tile collisions are found with bit operations on
+    whole rows instead of looking at every tile's Image.
 */
 public class TileMap {
 
-    private Image[][] tiles;
-    private LinkedList sprites;
+    public static final int TYPE_OTHER = 0;
+    public static final int TYPE_CENTIPEDE = 1;
+    public static final int TYPE_SPIDER = 2;
+    public static final int TYPE_MUSHROOM = 3;
+    public static final int TYPE_LASER = 4;
+    public static final int TYPE_POWER_UP = 5;
+    public static final int NUM_TYPES = 6;
+
+    /**
+        Returned by the tile collision methods when no collision
+        is found.
+    */
+    public static final long NO_COLLISION = Long.MIN_VALUE;
+
+    private int width;
+    private int height;
+    // tile images; index 0 is no tile
+    private Image[] palette;
+    private int paletteSize;
+    // palette index of each tile, row by row; null for a row
+    // with no tiles
+    private byte[][] rows;
+    // for maps with fewer loaded columns than their width (see
+    // ChunkedTileMap), the column in rows of each map column, or
+    // -1 if it isn't loaded
+    private int[] columnMap;
+    private int rowLength;
+    // one bit per tile, set if the tile is solid, row by row
+    private long[] solidMask;
+    private int solidWordsPerRow;
+    private SpriteBag sprites;
+    private SpriteBag activeSprites;
+    private SpatialGrid spriteGrid;
+    private SpriteBag[] typedSprites;
+    private int[] liveCounts;
+    private Creature.StateListener liveCounter;
+    private SpriteBag.Filter deadFilter;
+    private SpriteBag.Filter staticFilter;
+    // dormant creatures that changed state while wakes were
+    // deferred, and their indexes, for waking them in map order
+    private boolean wakesDeferred;
+    private SpriteBag deferredWakes;
+    private int[] deferredIndexes;
+    private EntityStore entityStore;
     private Sprite player;
     private int score;
 
@@ -24,17 +93,110 @@ public class TileMap {
         height (in number of tiles) of the map.
     */
     public TileMap(int width, int height) {
-        tiles = new Image[width][height];
-        sprites = new LinkedList();
+        this(width, height, width, null);
+    }
+
+
+    /**
+        Creates a new TileMap where only the specified number of
+        columns can be loaded at once (see ChunkedTileMap), with
+        the specified tile palette (index 0 is no tile). If there
+        are fewer loaded columns than the width, every column
+        starts out unloaded: it has no tiles, and is solid so
+        Sprites stay out of it.
+    */
+    TileMap(int width, int height, int loadedColumns, Image[] palette) {
+        this.width = width;
+        this.height = height;
+        if (palette != null) {
+            this.palette = new Image[256];
+            System.arraycopy(palette, 0, this.palette, 0,
+                palette.length);
+            paletteSize = palette.length;
+        }
+        else {
+            this.palette = new Image[16];
+            paletteSize = 1;
+        }
+        rows = new byte[height][];
+        rowLength = Math.min(width, loadedColumns);
+        solidWordsPerRow = (width + 63) >> 6;
+        solidMask = new long[solidWordsPerRow * height];
+        if (loadedColumns < width) {
+            columnMap = new int[width];
+            Arrays.fill(columnMap, -1);
+            Arrays.fill(solidMask, -1L);
+        }
+        sprites = new SpriteBag();
+        activeSprites = new SpriteBag();
+        deferredWakes = new SpriteBag();
+        deferredIndexes = new int[16];
+        spriteGrid = new SpatialGrid(width, height, loadedColumns);
+        typedSprites = new SpriteBag[NUM_TYPES];
+        for (int i=0; i<NUM_TYPES; i++) {
+            typedSprites[i] = new SpriteBag();
+        }
+        liveCounts = new int[NUM_TYPES];
+        liveCounter = new Creature.StateListener() {
+            public void stateChanged(Creature creature,
+                int oldState, int newState)
+            {
+                // creatures may change state on the threads of a
+                // two-phase update
+                int type = getType(creature);
+                synchronized (liveCounts) {
+                    if (oldState == Creature.STATE_NORMAL) {
+                        liveCounts[type]--;
+                    }
+                    else if (newState == Creature.STATE_NORMAL) {
+                        liveCounts[type]++;
+                    }
+                    // a dormant creature that changes state has
+                    // to be updated
+                    if (!wakesDeferred) {
+                        wake(creature);
+                    }
+                    else if (isDormant(creature) &&
+                        !deferredWakes.contains(creature))
+                    {
+                        deferredWakes.add(creature);
+                    }
+                }
+            }
+        };
+        deadFilter = new SpriteBag.Filter() {
+            public boolean accept(Sprite sprite) {
+                return (sprite instanceof Creature) &&
+                    ((Creature)sprite).getState() == Creature.STATE_DEAD;
+            }
+        };
+        staticFilter = new SpriteBag.Filter() {
+            public boolean accept(Sprite sprite) {
+                return (sprite instanceof Creature) &&
+                    ((Creature)sprite).isStatic();
+            }
+        };
         score = 0;
     }
 
 
+    /**
+        Creates a new TileMap with the tiles of the specified
+        MapTemplate, copied in bulk. The template's starting
+        Sprites aren't added.
+    */
+    public TileMap(MapTemplate template) {
+        this(template.getWidth(), template.getHeight(),
+            template.getWidth(), template.getPalette());
+        template.copyTiles(rows, solidMask);
+    }
+
+
     /**
         Gets the width of this TileMap (number of tiles across).
     */
     public int getWidth() {
-        return tiles.length;
+        return width;
     }
 
 
@@ -42,7 +204,7 @@ public class TileMap {
         Gets the height of this TileMap (number of tiles down).
     */
     public int getHeight() {
-        return tiles[0].length;
+        return height;
     }
 
     public int getScore() {
@@ -59,22 +221,371 @@ public class TileMap {
         bounds.
     */
     public Image getTile(int x, int y) {
-        if (x < 0 || x >= getWidth() ||
-            y < 0 || y >= getHeight())
-        {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
             return null;
         }
-        else {
-            return tiles[x][y];
+        byte[] row = rows[y];
+        if (row == null) {
+            return null;
         }
+        if (columnMap != null) {
+            x = columnMap[x];
+            if (x == -1) {
+                return null;
+            }
+        }
+        return palette[row[x] & 0xff];
     }
 
 
     /**
-        Sets the tile at the specified location.
+        Sets the tile at the specified location. The tile is
+        added to this map's palette if it isn't in it; a map can
+        have at most 255 different tiles. For a ChunkedTileMap,
+        the location must be in a loaded chunk.
     */
     public void setTile(int x, int y, Image tile) {
-        tiles[x][y] = tile;
+        int column = x;
+        if (columnMap != null) {
+            column = columnMap[x];
+            if (column == -1) {
+                throw new IllegalArgumentException(
+                    "Column " + x + " isn't loaded");
+            }
+        }
+        int paletteIndex = getPaletteIndex(tile);
+        byte[] row = rows[y];
+        if (row == null) {
+            if (paletteIndex == 0) {
+                return;
+            }
+            row = new byte[rowLength];
+            rows[y] = row;
+        }
+        row[column] = (byte)paletteIndex;
+
+        int index = y * solidWordsPerRow + (x >> 6);
+        if (tile != null) {
+            solidMask[index] |= (1L << x);
+        }
+        else {
+            solidMask[index] &= ~(1L << x);
+        }
+    }
+
+
+    /**
+        Gets the palette index of a tile, adding the tile to the
+        palette if needed.
+    */
+    private int getPaletteIndex(Image tile) {
+        if (tile == null) {
+            return 0;
+        }
+        for (int i=1; i<paletteSize; i++) {
+            if (palette[i] == tile) {
+                return i;
+            }
+        }
+        if (paletteSize == 256) {
+            throw new IllegalStateException("Too many tiles");
+        }
+        if (paletteSize == palette.length) {
+            Image[] newPalette = new Image[Math.min(256,
+                palette.length * 2)];
+            System.arraycopy(palette, 0, newPalette, 0, paletteSize);
+            palette = newPalette;
+        }
+        palette[paletteSize] = tile;
+        return paletteSize++;
+    }
+
+
+    /**
+        Loads columns of a map created with fewer loaded columns
+        than its width, into the columns of the tile rows starting
+        at the specified row column. The tiles are read, as
+        palette indices, from a buffer holding one byte per tile,
+        row by row, with the specified distance between rows.
+    */
+    void loadColumns(int firstColumn, int count, int rowColumn,
+        ByteBuffer data, int offset, int stride)
+    {
+        for (int x=0; x<count; x++) {
+            columnMap[firstColumn + x] = rowColumn + x;
+        }
+        for (int y=0; y<height; y++) {
+            byte[] row = rows[y];
+            if (row == null) {
+                row = new byte[rowLength];
+                rows[y] = row;
+            }
+            data.position(offset + y * stride + firstColumn);
+            data.get(row, rowColumn, count);
+            for (int x=0; x<count; x++) {
+                int tileX = firstColumn + x;
+                int index = y * solidWordsPerRow + (tileX >> 6);
+                if (row[rowColumn + x] != 0) {
+                    solidMask[index] |= (1L << tileX);
+                }
+                else {
+                    solidMask[index] &= ~(1L << tileX);
+                }
+            }
+        }
+    }
+
+
+    /**
+        Unloads columns loaded with loadColumns(), making them
+        empty and solid.
+    */
+    void unloadColumns(int firstColumn, int count) {
+        for (int x=firstColumn; x<firstColumn + count; x++) {
+            columnMap[x] = -1;
+            for (int y=0; y<height; y++) {
+                solidMask[y * solidWordsPerRow + (x >> 6)] |= (1L << x);
+            }
+        }
+    }
+
+
+    /**
+        Checks if the tile at the specified location is solid.
+        Locations outside the map are solid.
+    */
+    public boolean isSolid(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return true;
+        }
+        return (solidMask[y * solidWordsPerRow + (x >> 6)] &
+            (1L << x)) != 0;
+    }
+
+
+    /**
+        Packs a tile location into a long, as returned by the
+        collision methods.
+    */
+    public static long packTile(int x, int y) {
+        return ((long)x << 32) | (y & 0xffffffffL);
+    }
+
+
+    /**
+        Gets the x location of a packed tile location.
+    */
+    public static int getTileX(long tile) {
+        return (int)(tile >> 32);
+    }
+
+
+    /**
+        Gets the y location of a packed tile location.
+    */
+    public static int getTileY(long tile) {
+        return (int)tile;
+    }
+
+
+    /**
+        Finds the tile that a rectangle (in pixels) collides with
+        when moving from (x, y) to (newX, newY). Only x or y
+        should change, not both. Locations outside the map count
+        as solid. Tiles are checked column by column from the left,
+        and each column from the top. Returns the packed location
+        of the tile (see getTileX() and getTileY()), or
+        NO_COLLISION if no collision is found.
+    */
+    public long getTileCollision(float x, float y,
+        int width, int height, float newX, float newY)
+    {
+        float fromX = Math.min(x, newX);
+        float fromY = Math.min(y, newY);
+        float toX = Math.max(x, newX);
+        float toY = Math.max(y, newY);
+
+        // get the tile locations
+        int fromTileX = TileMapRenderer.pixelsToTiles(fromX);
+        int fromTileY = TileMapRenderer.pixelsToTiles(fromY);
+        int toTileX = TileMapRenderer.pixelsToTiles(
+            toX + width - 1);
+        int toTileY = TileMapRenderer.pixelsToTiles(
+            toY + height - 1);
+
+        return findSolidByColumn(fromTileX, fromTileY,
+            toTileX, toTileY, false);
+    }
+
+
+    /**
+        Finds the first tile that a rectangle (in pixels) runs
+        into when moving from (x, y) to (newX, newY). Tiles are
+        checked nearest first in the direction of motion, so the
+        tile found is the one the rectangle would hit first, even
+        if the move spans several tiles. Otherwise the same as
+        getTileCollision().
+    */
+    public long sweepTileCollision(float x, float y,
+        int width, int height, float newX, float newY)
+    {
+        int fromTileX = TileMapRenderer.pixelsToTiles(
+            Math.min(x, newX));
+        int fromTileY = TileMapRenderer.pixelsToTiles(
+            Math.min(y, newY));
+        int toTileX = TileMapRenderer.pixelsToTiles(
+            Math.max(x, newX) + width - 1);
+        int toTileY = TileMapRenderer.pixelsToTiles(
+            Math.max(y, newY) + height - 1);
+
+        if (newX != x) {
+            return findSolidByColumn(fromTileX, fromTileY,
+                toTileX, toTileY, newX < x);
+        }
+        else {
+            return findSolidByRow(fromTileX, fromTileY,
+                toTileX, toTileY, newY < y);
+        }
+    }
+
+
+    /**
+        Finds the first solid tile in a rectangle of tiles,
+        checking whole columns at a time, from the left (or the
+        right, if leftward is true), and each column from the top.
+    */
+    private long findSolidByColumn(int fromTileX, int fromTileY,
+        int toTileX, int toTileY, boolean leftward)
+    {
+        int nearX = leftward ? toTileX : fromTileX;
+        if (nearX < 0 || nearX >= getWidth() || fromTileY < 0) {
+            // first column is at least partly outside the map
+            return packTile(nearX, fromTileY);
+        }
+        int firstX = Math.max(fromTileX, 0);
+        int lastX = Math.min(toTileX, getWidth() - 1);
+        int lastY = Math.min(toTileY, getHeight() - 1);
+
+        // in each row, only look for columns nearer than the
+        // nearest found so far
+        int foundX = -1;
+        int foundY = 0;
+        for (int ty=fromTileY; ty<=lastY; ty++) {
+            int tx;
+            if (leftward) {
+                tx = findLastSolid(ty,
+                    (foundX == -1) ? firstX : foundX + 1, lastX);
+            }
+            else {
+                tx = findFirstSolid(ty, firstX,
+                    (foundX == -1) ? lastX : foundX - 1);
+            }
+            if (tx != -1) {
+                foundX = tx;
+                foundY = ty;
+                if (tx == nearX) {
+                    break;
+                }
+            }
+        }
+
+        if (toTileY >= getHeight() && foundX != nearX) {
+            // first column runs off the bottom of the map
+            return packTile(nearX,
+                Math.max(fromTileY, getHeight()));
+        }
+        if (foundX != -1) {
+            return packTile(foundX, foundY);
+        }
+        if (leftward && fromTileX < 0) {
+            return packTile(-1, fromTileY);
+        }
+        if (!leftward && toTileX >= getWidth()) {
+            return packTile(getWidth(), fromTileY);
+        }
+        return NO_COLLISION;
+    }
+
+
+    /**
+        Finds the first solid tile in a rectangle of tiles,
+        checking whole rows at a time, from the top (or the
+        bottom, if upward is true), and each row from the left.
+    */
+    private long findSolidByRow(int fromTileX, int fromTileY,
+        int toTileX, int toTileY, boolean upward)
+    {
+        int step = upward ? -1 : 1;
+        int count = toTileY - fromTileY + 1;
+        int ty = upward ? toTileY : fromTileY;
+        for (int i=0; i<count; i++, ty+=step) {
+            if (ty < 0 || ty >= getHeight() ||
+                fromTileX < 0 || fromTileX >= getWidth())
+            {
+                return packTile(fromTileX, ty);
+            }
+            int tx = findFirstSolid(ty, fromTileX,
+                Math.min(toTileX, getWidth() - 1));
+            if (tx != -1) {
+                return packTile(tx, ty);
+            }
+            if (toTileX >= getWidth()) {
+                return packTile(getWidth(), ty);
+            }
+        }
+        return NO_COLLISION;
+    }
+
+
+    /**
+        Gets the leftmost solid tile from x1 to x2 (inclusive)
+        in a row, or -1 if there is none.
+    */
+    private int findFirstSolid(int y, int x1, int x2) {
+        if (x1 > x2) {
+            return -1;
+        }
+        int row = y * solidWordsPerRow;
+        int lastWord = x2 >> 6;
+        for (int w=x1 >> 6; w<=lastWord; w++) {
+            long bits = solidMask[row + w];
+            if (w == x1 >> 6) {
+                bits &= (-1L << x1);
+            }
+            if (w == lastWord) {
+                bits &= (-1L >>> (63 - (x2 & 63)));
+            }
+            if (bits != 0) {
+                return (w << 6) + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+        Gets the rightmost solid tile from x1 to x2 (inclusive)
+        in a row, or -1 if there is none.
+    */
+    private int findLastSolid(int y, int x1, int x2) {
+        if (x1 > x2) {
+            return -1;
+        }
+        int row = y * solidWordsPerRow;
+        int firstWord = x1 >> 6;
+        for (int w=x2 >> 6; w>=firstWord; w--) {
+            long bits = solidMask[row + w];
+            if (w == x2 >> 6) {
+                bits &= (-1L >>> (63 - (x2 & 63)));
+            }
+            if (w == firstWord) {
+                bits &= (-1L << x1);
+            }
+            if (bits != 0) {
+                return (w << 6) + 63 - Long.numberOfLeadingZeros(bits);
+            }
+        }
+        return -1;
     }
 
 
@@ -91,6 +602,32 @@ public class TileMap {
     */
     public void setPlayer(Sprite player) {
         this.player = player;
+        player.savePosition();
+    }
+
+
+    /**
+        Gets the type of the specified Sprite: TYPE_CENTIPEDE,
+        TYPE_SPIDER, TYPE_MUSHROOM, TYPE_LASER, TYPE_POWER_UP,
+        or TYPE_OTHER.
+    */
+    public static int getType(Sprite sprite) {
+        if (sprite instanceof Centipede) {
+            return TYPE_CENTIPEDE;
+        }
+        else if (sprite instanceof Spider) {
+            return TYPE_SPIDER;
+        }
+        else if (sprite instanceof Mushroom) {
+            return TYPE_MUSHROOM;
+        }
+        else if (sprite instanceof Laser) {
+            return TYPE_LASER;
+        }
+        else if (sprite instanceof PowerUp) {
+            return TYPE_POWER_UP;
+        }
+        return TYPE_OTHER;
     }
 
 
@@ -98,26 +635,367 @@ public class TileMap {
         Adds a Sprite object to this map.
     */
     public void addSprite(Sprite sprite) {
+        sprite.savePosition();
         sprites.add(sprite);
+        activeSprites.add(sprite);
+        spriteGrid.add(sprite);
+        register(sprite);
     }
 
 
     /**
-        Removes a Sprite object from this map.
+        Removes a Sprite object from this map, in constant time.
+        The last Sprite in map order takes its place. Returns
+        false if the Sprite wasn't in this map.
     */
-    public void removeSprite(Sprite sprite) {
-        sprites.remove(sprite);
+    public boolean removeSprite(Sprite sprite) {
+        if (!sprites.remove(sprite)) {
+            return false;
+        }
+        activeSprites.remove(sprite);
+        spriteGrid.remove(sprite);
+        unregister(sprite);
+        return true;
+    }
+
+
+    /**
+        Removes every Sprite of the specified type from this map.
+        Takes time proportional to the number of Sprites of the
+        type, not the number in the map.
+    */
+    public void removeSprites(int type) {
+        SpriteBag bag = typedSprites[type];
+        if (bag.isEmpty()) {
+            return;
+        }
+        for (int j=0; j<bag.size(); j++) {
+            Sprite sprite = bag.get(j);
+            sprites.remove(sprite);
+            activeSprites.remove(sprite);
+            spriteGrid.remove(sprite);
+            if (sprite instanceof Creature) {
+                ((Creature)sprite).setStateListener(null);
+            }
+        }
+        bag.clear();
+        liveCounts[type] = 0;
+    }
+
+
+    /**
+        Removes every Creature in the dead state from this map in
+        one pass over the awake Sprites (a creature is woken up
+        when it changes state, so dead creatures are never
+        dormant), keeping the other awake Sprites in order. The
+        removed Creatures are added to the specified bag, so the
+        caller can release them. Returns the number removed.
+    */
+    public int removeDeadCreatures(SpriteBag removed) {
+        int start = removed.size();
+        int count = activeSprites.removeAll(deadFilter, removed);
+        for (int j=start; j<removed.size(); j++) {
+            Sprite sprite = removed.get(j);
+            sprites.remove(sprite);
+            spriteGrid.remove(sprite);
+            unregister(sprite);
+        }
+        return count;
+    }
+
+
+    /**
+        Makes room for the specified number of Sprites beyond the
+        ones in this map, of any types, so adding them doesn't
+        allocate.
+    */
+    public void reserveSprites(int count) {
+        sprites.ensureCapacity(sprites.size() + count);
+        activeSprites.ensureCapacity(activeSprites.size() + count);
+        for (int i=0; i<NUM_TYPES; i++) {
+            typedSprites[i].ensureCapacity(
+                typedSprites[i].size() + count);
+        }
+        spriteGrid.reserve(count);
+    }
+
+
+    /**
+        Gets the SpriteBag of the Sprites of the specified type
+        in this map. The bag is live and must not be modified.
+    */
+    public SpriteBag getSprites(int type) {
+        return typedSprites[type];
+    }
+
+
+    /**
+        Gets the number of Sprites in this map, not including the
+        player.
+    */
+    public int getSpriteCount() {
+        return sprites.size();
+    }
+
+
+    /**
+        Gets the number of Sprites of the specified type in this
+        map.
+    */
+    public int getSpriteCount(int type) {
+        return typedSprites[type].size();
+    }
+
+
+    /**
+        Gets the number of Creatures of the specified type in
+        this map that are alive (in the STATE_NORMAL state).
+    */
+    public int getLiveCount(int type) {
+        return liveCounts[type];
+    }
+
+
+    private void register(Sprite sprite) {
+        int type = getType(sprite);
+        typedSprites[type].add(sprite);
+        if (sprite instanceof Creature) {
+            Creature creature = (Creature)sprite;
+            creature.setStateListener(liveCounter);
+            if (creature.isAlive()) {
+                liveCounts[type]++;
+            }
+        }
+    }
+
+
+    private void unregister(Sprite sprite) {
+        int type = getType(sprite);
+        if (typedSprites[type].remove(sprite) &&
+            sprite instanceof Creature)
+        {
+            Creature creature = (Creature)sprite;
+            creature.setStateListener(null);
+            if (creature.isAlive()) {
+                liveCounts[type]--;
+            }
+        }
     }
 
 
     /**
         Gets an Iterator of all the Sprites in this map,
-        excluding the player Sprite.
+        excluding the player Sprite. Sprites removed with the
+        Iterator's remove() method are removed from the map; the
+        last Sprite takes the removed one's place, and is
+        returned next.
     */
     public Iterator getSprites() {
-        return sprites.iterator();
+        return new SpriteIterator(sprites.iterator());
+    }
+
+
+    /**
+        Gets the Sprite at the specified index (from 0 to
+        getSpriteCount() - 1) in map order, the same order
+        getSprites() returns them in. Unlike getSprites(), this
+        doesn't allocate anything, so it's used to loop over the
+        Sprites every update.
+    */
+    public Sprite getSprite(int index) {
+        return sprites.get(index);
+    }
+
+
+    /**
+        Gets the number of awake Sprites in this map.
+    */
+    public int getActiveCount() {
+        return activeSprites.size();
+    }
+
+
+    /**
+        Gets the awake Sprite at the specified index (from 0 to
+        getActiveCount() - 1). Sprites are woken up at the end of
+        this order, and made dormant without changing the order
+        of the others.
+    */
+    public Sprite getActiveSprite(int index) {
+        return activeSprites.get(index);
+    }
+
+
+    /**
+        Checks if a Sprite in this map is dormant.
+    */
+    public boolean isDormant(Sprite sprite) {
+        return !activeSprites.contains(sprite) &&
+            sprites.contains(sprite);
+    }
+
+
+    /**
+        Wakes up a dormant Sprite in this map, so it's updated
+        again. Does nothing if the Sprite is awake or isn't in
+        this map. Takes constant time.
+    */
+    public void wake(Sprite sprite) {
+        if (!activeSprites.contains(sprite) &&
+            sprites.contains(sprite))
+        {
+            activeSprites.add(sprite);
+        }
+    }
+
+
+    /**
+        Sets whether dormant creatures that change state are
+        woken up right away, or queued. Wakes should be deferred
+        while other threads update the awake Sprites, like the
+        move phase of a two-phase update, since waking a creature
+        changes the awake Sprites. Turning deferral off wakes the
+        queued creatures on the calling thread, in map order, so
+        the awake Sprites are in the same order whichever threads
+        queued them.
+    */
+    public void setWakesDeferred(boolean deferred) {
+        synchronized (liveCounts) {
+            wakesDeferred = deferred;
+            int count = deferredWakes.size();
+            if (deferred || count == 0) {
+                return;
+            }
+            if (deferredIndexes.length < count) {
+                deferredIndexes = new int[Math.max(count,
+                    deferredIndexes.length * 2)];
+            }
+            // insertion sort; there are rarely any
+            for (int i=0; i<count; i++) {
+                int index = sprites.indexOf(
+                    sprites.getHandle(deferredWakes.get(i)));
+                int j = i;
+                while (j > 0 && deferredIndexes[j-1] > index) {
+                    deferredIndexes[j] = deferredIndexes[j-1];
+                    j--;
+                }
+                deferredIndexes[j] = index;
+            }
+            for (int i=0; i<count; i++) {
+                if (deferredIndexes[i] != -1) {
+                    wake(sprites.get(deferredIndexes[i]));
+                }
+            }
+            deferredWakes.clear();
+        }
+    }
+
+
+    /**
+        Makes every awake static creature (see
+        Creature.isStatic()) dormant, in one pass over the awake
+        Sprites. Returns the number made dormant.
+    */
+    public int sleepStaticCreatures() {
+        return activeSprites.removeAll(staticFilter, null);
+    }
+
+
+    /**
+        Gets the handle of a Sprite in this map: an int that
+        finds the Sprite for as long as it stays in the map,
+        wherever removals move it, or SpriteBag.NO_HANDLE if the
+        Sprite isn't in this map.
+    */
+    public int getSpriteHandle(Sprite sprite) {
+        return sprites.getHandle(sprite);
+    }
+
+
+    /**
+        Gets the Sprite with the specified handle (see
+        getSpriteHandle()), or null if it has been removed from
+        this map.
+    */
+    public Sprite getSpriteByHandle(int handle) {
+        return sprites.getByHandle(handle);
+    }
+
+
+    /**
+        Gets the EntityStore holding this map's data-oriented
+        entities, or null if there is none.
+    */
+    public EntityStore getEntityStore() {
+        return entityStore;
     }
 
 
+    /**
+        Sets the EntityStore holding this map's data-oriented
+        entities, or null for none.
+    */
+    public void setEntityStore(EntityStore entityStore) {
+        this.entityStore = entityStore;
+    }
+
+
+    /**
+        Gets a Sprite whose top-left corner is in the specified
+        tile, or null if there is none. Takes constant time.
+    */
+    public Sprite getSpriteAt(int x, int y) {
+        return spriteGrid.getSpriteAt(x, y);
+    }
+
+
+    /**
+        Checks if the top-left corner of any Sprite is in the
+        specified tile. Takes constant time.
+    */
+    public boolean isOccupied(int x, int y) {
+        return spriteGrid.isOccupied(x, y);
+    }
+
+
+    /**
+        Gets the SpatialGrid that indexes the Sprites in this map
+        (excluding the player Sprite) by location. The grid must
+        be updated when a Sprite in this map moves.
+    */
+    public SpatialGrid getSpriteGrid() {
+        return spriteGrid;
+    }
+
+
+    /**
+        An Iterator over the map's Sprites that also removes
+        Sprites from the SpatialGrid.
+    */
+    private class SpriteIterator implements Iterator {
+
+        private Iterator i;
+        private Sprite last;
+
+        public SpriteIterator(Iterator i) {
+            this.i = i;
+        }
+
+        public boolean hasNext() {
+            return i.hasNext();
+        }
+
+        public Object next() {
+            last = (Sprite)i.next();
+            return last;
+        }
+
+        public void remove() {
+            i.remove();
+            activeSprites.remove(last);
+            spriteGrid.remove(last);
+            unregister(last);
+        }
+    }
 
 }
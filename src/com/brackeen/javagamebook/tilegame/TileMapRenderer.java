@@ -1,7 +1,6 @@
 package com.brackeen.javagamebook.tilegame;
 
 import java.awt.*;
-import java.util.Iterator;
 
 import com.brackeen.javagamebook.graphics.Sprite;
 import com.brackeen.javagamebook.tilegame.sprites.Creature;
@@ -27,8 +26,40 @@ public class TileMapRenderer {
     // Math.pow(2, TILE_SIZE_BITS) == TILE_SIZE
     private static final int TILE_SIZE_BITS = 5;
 
+    // room for a label and any int
+    private static final int MAX_TEXT_LENGTH = 32;
+
     private Image background;
 
+    // the score and lives text, written in place when they
+    // change, so drawing them doesn't allocate
+    private char[] scoreText = new char[MAX_TEXT_LENGTH];
+    private int scoreLength;
+    private int drawnScore;
+    private char[] livesText = new char[MAX_TEXT_LENGTH];
+    private int livesLength;
+    private int drawnLives;
+
+    // the map and range of x (in pixels) that dormant creatures
+    // were last woken up in, and the strip being searched
+    private TileMap viewMap;
+    private int viewLeft;
+    private int viewRight;
+    private int stripLeft;
+    private int stripRight;
+    private SpatialGrid.Visitor dormantWaker = new SpatialGrid.Visitor() {
+        public boolean visit(Sprite sprite) {
+            int x = Math.round(sprite.getX());
+            if (sprite instanceof Creature && x >= stripLeft &&
+                x < stripRight && viewMap.isDormant(sprite))
+            {
+                viewMap.wake(sprite);
+                ((Creature)sprite).wakeUp();
+            }
+            return true;
+        }
+    };
+
     /**
         Converts a pixel position to a tile position.
     */
@@ -77,6 +108,18 @@ public class TileMapRenderer {
     */
     public void draw(Graphics2D g, TileMap map,
         int screenWidth, int screenHeight)
+    {
+        draw(g, map, screenWidth, screenHeight, 1);
+    }
+
+
+    /**
+        Draws the specified TileMap, with each Sprite drawn the
+        specified fraction (0 to 1) of the way from its previous
+        position to its current position.
+    */
+    public void draw(Graphics2D g, TileMap map,
+        int screenWidth, int screenHeight, float alpha)
     {
         Sprite player = map.getPlayer();
         int mapWidth = tilesToPixels(map.getWidth());
@@ -84,7 +127,7 @@ public class TileMapRenderer {
         // get the scrolling position of the map
         // based on player's position
         int offsetX = screenWidth / 2 -
-            Math.round(player.getX()) - TILE_SIZE;
+            Math.round(player.getInterpolatedX(alpha)) - TILE_SIZE;
         offsetX = Math.min(offsetX, 0);
         offsetX = Math.max(offsetX, screenWidth - mapWidth);
 
@@ -128,19 +171,96 @@ public class TileMapRenderer {
 
         // draw player
         g.drawImage(player.getImage(),
-            Math.round(player.getX()) + offsetX,
-            Math.round(player.getY()) + offsetY,
+            Math.round(player.getInterpolatedX(alpha)) + offsetX,
+            Math.round(player.getInterpolatedY(alpha)) + offsetY,
             null);
 
         // draw sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite sprite = (Sprite)i.next();
-            int x = Math.round(sprite.getX()) + offsetX;
-            int y = Math.round(sprite.getY()) + offsetY;
+        for (int j=0; j<map.getSpriteCount(); j++) {
+            Sprite sprite = map.getSprite(j);
+            int x = Math.round(sprite.getInterpolatedX(alpha)) +
+                offsetX;
+            int y = Math.round(sprite.getInterpolatedY(alpha)) +
+                offsetY;
             g.drawImage(sprite.getImage(), x, y, null);
+        }
+
+        // draw data-oriented entities
+        EntityStore entities = map.getEntityStore();
+        if (entities != null) {
+            for (int j=0; j<entities.size(); j++) {
+                Sprite sprite = entities.getView(j);
+                int x = Math.round(sprite.getInterpolatedX(alpha)) +
+                    offsetX;
+                int y = Math.round(sprite.getInterpolatedY(alpha)) +
+                    offsetY;
+                g.drawImage(sprite.getImage(), x, y, null);
+            }
+        }
+
+        // Draw Score
+        if (scoreLength == 0 || drawnScore != map.getScore()) {
+            drawnScore = map.getScore();
+            scoreLength = setText(scoreText, "Score: ", drawnScore);
+        }
+        g.drawChars(scoreText, 0, scoreLength, 400, 50);
 
-            // wake up the creature when it's on screen
+        // Draw player health
+        int lives = ((Creature)player).getHealth();
+        if (livesLength == 0 || drawnLives != lives) {
+            drawnLives = lives;
+            livesLength = setText(livesText, "Lives: ", lives);
+        }
+        g.drawChars(livesText, 0, livesLength, 100, 50);
+    }
+
+
+    /**
+        Writes a label followed by a number to a char array,
+        without allocating, and returns the length of the text.
+    */
+    private static int setText(char[] text, String label, int value) {
+        int length = label.length();
+        label.getChars(0, length, text, 0);
+        long n = value;
+        if (n < 0) {
+            text[length++] = '-';
+            n = -n;
+        }
+        int digits = 1;
+        for (long rest=n; rest >= 10; rest /= 10) {
+            digits++;
+        }
+        for (int i=digits-1; i>=0; i--) {
+            text[length + i] = (char)('0' + n % 10);
+            n /= 10;
+        }
+        return length + digits;
+    }
+
+    /**
+        Wakes up the creatures that are on screen (with their
+        wakeUp() methods), for a screen of the specified width
+        scrolled to the player like draw() does. Awake creatures
+        are checked every call. Dormant creatures are only
+        searched for, with the map's SpatialGrid, in the strips
+        of the map that came on screen since the last call, since
+        a dormant creature that stays on screen can't be woken up
+        (it would have been before it went dormant).
+    */
+    public void wakeUpCreatures(TileMap map, int screenWidth) {
+        Sprite player = map.getPlayer();
+        int mapWidth = tilesToPixels(map.getWidth());
+
+        // same scrolling position as draw()
+        int offsetX = screenWidth / 2 -
+            Math.round(player.getX()) - TILE_SIZE;
+        offsetX = Math.min(offsetX, 0);
+        offsetX = Math.max(offsetX, screenWidth - mapWidth);
+
+        for (int j=0; j<map.getActiveCount(); j++) {
+            Sprite sprite = map.getActiveSprite(j);
+            int x = Math.round(sprite.getX()) + offsetX;
             if (sprite instanceof Creature &&
                 x >= 0 && x < screenWidth)
             {
@@ -148,13 +268,39 @@ public class TileMapRenderer {
             }
         }
 
-        // Draw Score
-        g.drawString("Score: " + map.getScore(),400,50 );
+        // the whole screen is new for a new map
+        int left = -offsetX;
+        int right = left + screenWidth;
+        if (map != viewMap) {
+            viewMap = map;
+            viewLeft = right;
+            viewRight = right;
+        }
+        if (left < viewLeft) {
+            wakeDormantCreatures(left, Math.min(right, viewLeft));
+        }
+        if (right > viewRight) {
+            wakeDormantCreatures(Math.max(left, viewRight), right);
+        }
+        viewLeft = left;
+        viewRight = right;
+    }
 
-        // Draw player health
-        g.drawString("Lives: " + ((Creature)player).getHealth(),100,50 );
+
+    /**
+        Wakes up the dormant creatures of viewMap whose left
+        edges are from stripLeft (inclusive) to stripRight
+        (exclusive), in pixels.
+    */
+    private void wakeDormantCreatures(int stripLeft, int stripRight) {
+        this.stripLeft = stripLeft;
+        this.stripRight = stripRight;
+        viewMap.getSpriteGrid().query(stripLeft, 0,
+            stripRight - stripLeft, tilesToPixels(viewMap.getHeight()),
+            dormantWaker);
     }
 
+
     public int getTileSize(){
         return TILE_SIZE;
     }
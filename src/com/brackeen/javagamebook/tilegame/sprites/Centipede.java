@@ -7,6 +7,18 @@ import com.brackeen.javagamebook.graphics.Animation;
 */
 public class Centipede extends Creature {
 
+    /**
+        A centipede that hits a wall drops down a row if it's
+        above this y coordinate, in pixels.
+    */
+    public static final int DROP_LIMIT_Y = 600 - 200;
+
+    /**
+        The distance, in pixels, a centipede drops down when it
+        hits a wall.
+    */
+    public static final int DROP_DISTANCE = 20;
+
     public Centipede(Animation left, Animation right,
         Animation deadLeft, Animation deadRight)
     {
@@ -15,6 +27,14 @@ public class Centipede extends Creature {
     }
 
 
+    public Object clone() {
+        return new Centipede((Animation)getAnim1().clone(),
+            (Animation)getAnim2().clone(),
+            (Animation)getDeadLeft().clone(),
+            (Animation)getDeadRight().clone());
+    }
+
+
     public float getMaxSpeed() {
         return 0.25f;
     }
@@ -24,8 +44,8 @@ public class Centipede extends Creature {
      tile horizontally.
      */
     public void collideHorizontal() {
-        if(getY() < (600-200)){
-            setY(getY()+20);
+        if(getY() < DROP_LIMIT_Y){
+            setY(getY() + DROP_DISTANCE);
         }
         setVelocityX(-getVelocityX());
 
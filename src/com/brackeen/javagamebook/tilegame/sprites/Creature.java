@@ -13,12 +13,21 @@ public abstract class Creature extends Sprite {
     /**
         Amount of time to go from STATE_DYING to STATE_DEAD.
     */
-    private static final int DIE_TIME = 0;
+    public static final int DIE_TIME = 0;
 
     public static final int STATE_NORMAL = 0;
     public static final int STATE_DYING = 1;
     public static final int STATE_DEAD = 2;
 
+    /**
+        The StateListener interface receives notice when a
+        Creature changes state.
+    */
+    public interface StateListener {
+        public void stateChanged(Creature creature, int oldState,
+            int newState);
+    }
+
     private Animation anim1;
     private Animation anim2;
     private Animation deadLeft;
@@ -26,7 +35,9 @@ public abstract class Creature extends Sprite {
     private int state;
     private long stateTime;
     private int health;
+    private int initialHealth;
     private int pointValue;
+    private StateListener stateListener;
 
     /**
         Creates a new Creature with the specified Animations.
@@ -40,11 +51,80 @@ public abstract class Creature extends Sprite {
         this.deadLeft = deadLeft;
         this.deadRight = deadRight;
         this.health = health;
+        this.initialHealth = health;
         this.pointValue = pointValue;
         state = STATE_NORMAL;
     }
 
 
+    /**
+        Resets this Creature so it can be reused: it is alive,
+        at full health, stopped, and showing its first
+        Animation. The StateListener isn't notified.
+    */
+    public void reset() {
+        super.reset();
+        anim = anim2;
+        anim.start();
+        state = STATE_NORMAL;
+        stateTime = 0;
+        health = initialHealth;
+    }
+
+
+    /**
+        Gets which of this Creature's Animations is showing: 0 for
+        anim1, 1 for anim2, 2 for deadLeft, or 3 for deadRight.
+    */
+    public int getAnimIndex() {
+        if (anim == anim1) {
+            return 0;
+        }
+        else if (anim == anim2) {
+            return 1;
+        }
+        else if (anim == deadLeft) {
+            return 2;
+        }
+        return 3;
+    }
+
+
+    /**
+        Gets how long, in milliseconds, this Creature has been in
+        its current state.
+    */
+    public long getStateTime() {
+        return stateTime;
+    }
+
+
+    /**
+        Restores this Creature's state, health, and Animation, as
+        saved from another Creature of the same kind. The
+        StateListener isn't notified.
+    */
+    public void restore(int state, long stateTime, int health,
+        int animIndex, long animTime)
+    {
+        this.state = state;
+        this.stateTime = stateTime;
+        this.health = health;
+        switch (animIndex) {
+            case 0: anim = anim1; break;
+            case 1: anim = anim2; break;
+            case 2: anim = deadLeft; break;
+            default: anim = deadRight; break;
+        }
+        anim.setAnimTime(animTime);
+    }
+
+
+    /**
+        Clones this Creature. Subclasses should override this
+        method to call their constructor directly; otherwise
+        the constructor is found with reflection.
+    */
     public Object clone() {
         // use reflection to create the correct subclass
         Constructor constructor = getClass().getConstructors()[0];
@@ -98,16 +178,30 @@ public abstract class Creature extends Sprite {
     */
     public void setState(int state) {
         if (this.state != state) {
+            int oldState = this.state;
             this.state = state;
             stateTime = 0;
             if (state == STATE_DYING) {
                 setVelocityX(0);
                 setVelocityY(0);
             }
+            if (stateListener != null) {
+                stateListener.stateChanged(this, oldState, state);
+            }
         }
     }
 
 
+    /**
+        Sets the StateListener notified when this Creature changes
+        state, or null for none. A Creature has at most one
+        listener: the map it is in.
+    */
+    public void setStateListener(StateListener stateListener) {
+        this.stateListener = stateListener;
+    }
+
+
     /**
         Checks if this creature is alive.
     */
@@ -116,6 +210,18 @@ public abstract class Creature extends Sprite {
     }
 
 
+    /**
+        Checks if this creature is static: alive and stopped, so
+        updating it only advances its Animation. A static
+        creature in a map can be made dormant (see
+        TileMap.sleepStaticCreatures()).
+    */
+    public boolean isStatic() {
+        return (state == STATE_NORMAL && getVelocityX() == 0 &&
+            getVelocityY() == 0);
+    }
+
+
     /**
         Checks if this creature is flying.
     */
@@ -124,6 +230,17 @@ public abstract class Creature extends Sprite {
     }
 
 
+    /**
+        Checks if this creature moves fast enough to pass through
+        a tile or Sprite in one update. Collisions for fast
+        creatures are checked along their whole path instead of
+        only where they end up.
+    */
+    public boolean isFastMover() {
+        return false;
+    }
+
+
     /**
         Called before update() if the creature collided with a
         tile horizontally.
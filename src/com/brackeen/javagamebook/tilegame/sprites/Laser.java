@@ -14,6 +14,14 @@ public class Laser extends Creature {
     }
 
 
+    public Object clone() {
+        return new Laser((Animation)getAnim1().clone(),
+            (Animation)getAnim2().clone(),
+            (Animation)getDeadLeft().clone(),
+            (Animation)getDeadRight().clone());
+    }
+
+
     public float getMaxSpeed() {
         return 0.5f;
     }
@@ -23,6 +31,11 @@ public class Laser extends Creature {
         return isAlive();
     }
 
+
+    public boolean isFastMover() {
+        return true;
+    }
+
     public void wakeUp() {
         if (getState() == STATE_NORMAL && getVelocityY() == 0) {
             setVelocityY(-getMaxSpeed());
@@ -14,6 +14,14 @@ public class Mushroom extends Creature {
     }
 
 
+    public Object clone() {
+        return new Mushroom((Animation)getAnim1().clone(),
+            (Animation)getAnim2().clone(),
+            (Animation)getDeadLeft().clone(),
+            (Animation)getDeadRight().clone());
+    }
+
+
     public float getMaxSpeed() {
         return 0.0f;
     }
@@ -20,6 +20,14 @@ public class Player extends Creature {
     }
 
 
+    public Object clone() {
+        return new Player((Animation)getAnim1().clone(),
+            (Animation)getAnim2().clone(),
+            (Animation)getDeadLeft().clone(),
+            (Animation)getDeadRight().clone());
+    }
+
+
     public void collideHorizontal() {
         setVelocityX(0);
     }
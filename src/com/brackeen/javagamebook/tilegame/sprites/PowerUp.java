@@ -35,6 +35,10 @@ public abstract class PowerUp extends Sprite {
         public Star(Animation anim) {
             super(anim);
         }
+
+        public Object clone() {
+            return new Star((Animation)anim.clone());
+        }
     }
 
 
@@ -45,6 +49,10 @@ public abstract class PowerUp extends Sprite {
         public Music(Animation anim) {
             super(anim);
         }
+
+        public Object clone() {
+            return new Music((Animation)anim.clone());
+        }
     }
 
 
@@ -55,6 +63,10 @@ public abstract class PowerUp extends Sprite {
         public Goal(Animation anim) {
             super(anim);
         }
+
+        public Object clone() {
+            return new Goal((Animation)anim.clone());
+        }
     }
 
     /**
@@ -64,6 +76,10 @@ public abstract class PowerUp extends Sprite {
         public Mushroomb(Animation anim) {
             super(anim);
         }
+
+        public Object clone() {
+            return new Mushroomb((Animation)anim.clone());
+        }
     }
 
 }
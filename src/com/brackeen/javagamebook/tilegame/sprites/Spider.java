@@ -15,6 +15,14 @@ public class Spider extends Creature {
     }
 
 
+    public Object clone() {
+        return new Spider((Animation)getAnim1().clone(),
+            (Animation)getAnim2().clone(),
+            (Animation)getDeadLeft().clone(),
+            (Animation)getDeadRight().clone());
+    }
+
+
     public float getMaxSpeed() {
         return 0.2f;
     }
@@ -0,0 +1,143 @@
+package com.brackeen.javagamebook.util;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+    The FramePacer class keeps a loop running at a steady frame
+    rate without pinning the CPU. Each call to sync() waits until
+    the next frame's deadline: the thread is parked for most of
+    the wait, and only the last moment is spent spinning (with
+    Thread.yield()) so that the deadline is hit accurately.
+    <p>Frames that finish after their deadline are counted as
+    missed. If a frame is late by more than a whole frame, the
+    schedule is restarted from the current time rather than
+    running a burst of frames to catch up.
+*/
+public class FramePacer {
+
+    /**
+        Default time before a deadline to stop parking and start
+        spinning, in nanoseconds. parkNanos() can oversleep by
+        about this much on common systems.
+    */
+    public static final long DEFAULT_SPIN_TIME = 1000000;
+
+    private long frameTime;
+    private long spinTime;
+    private long deadline;
+    private long frameCount;
+    private long missedFrameCount;
+    private long maxLateness;
+
+    /**
+        Creates a new FramePacer with the specified frame rate.
+    */
+    public FramePacer(int framesPerSecond) {
+        setFrameRate(framesPerSecond);
+        spinTime = DEFAULT_SPIN_TIME;
+    }
+
+
+    /**
+        Sets the target number of frames per second.
+    */
+    public void setFrameRate(int framesPerSecond) {
+        frameTime = 1000000000L / Math.max(1, framesPerSecond);
+        deadline = 0;
+    }
+
+
+    /**
+        Gets the target number of frames per second.
+    */
+    public int getFrameRate() {
+        return (int)(1000000000L / frameTime);
+    }
+
+
+    /**
+        Sets how long before a deadline, in nanoseconds, to stop
+        parking the thread and spin instead. Larger values are
+        more accurate but use more CPU.
+    */
+    public void setSpinTime(long spinTime) {
+        this.spinTime = Math.max(0, spinTime);
+    }
+
+
+    /**
+        Waits until the deadline of the current frame, then
+        starts the next frame. The first call only starts the
+        schedule.
+    */
+    public void sync() {
+        long time = System.nanoTime();
+        if (deadline == 0) {
+            deadline = time + frameTime;
+            return;
+        }
+
+        frameCount++;
+        if (time > deadline) {
+            // missed the deadline
+            long lateness = time - deadline;
+            missedFrameCount++;
+            maxLateness = Math.max(maxLateness, lateness);
+            if (lateness > frameTime) {
+                // way behind - start over from now
+                deadline = time;
+            }
+        }
+        else {
+            // sleep for most of the wait
+            long remaining = deadline - time;
+            while (remaining > spinTime) {
+                LockSupport.parkNanos(remaining - spinTime);
+                remaining = deadline - System.nanoTime();
+            }
+
+            // spin the rest
+            while (System.nanoTime() < deadline) {
+                Thread.yield();
+            }
+        }
+        deadline += frameTime;
+    }
+
+
+    /**
+        Gets the number of frames that have been paced.
+    */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+
+    /**
+        Gets the number of frames that finished after their
+        deadline.
+    */
+    public long getMissedFrameCount() {
+        return missedFrameCount;
+    }
+
+
+    /**
+        Gets the most a frame has finished after its deadline,
+        in nanoseconds.
+    */
+    public long getMaxLateness() {
+        return maxLateness;
+    }
+
+
+    /**
+        Resets the frame counts and restarts the schedule.
+    */
+    public void reset() {
+        deadline = 0;
+        frameCount = 0;
+        missedFrameCount = 0;
+        maxLateness = 0;
+    }
+}
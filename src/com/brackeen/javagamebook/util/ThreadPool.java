@@ -1,5 +1,4 @@
 package com.brackeen.javagamebook.util;
-import java.util.LinkedList;
 
 /**
     A thread pool is a group of a limited number of threads that
@@ -8,7 +7,11 @@ import java.util.LinkedList;
 public class ThreadPool extends ThreadGroup {
 
     private boolean isAlive;
-    private LinkedList taskQueue;
+    // waiting tasks, in a ring that only grows, so running a
+    // task doesn't allocate anything
+    private Runnable[] taskQueue;
+    private int taskHead;
+    private int taskCount;
     private int threadID;
     private static int threadPoolID;
 
@@ -22,7 +25,7 @@ public class ThreadPool extends ThreadGroup {
 
         isAlive = true;
 
-        taskQueue = new LinkedList();
+        taskQueue = new Runnable[16];
         for (int i=0; i<numThreads; i++) {
             new PooledThread().start();
         }
@@ -43,7 +46,17 @@ public class ThreadPool extends ThreadGroup {
             throw new IllegalStateException();
         }
         if (task != null) {
-            taskQueue.add(task);
+            if (taskCount == taskQueue.length) {
+                Runnable[] newQueue = new Runnable[taskCount * 2];
+                for (int i=0; i<taskCount; i++) {
+                    newQueue[i] =
+                        taskQueue[(taskHead + i) % taskQueue.length];
+                }
+                taskQueue = newQueue;
+                taskHead = 0;
+            }
+            taskQueue[(taskHead + taskCount) % taskQueue.length] = task;
+            taskCount++;
             notify();
         }
 
@@ -53,13 +66,17 @@ public class ThreadPool extends ThreadGroup {
     protected synchronized Runnable getTask()
         throws InterruptedException
     {
-        while (taskQueue.size() == 0) {
+        while (taskCount == 0) {
             if (!isAlive) {
                 return null;
             }
             wait();
         }
-        return (Runnable)taskQueue.removeFirst();
+        Runnable task = taskQueue[taskHead];
+        taskQueue[taskHead] = null;
+        taskHead = (taskHead + 1) % taskQueue.length;
+        taskCount--;
+        return task;
     }
 
 
@@ -72,7 +89,11 @@ public class ThreadPool extends ThreadGroup {
     public synchronized void close() {
         if (isAlive) {
             isAlive = false;
-            taskQueue.clear();
+            for (int i=0; i<taskQueue.length; i++) {
+                taskQueue[i] = null;
+            }
+            taskHead = 0;
+            taskCount = 0;
             interrupt();
         }
     }